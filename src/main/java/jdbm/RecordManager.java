@@ -203,6 +203,15 @@ public interface RecordManager
         throws IOException;
 
 
+    /**
+     * Returns a read-only view of the records as of the last commit,
+     * which can be read while the record manager is updated. The view
+     * must be closed once no longer needed.
+     */
+    public abstract RecordManager snapshot()
+        throws IOException;
+
+
     /**
      * Obtain the record id of a named object. Returns 0 if named object
      * doesn't exist.
@@ -83,6 +83,66 @@ public class RecordManagerOptions
     public static final String DISABLE_TRANSACTIONS = "jdbm.disableTransactions";
 
 
+    /**
+     * Option to read and write the database file through memory mappings
+     * instead of through system calls. Only used when the file is opened.
+     * Shorthand for setting {@link #BLOCK_DEVICE} to {@link #MAPPED_DEVICE}.
+     */
+    public static final String MEMORY_MAPPED_IO = "jdbm.memoryMappedIO";
+
+
+    /**
+     * Block device the database file is stored on. Either one of the
+     * built-in device types, or the name of a class implementing
+     * {@link jdbm.recman.BlockDevice}. Only used when the file is opened.
+     */
+    public static final String BLOCK_DEVICE = "jdbm.blockDevice";
+
+
+    /**
+     * Block size, in bytes, of a new database file: a power of two
+     * between 1024 and 32768, 8192 by default. Only used when the file
+     * is created; an existing file keeps the block size it was created
+     * with.
+     */
+    public static final String BLOCK_SIZE = "jdbm.blockSize";
+
+
+    /**
+     * Option to end every block with a checksum, verified whenever the
+     * block is read. Like the block size, it only applies when the
+     * database file is created.
+     */
+    public static final String CHECKSUMS = "jdbm.checksums";
+
+
+    /**
+     * Store blocks through {@link java.io.RandomAccessFile} seek and
+     * read/write calls. This is the default.
+     */
+    public static final String FILE_DEVICE = "file";
+
+
+    /**
+     * Store blocks through positional {@link java.nio.channels.FileChannel}
+     * reads and writes.
+     */
+    public static final String CHANNEL_DEVICE = "channel";
+
+
+    /**
+     * Store blocks through memory mappings of the database file.
+     */
+    public static final String MAPPED_DEVICE = "mmap";
+
+
+    /**
+     * Keep blocks in memory only. Nothing is written to disk, and no
+     * transaction log is kept.
+     */
+    public static final String MEMORY_DEVICE = "memory";
+
+
     /**
      * Cache type.
      */
@@ -95,6 +155,139 @@ public class RecordManagerOptions
     public static final String CACHE_SIZE = "jdbm.cache.size";
 
 
+    /**
+     * Size, in bytes, of the cache of file blocks kept by the record
+     * manager underneath the record cache.
+     */
+    public static final String PAGE_CACHE_SIZE = "jdbm.pageCache.size";
+
+
+    /**
+     * Option to keep the cache of file blocks off the Java heap, in
+     * direct buffers, so that a large cache doesn't lengthen garbage
+     * collection.
+     */
+    public static final String PAGE_CACHE_OFF_HEAP = "jdbm.pageCache.offHeap";
+
+
+    /**
+     * Budget, in bytes, for dirty file blocks. When transactions are
+     * disabled, past half of it, the oldest dirty blocks are written
+     * back in the background; once it is used up, updates wait for
+     * the writer to catch up. With transactions, once it is used up,
+     * the oldest half of the dirty blocks are written to the
+     * transaction log ahead of the commit, and dropped from memory.
+     */
+    public static final String DIRTY_PAGE_LIMIT = "jdbm.dirtyPages.size";
+
+
+    /**
+     * Option to keep the free space of the file in memory, read on
+     * first use, so that allocations don't go through the free lists
+     * until commit. "true" or "false", the default.
+     */
+    public static final String FREE_SPACE_IN_MEMORY = "jdbm.freeSpace.inMemory";
+
+
+    /**
+     * Size, in bytes, a segment of the transaction log grows to before
+     * the next one is started. Checkpoints drop whole segments.
+     */
+    public static final String LOG_SEGMENT_SIZE = "jdbm.log.segmentSize";
+
+
+    /**
+     * Size, in bytes, the transaction log grows to before it is
+     * checkpointed to the data file. Checkpoints are written in the
+     * background, while commits go on in a fresh log.
+     */
+    public static final String CHECKPOINT_LOG_SIZE = "jdbm.checkpoint.logSize";
+
+
+    /**
+     * Number of distinct pages the transaction log holds before it is
+     * checkpointed to the data file.
+     */
+    public static final String CHECKPOINT_DIRTY_PAGES = "jdbm.checkpoint.dirtyPages";
+
+
+    /**
+     * Time, in milliseconds, a commit waits for concurrent commits to
+     * share its sync of the transaction log. Zero, the default, syncs
+     * right away; commits arriving during a sync are still grouped
+     * into the next one.
+     */
+    public static final String GROUP_COMMIT_WINDOW = "jdbm.groupCommit.window";
+
+
+    /**
+     * Amount of transaction log, in bytes, that ends the group commit
+     * window early. Zero, the default, always waits the whole window.
+     */
+    public static final String GROUP_COMMIT_SIZE = "jdbm.groupCommit.size";
+
+
+    /**
+     * How soon commits are synced to the transaction log: one of
+     * {@link #SYNC_DURABILITY}, the default, {@link #GROUP_DURABILITY},
+     * {@link #PERIODIC_DURABILITY} or {@link #OS_DURABILITY}. Whatever
+     * the level, a transaction is either recovered whole or not at all.
+     */
+    public static final String DURABILITY = "jdbm.durability";
+
+
+    /**
+     * Time, in milliseconds, between syncs of the transaction log at
+     * the periodic durability level; 100 by default.
+     */
+    public static final String DURABILITY_INTERVAL = "jdbm.durability.interval";
+
+
+    /**
+     * Number of file blocks that may be read ahead, in the background,
+     * of large record fetches. Zero disables prefetching.
+     */
+    public static final String PREFETCH_SIZE = "jdbm.prefetch.size";
+
+
+    /**
+     * Sync every commit to the transaction log before it returns.
+     */
+    public static final String SYNC_DURABILITY = "sync";
+
+
+    /**
+     * Sync every commit to the transaction log before it returns, with
+     * the syncs of concurrent commits grouped over the group commit
+     * window, 10 milliseconds unless set.
+     */
+    public static final String GROUP_DURABILITY = "group";
+
+
+    /**
+     * Return from commits once they are written to the transaction
+     * log, and sync the log in the background at the durability
+     * interval. A crash loses at most the last interval of commits.
+     */
+    public static final String PERIODIC_DURABILITY = "periodic";
+
+
+    /**
+     * Return from commits once they are written to the transaction
+     * log, and leave syncing to the operating system until a log
+     * segment is closed. A crash of the process loses nothing; a crash
+     * of the system may lose the commits of the last segment.
+     */
+    public static final String OS_DURABILITY = "os";
+
+
+    /**
+     * Use no record cache. Fetches from multiple threads then run in
+     * parallel, where the record cache would serialize them.
+     */
+    public static final String NO_CACHE = "none";
+
+
     /**
      * Use normal (strong) object references for the record cache.
      */
@@ -50,10 +50,16 @@ package jdbm.recman;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import jdbm.RecordManager;
+import jdbm.RecordManagerOptions;
 import jdbm.helper.Serializer;
 import jdbm.helper.DefaultSerializer;
 
@@ -65,11 +71,18 @@ import jdbm.helper.DefaultSerializer;
  * back to them. Data blocks can be as long as you wish, and may have
  * lengths different from the original when updating.
  * <p/>
- * Operations are synchronized, so that only one of them will happen
- * concurrently even if you hammer away from multiple threads. Operations
- * are made atomic by keeping a transaction log which is recovered after
- * a crash, so the operations specified by this interface all have ACID
- * properties.
+ * Operations hold a shared/exclusive latch. Fetches hold it shared, and
+ * run in parallel with each other; updates, inserts, deletes and
+ * commits hold it exclusively, so that only one of them runs at a time
+ * even if you hammer away from multiple threads. A waiting update holds
+ * off new fetches, so that a stream of fetches can't starve it. Records
+ * are deserialized after the latch is released. Fetches through a
+ * {@link #snapshot} don't take the latch at all. Besides the implicit
+ * transaction shared by all threads, explicit transactions can be run
+ * concurrently, each on its own handle obtained from {@link #begin}.
+ * Operations are made atomic by keeping a transaction log which is
+ * recovered after a crash, so the operations specified by this interface
+ * all have ACID properties.
  * <p/>
  * You identify a file by just the name. The package attaches <tt>.db</tt>
  * for the database file, and <tt>.lg</tt> for the transaction log. The
@@ -108,6 +121,19 @@ public final class BaseRecordManager
     private PageManager _pageman;
 
 
+    /**
+     * Guards the record manager: fetches hold it shared, and may run
+     * concurrently; all other operations hold it exclusively.
+     */
+    private final Latch _lock = new Latch( true );
+
+
+    /**
+     * Number of records {@link #compact()} moves per transaction.
+     */
+    public static final int DEFAULT_COMPACT_RECORDS = 100;
+
+
     /**
      * Reserved slot for name directory.
      */
@@ -128,6 +154,56 @@ public final class BaseRecordManager
     private Map _nameDirectory;
 
 
+    /**
+     * Open transaction handles, guarded by the lock like the rest.
+     */
+    private final ArrayList _transactions = new ArrayList();
+
+
+    /**
+     * Version of the last commit that changed records or roots while
+     * transaction handles were open.
+     */
+    private long _version;
+
+
+    /**
+     * Version of the last commit of each record or root, by
+     * {@link #versionKey}, kept while a handle started before it may
+     * still conflict with it.
+     */
+    private final HashMap _versions = new HashMap();
+
+
+    /**
+     * Records and roots inserted or changed directly in the implicit
+     * transaction, by {@link #versionKey}. Handles can't commit while
+     * there are any.
+     */
+    private final HashSet _pendingWrites = new HashSet();
+
+
+    /**
+     * Record ids reserved by handles in the implicit transaction, in
+     * order. They are lost to the handles if it rolls back.
+     */
+    private final ArrayList _reservations = new ArrayList();
+
+
+    /**
+     * Reserved records dropped by handles in the implicit transaction,
+     * in order. They are dropped again if it rolls back, unless their
+     * reservation goes too.
+     */
+    private final ArrayList _drops = new ArrayList();
+
+
+    /**
+     * Sizes of the reservations and drops at each savepoint.
+     */
+    private final ArrayList _savepointMarks = new ArrayList();
+
+
     /**
      * Creates a record manager for the indicated file
      *
@@ -137,7 +213,42 @@ public final class BaseRecordManager
     public BaseRecordManager( String filename )
         throws IOException
     {
-        _file = new RecordFile( filename );
+        this( filename, new Properties() );
+    }
+
+
+    /**
+     * Creates a record manager for the indicated file, using the
+     * storage related options among the indicated ones.
+     *
+     * @throws IOException when the file cannot be opened or is not
+     *                     a valid file content-wise.
+     * @see RecordManagerOptions#BLOCK_DEVICE
+     * @see RecordManagerOptions#BLOCK_SIZE
+     * @see RecordManagerOptions#CHECKSUMS
+     */
+    public BaseRecordManager( String filename, Properties options )
+        throws IOException
+    {
+        String device = RecordManagerOptions.FILE_DEVICE;
+        String value = options.getProperty( RecordManagerOptions.MEMORY_MAPPED_IO, "false" );
+        if ( value.equalsIgnoreCase( "TRUE" ) )
+        {
+            device = RecordManagerOptions.MAPPED_DEVICE;
+        }
+        device = options.getProperty( RecordManagerOptions.BLOCK_DEVICE, device );
+
+        value = options.getProperty( RecordManagerOptions.BLOCK_SIZE );
+        int blockSize = RecordFile.BLOCK_SIZE;
+        if ( value != null )
+        {
+            blockSize = Integer.parseInt( value );
+        }
+
+        value = options.getProperty( RecordManagerOptions.CHECKSUMS, "false" );
+        boolean checksums = value.equalsIgnoreCase( "TRUE" );
+
+        _file = new RecordFile( filename, device, blockSize, checksums );
         _pageman = new PageManager( _file );
         _physMgr = new PhysicalRowIdManager( _file, _pageman );
         _logMgr = new LogicalRowIdManager( _file, _pageman );
@@ -145,13 +256,22 @@ public final class BaseRecordManager
 
 
     /**
-     * Get the underlying Transaction Manager
+     * Get the underlying Transaction Manager, or null if the file is
+     * kept in memory and has no transaction log.
      */
-    public synchronized TransactionManager getTransactionManager()
+    public TransactionManager getTransactionManager()
     {
-        checkIfClosed();
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
 
-        return _file.txnMgr;
+            return _file.txnMgr;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
 
@@ -164,11 +284,209 @@ public final class BaseRecordManager
      * Only call this method directly after opening the file, otherwise
      * the results will be undefined.
      */
-    public synchronized void disableTransactions()
+    public void disableTransactions()
     {
-        checkIfClosed();
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.disableTransactions();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the size, in bytes, of the cache of clean file blocks.
+     * The default is {@link RecordFile#DEFAULT_CACHE_SIZE}.
+     */
+    public void setPageCacheSize( long bytes )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
 
-        _file.disableTransactions();
+            _file.setCacheSize( bytes );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the size, in bytes, a segment of the transaction log grows
+     * to before the next one is started.
+     */
+    public void setLogSegmentSize( long bytes )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setLogSegmentSize( bytes );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the size, in bytes, the transaction log grows to and the
+     * number of distinct pages it holds before it is checkpointed to
+     * the data file, in the background.
+     */
+    public void setCheckpointThresholds( long logSize, int dirtyPages )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setCheckpointThresholds( logSize, dirtyPages );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets how soon commits are synced to the transaction log: one of
+     * the durability levels defined in {@link RecordManagerOptions}.
+     * The interval, in milliseconds, is the time between syncs at the
+     * periodic level.
+     */
+    public void setDurability( String level, long interval )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setDurability( level, interval );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets how long, in milliseconds, a commit waits for concurrent
+     * commits to share its log sync, and the amount of log, in bytes,
+     * that cuts the wait short. Zero bytes means the whole window is
+     * waited for.
+     */
+    public void setGroupCommit( long window, long bytes )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setGroupCommit( window, bytes );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets whether the free space of the file is kept in memory, read
+     * on first use, so that allocations don't read and write the free
+     * lists until commit.
+     */
+    public void setFreeSpaceInMemory( boolean inMemory )
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _physMgr.setFreeSpaceInMemory( inMemory );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the budget, in bytes, for dirty file blocks. Past it, dirty
+     * blocks are written back, or, with transactions, to the log ahead
+     * of the commit. Zero, the default, means dirty blocks are only
+     * written on commit.
+     */
+    public void setDirtyPageLimit( long bytes )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setDirtyLimit( bytes );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets whether file blocks are cached off the Java heap, in direct
+     * buffers. Off by default.
+     */
+    public void setPageCacheOffHeap( boolean offHeap )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setOffHeap( offHeap );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the number of file blocks that may be read ahead of their
+     * use. Zero disables prefetching. The default is
+     * {@link RecordFile#DEFAULT_PREFETCH_SIZE}.
+     */
+    public void setPrefetchSize( int blocks )
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _file.setPrefetchSize( blocks );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
 
@@ -177,16 +495,25 @@ public final class BaseRecordManager
      *
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void close()
+    public void close()
         throws IOException
     {
-        checkIfClosed();
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
 
-        _pageman.close();
-        _pageman = null;
+            _physMgr.flush();
+            _pageman.close();
+            _pageman = null;
 
-        _file.close();
-        _file = null;
+            _file.close();
+            _file = null;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
 
@@ -212,23 +539,32 @@ public final class BaseRecordManager
      * @throws IOException when one of the underlying I/O operations fails.
      * @returns the rowid for the new record.
      */
-    public synchronized long insert( Object obj, Serializer serializer )
+    public long insert( Object obj, Serializer serializer )
         throws IOException
     {
-        byte[]    data;
-        long recid;
-        Location physRowId;
-
-        checkIfClosed();
-
-        data = serializer.serialize( obj );
-        physRowId = _physMgr.insert( data, 0, data.length );
-        recid = _logMgr.insert( physRowId ).toLong();
-        if ( DEBUG )
+        _lock.lockExclusive();
+        try
+        {
+            byte[]    data;
+            long recid;
+            Location physRowId;
+
+            checkIfClosed();
+
+            data = serializer.serialize( obj );
+            physRowId = _physMgr.insert( data, 0, data.length );
+            recid = _logMgr.insert( physRowId ).toLong();
+            _pendingWrites.add( versionKey( recid ) );
+            if ( DEBUG )
+            {
+                System.out.println( "BaseRecordManager.insert() recid " + recid + " length " + data.length );
+            }
+            return recid;
+        }
+        finally
         {
-            System.out.println( "BaseRecordManager.insert() recid " + recid + " length " + data.length );
+            _lock.unlock();
         }
-        return recid;
     }
 
     /**
@@ -237,21 +573,40 @@ public final class BaseRecordManager
      * @param rowid the rowid for the record that should be deleted.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void delete( long recid )
+    public void delete( long recid )
         throws IOException
     {
-        checkIfClosed();
-        if ( recid <= 0 )
+        _lock.lockExclusive();
+        try
         {
-            throw new IllegalArgumentException( "Argument 'recid' is invalid: "
-                + recid );
+            checkIfClosed();
+            if ( recid <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'recid' is invalid: "
+                    + recid );
+            }
+
+            if ( DEBUG )
+            {
+                System.out.println( "BaseRecordManager.delete() recid " + recid );
+            }
+
+            deleteRecord( recid );
+            _pendingWrites.add( versionKey( recid ) );
         }
-
-        if ( DEBUG )
+        finally
         {
-            System.out.println( "BaseRecordManager.delete() recid " + recid );
+            _lock.unlock();
         }
+    }
 
+
+    /**
+     * Deletes a record. The caller holds the lock exclusively.
+     */
+    private void deleteRecord( long recid )
+        throws IOException
+    {
         Location logRowId = new Location( recid );
         Location physRowId = _logMgr.fetch( logRowId );
         _physMgr.delete( physRowId );
@@ -281,25 +636,44 @@ public final class BaseRecordManager
      * @param serializer a custom serializer
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void update( long recid, Object obj, Serializer serializer )
+    public void update( long recid, Object obj, Serializer serializer )
         throws IOException
     {
-        checkIfClosed();
-        if ( recid <= 0 )
+        _lock.lockExclusive();
+        try
         {
-            throw new IllegalArgumentException( "Argument 'recid' is invalid: "
-                + recid );
+            checkIfClosed();
+            if ( recid <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'recid' is invalid: "
+                    + recid );
+            }
+
+            byte[] data = serializer.serialize( obj );
+            if ( DEBUG )
+            {
+                System.out.println( "BaseRecordManager.update() recid " + recid + " length " + data.length );
+            }
+
+            updateRecord( recid, data );
+            _pendingWrites.add( versionKey( recid ) );
         }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
 
+
+    /**
+     * Updates a record. The caller holds the lock exclusively.
+     */
+    private void updateRecord( long recid, byte[] data )
+        throws IOException
+    {
         Location logRecid = new Location( recid );
         Location physRecid = _logMgr.fetch( logRecid );
 
-        byte[] data = serializer.serialize( obj );
-        if ( DEBUG )
-        {
-            System.out.println( "BaseRecordManager.update() recid " + recid + " length " + data.length );
-        }
-
         Location newRecid = _physMgr.update( physRecid, data, 0, data.length );
         if ( ! newRecid.equals( physRecid ) )
         {
@@ -330,26 +704,96 @@ public final class BaseRecordManager
      * @throws IOException when one of the underlying I/O operations fails.
      * @returns the object contained in the record.
      */
-    public synchronized Object fetch( long recid, Serializer serializer )
+    public Object fetch( long recid, Serializer serializer )
         throws IOException
     {
         byte[] data;
 
-        checkIfClosed();
-        if ( recid <= 0 )
+        _lock.lockShared();
+        try
         {
-            throw new IllegalArgumentException( "Argument 'recid' is invalid: "
-                + recid );
+            checkIfClosed();
+            if ( recid <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'recid' is invalid: "
+                    + recid );
+            }
+            data = _physMgr.fetch( _logMgr.fetch( new Location( recid ) ) );
+            if ( DEBUG )
+            {
+                System.out.println( "BaseRecordManager.fetch() recid " + recid + " length " + data.length );
+            }
         }
-        data = _physMgr.fetch( _logMgr.fetch( new Location( recid ) ) );
-        if ( DEBUG )
+        finally
         {
-            System.out.println( "BaseRecordManager.fetch() recid " + recid + " length " + data.length );
+            _lock.unlock();
         }
+        // outside the lock: a serializer may fetch other records, and
+        // shared holds wait behind a waiting writer
         return serializer.deserialize( data );
     }
 
 
+    /**
+     * Returns the block size of the underlying file, fixed when the
+     * file was created.
+     */
+    public int getBlockSize()
+    {
+        _lock.lockShared();
+        try
+        {
+            checkIfClosed();
+
+            return _file.getBlockSize();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of blocks read so far whose checksum was
+     * verified. Always 0 for files without checksums.
+     */
+    public long getVerifiedPageCount()
+    {
+        _lock.lockShared();
+        try
+        {
+            checkIfClosed();
+
+            return _file.getVerifiedCount();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of blocks read so far whose checksum was
+     * wrong. Reading such a block fails with an IOException.
+     */
+    public long getFailedPageCount()
+    {
+        _lock.lockShared();
+        try
+        {
+            checkIfClosed();
+
+            return _file.getFailedCount();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
     /**
      * Returns the number of slots available for "root" rowids. These slots
      * can be used to store special rowids, like rowids that point to
@@ -358,7 +802,17 @@ public final class BaseRecordManager
      */
     public int getRootCount()
     {
-        return FileHeader.NROOTS;
+        _lock.lockShared();
+        try
+        {
+            checkIfClosed();
+
+            return _pageman.getFileHeader().getRootCount();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
     /**
@@ -366,12 +820,20 @@ public final class BaseRecordManager
      *
      * @see getRootCount
      */
-    public synchronized long getRoot( int id )
+    public long getRoot( int id )
         throws IOException
     {
-        checkIfClosed();
+        _lock.lockShared();
+        try
+        {
+            checkIfClosed();
 
-        return _pageman.getFileHeader().getRoot( id );
+            return _pageman.getFileHeader().getRoot( id );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
 
@@ -380,12 +842,21 @@ public final class BaseRecordManager
      *
      * @see getRootCount
      */
-    public synchronized void setRoot( int id, long rowid )
+    public void setRoot( int id, long rowid )
         throws IOException
     {
-        checkIfClosed();
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
 
-        _pageman.getFileHeader().setRoot( id, rowid );
+            _pageman.getFileHeader().setRoot( id, rowid );
+            _pendingWrites.add( versionKey( -1 - id ) );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
 
@@ -429,27 +900,624 @@ public final class BaseRecordManager
     }
 
 
+    /**
+     * Returns a read-only view of the records as of the last commit.
+     * Fetches through the view run concurrently with updates and
+     * commits, and don't see them. The view must be closed once no
+     * longer needed.
+     *
+     * @throws IllegalStateException if the current transaction holds
+     *         changes whose committed images weren't kept, as when
+     *         made with transactions disabled.
+     * @see SnapshotRecordManager
+     */
+    public RecordManager snapshot()
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            return newSnapshot();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
     /**
      * Commit (make persistent) all changes since beginning of transaction.
      */
-    public synchronized void commit()
+    public void commit()
         throws IOException
     {
-        checkIfClosed();
+        long lsn;
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
 
-        _pageman.commit();
+            lsn = commitToLog();
+            stamp( _pendingWrites );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        // sync the log outside the lock, so that concurrent
+        // committers can share the sync.
+        _file.waitForLog( lsn );
     }
 
 
     /**
      * Rollback (cancel) all changes since beginning of transaction.
      */
-    public synchronized void rollback()
+    public void rollback()
         throws IOException
     {
-        checkIfClosed();
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _pageman.rollback();
+            _physMgr.discard();
+            _pendingWrites.clear();
+            _savepointMarks.clear();
+            rollbackReservations( 0, 0 );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets a savepoint in the current transaction, and returns its
+     * number, to roll back to with {@link #rollbackToSavepoint}.
+     * Savepoints last until the transaction commits or rolls back.
+     *
+     * @throws IllegalStateException if transactions are disabled.
+     */
+    public int setSavepoint()
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            // savepoints keep the free space of the file
+            _physMgr.flush();
+            int savepoint = _pageman.setSavepoint();
+            _savepointMarks.add( new int[] { _reservations.size(), _drops.size() } );
+            return savepoint;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Rolls back the changes made in the current transaction since the
+     * indicated savepoint. The savepoint, and the ones set before it,
+     * remain usable.
+     *
+     * @param savepoint a number returned by {@link #setSavepoint}.
+     */
+    public void rollbackToSavepoint( int savepoint )
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            _pageman.rollback( savepoint );
+            _physMgr.discard();
+            int[] marks = (int[]) _savepointMarks.get( savepoint );
+            _savepointMarks.subList( savepoint + 1, _savepointMarks.size() ).clear();
+            rollbackReservations( marks[ 0 ], marks[ 1 ] );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Compacts the file, moving {@link #DEFAULT_COMPACT_RECORDS}
+     * records per transaction.
+     *
+     * @see #compact(int)
+     */
+    public void compact()
+        throws IOException
+    {
+        compact( DEFAULT_COMPACT_RECORDS );
+    }
+
+
+    /**
+     * Compacts the file. Records at the end of the data are moved to
+     * free space before them, the pages left free at the end of the
+     * file are given back, and the file is truncated. Records are
+     * moved a few at a time, each batch committed in a transaction of
+     * its own, and the record manager is available in between.
+     * <p/>
+     * Compaction stops at the first record no free space fits, and the
+     * file doesn't shrink past its last page of rowid translations,
+     * which can't be moved.
+     *
+     * @param records the number of records moved per transaction.
+     * @throws IllegalStateException if the current transaction holds
+     *         changes, as they would be committed along.
+     */
+    public void compact( int records )
+        throws IOException
+    {
+        if ( records <= 0 )
+        {
+            throw new IllegalArgumentException( "Argument 'records' is invalid: "
+                + records );
+        }
+        boolean more = true;
+        while ( more )
+        {
+            long lsn;
+            _lock.lockExclusive();
+            try
+            {
+                checkIfClosed();
+                checkNoChanges();
+
+                more = compactRecords( records );
+                shrink();
+                lsn = commitToLog();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+            _file.waitForLog( lsn );
+        }
+
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+            checkNoChanges();
+
+            // the log is written to the file before it is truncated
+            long end = shrink();
+            commitToLog();
+            _file.truncate( end );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
 
-        _pageman.rollback();
+
+    /**
+     * Moves up to the indicated number of records from the end of the
+     * data to free space before it, dropping the free space left past
+     * the last record. Returns false once no more records can be
+     * moved. The caller holds the lock exclusively.
+     */
+    private boolean compactRecords( int records )
+        throws IOException
+    {
+        HashMap translations = _logMgr.getTranslations();
+        for ( int moved = 0; ; moved++ )
+        {
+            Location last = _physMgr.trim( translations.keySet() );
+            if ( last == null || moved == records )
+            {
+                return last != null;
+            }
+            Location loc = _physMgr.move( last );
+            if ( loc == null )
+            {
+                return false;
+            }
+            Location logRowId = (Location) translations.remove( last );
+            _logMgr.update( logRowId, loc );
+            translations.put( loc, logRowId );
+        }
+    }
+
+
+    /**
+     * Shrinks the file, and returns the number of blocks left. The
+     * caller holds the lock exclusively.
+     *
+     * @see PageManager#shrink
+     */
+    private long shrink()
+        throws IOException
+    {
+        // pages of the free lists may move, and the free space kept
+        // in memory, if any, know them by number.
+        _physMgr.flush();
+        long end = _pageman.shrink();
+        _physMgr.discard();
+        return end;
+    }
+
+
+    /**
+     * Starts an explicit transaction, on a handle of its own. Handles
+     * read the records as committed when their transaction started,
+     * keep their changes to themselves until they commit, and fail to
+     * commit changes that conflict with ones committed meanwhile.
+     *
+     * @throws IllegalStateException if the implicit transaction holds
+     *         changes whose committed images weren't kept.
+     * @see TransactionRecordManager
+     */
+    public RecordManager begin()
+        throws IOException
+    {
+        return new TransactionRecordManager( this );
+    }
+
+
+    /**
+     * Starts a transaction of the indicated handle.
+     */
+    void open( TransactionRecordManager txn )
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            start( txn, newSnapshot() );
+            _transactions.add( txn );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Reserves the id of a record inserted by the indicated handle. The
+     * record is written right away, in the implicit transaction, but
+     * only committed with the handle.
+     */
+    long reserve( TransactionRecordManager txn, byte[] data )
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            Long recid = new Long( _logMgr.insert( _physMgr.insert( data, 0, data.length ) ).toLong() );
+            _reservations.add( new Reservation( recid, txn ) );
+            txn._reserved.add( recid );
+            return recid.longValue();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Commits the transaction of the indicated handle, unless it
+     * conflicts with a transaction committed since it started, and
+     * starts the next one.
+     */
+    void commit( TransactionRecordManager txn )
+        throws IOException
+    {
+        long lsn;
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+            if ( !txn._lost.isEmpty() )
+            {
+                throw new TransactionConflictException(
+                    "Records inserted in the transaction were rolled back meanwhile" );
+            }
+            // committing would commit the direct changes too, which may
+            // also be to the same records and roots.
+            if ( !_pendingWrites.isEmpty() )
+            {
+                throw new TransactionConflictException(
+                    "Changes made directly through the record manager are uncommitted" );
+            }
+
+            HashSet keys = new HashSet();
+            for ( Iterator i = txn._writes.keySet().iterator(); i.hasNext(); )
+            {
+                keys.add( versionKey( ( (Long) i.next() ).longValue() ) );
+            }
+            for ( Iterator i = txn._roots.keySet().iterator(); i.hasNext(); )
+            {
+                keys.add( versionKey( -1 - ( (Integer) i.next() ).intValue() ) );
+            }
+            for ( Iterator i = keys.iterator(); i.hasNext(); )
+            {
+                Long version = (Long) _versions.get( i.next() );
+                if ( version != null && version.longValue() > txn._startVersion )
+                {
+                    throw new TransactionConflictException(
+                        "Changes conflict with a transaction committed meanwhile" );
+                }
+            }
+
+            for ( Iterator i = txn._writes.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) i.next();
+                long recid = ( (Long) entry.getKey() ).longValue();
+                byte[] data = (byte[]) entry.getValue();
+                if ( TransactionRecordManager.isDeleted( data ) )
+                {
+                    deleteRecord( recid );
+                }
+                else
+                {
+                    updateRecord( recid, data );
+                }
+            }
+            for ( Iterator i = txn._roots.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) i.next();
+                _pageman.getFileHeader().setRoot( ( (Integer) entry.getKey() ).intValue(),
+                                                  ( (Long) entry.getValue() ).longValue() );
+            }
+            _pendingWrites.addAll( keys );
+
+            lsn = commitToLog();
+            txn.clear();
+            stamp( _pendingWrites );
+            txn._snapshot.close();
+            start( txn, newSnapshot() );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        _file.waitForLog( lsn );
+    }
+
+
+    /**
+     * Rolls back the transaction of the indicated handle, and starts
+     * the next one.
+     */
+    void rollback( TransactionRecordManager txn )
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            checkIfClosed();
+
+            // may fail, with the handle left as it is
+            SnapshotRecordManager snapshot = newSnapshot();
+            discard( txn );
+            start( txn, snapshot );
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Rolls back the transaction of the indicated handle, and forgets
+     * about the handle.
+     */
+    void close( TransactionRecordManager txn )
+        throws IOException
+    {
+        _lock.lockExclusive();
+        try
+        {
+            _transactions.remove( txn );
+            if ( _file != null )
+            {
+                discard( txn );
+            }
+            prune();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Starts a transaction of the indicated handle, on the indicated
+     * snapshot of the last commit. The caller holds the lock
+     * exclusively.
+     */
+    private void start( TransactionRecordManager txn,
+                        SnapshotRecordManager snapshot )
+    {
+        txn._snapshot = snapshot;
+        txn._startVersion = _version;
+    }
+
+
+    /**
+     * Returns a view of the records as of the last commit. The caller
+     * holds the lock exclusively.
+     *
+     * @throws IllegalStateException if the implicit transaction holds
+     *         too many changes to tell the committed records.
+     */
+    private SnapshotRecordManager newSnapshot()
+    {
+        return new SnapshotRecordManager( _file, _file.snapshot(),
+                                          _physMgr, _logMgr,
+                                          _pageman.getFileHeader().getRootCount() );
+    }
+
+
+    /**
+     * Drops the changes of the transaction of the indicated handle,
+     * and the records it reserved, in the implicit transaction. The
+     * caller holds the lock exclusively.
+     */
+    private void discard( TransactionRecordManager txn )
+        throws IOException
+    {
+        for ( Iterator i = txn._reserved.iterator(); i.hasNext(); )
+        {
+            Long recid = (Long) i.next();
+            deleteRecord( recid.longValue() );
+
+            // find the reservation, if made in the implicit transaction
+            Reservation dropped = null;
+            for ( int n = _reservations.size() - 1; n >= 0 && dropped == null; n-- )
+            {
+                Reservation reservation = (Reservation) _reservations.get( n );
+                if ( reservation.txn == txn && reservation.recid.equals( recid ) )
+                {
+                    dropped = reservation;
+                    dropped.txn = null;
+                }
+            }
+            if ( dropped == null )
+            {
+                dropped = new Reservation( recid, null );
+            }
+            _drops.add( dropped );
+        }
+        txn.clear();
+        txn._snapshot.close();
+    }
+
+
+    /**
+     * Rolls back the reservations and drops of records by handles past
+     * the indicated numbers, along with the implicit transaction. The
+     * ids reserved are lost to the handles that still have them, and
+     * the drops are done again, unless the reservation went too. The
+     * caller holds the lock exclusively.
+     */
+    private void rollbackReservations( int reservations, int drops )
+        throws IOException
+    {
+        List undone = _reservations.subList( reservations, _reservations.size() );
+        List redone = _drops.subList( drops, _drops.size() );
+        ArrayList redo = new ArrayList( redone );
+        redone.clear();
+        for ( Iterator i = redo.iterator(); i.hasNext(); )
+        {
+            Reservation dropped = (Reservation) i.next();
+            if ( !undone.contains( dropped ) )
+            {
+                deleteRecord( dropped.recid.longValue() );
+                _drops.add( dropped );
+            }
+        }
+        for ( Iterator i = undone.iterator(); i.hasNext(); )
+        {
+            Reservation reservation = (Reservation) i.next();
+            if ( reservation.txn != null )
+            {
+                reservation.txn._reserved.remove( reservation.recid );
+                reservation.txn._lost.add( reservation.recid );
+            }
+        }
+        undone.clear();
+    }
+
+
+    /**
+     * Records the indicated records and roots as committed, for the
+     * handles that started before to check against. The caller holds
+     * the lock exclusively.
+     */
+    private void stamp( HashSet keys )
+    {
+        if ( !_transactions.isEmpty() && !keys.isEmpty() )
+        {
+            _version++;
+            Long version = new Long( _version );
+            for ( Iterator i = keys.iterator(); i.hasNext(); )
+            {
+                _versions.put( i.next(), version );
+            }
+        }
+        keys.clear();
+        prune();
+    }
+
+
+    /**
+     * Forgets the versions no open handle may conflict with anymore.
+     * The caller holds the lock exclusively.
+     */
+    private void prune()
+    {
+        if ( _transactions.isEmpty() )
+        {
+            _versions.clear();
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for ( int i = 0; i < _transactions.size(); i++ )
+        {
+            oldest = Math.min( oldest,
+                ( (TransactionRecordManager) _transactions.get( i ) )._startVersion );
+        }
+        for ( Iterator i = _versions.values().iterator(); i.hasNext(); )
+        {
+            if ( ( (Long) i.next() ).longValue() <= oldest )
+            {
+                i.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the key of a record id, or of a root id as -1 - id, in
+     * the versions kept for conflict checks.
+     */
+    private static Long versionKey( long id )
+    {
+        return new Long( id );
+    }
+
+
+    /**
+     * Writes the free space kept in memory, if any, and the current
+     * transaction to the log, and returns the log sequence number to
+     * wait for.
+     */
+    private long commitToLog()
+        throws IOException
+    {
+        _physMgr.flush();
+        long lsn = _pageman.commitToLog();
+        _reservations.clear();
+        _drops.clear();
+        _savepointMarks.clear();
+        return lsn;
     }
 
 
@@ -487,6 +1555,21 @@ public final class BaseRecordManager
     }
 
 
+    /**
+     * Checks that the current transaction holds no changes. If it
+     * does, throws an IllegalStateException.
+     */
+    private void checkNoChanges()
+        throws IllegalStateException
+    {
+        if ( _pageman.hasChanges() )
+        {
+            throw new IllegalStateException(
+                "Cannot compact the file with uncommitted changes" );
+        }
+    }
+
+
     /**
      * Check if RecordManager has been closed.  If so, throw an
      * IllegalStateException.
@@ -499,4 +1582,22 @@ public final class BaseRecordManager
             throw new IllegalStateException( "RecordManager has been closed" );
         }
     }
+
+
+    /**
+     * A record id reserved by a handle.
+     */
+    private static final class Reservation
+    {
+        final Long recid;
+
+        // the handle, or null once it dropped the record
+        TransactionRecordManager txn;
+
+        Reservation( Long recid, TransactionRecordManager txn )
+        {
+            this.recid = recid;
+            this.txn = txn;
+        }
+    }
 }
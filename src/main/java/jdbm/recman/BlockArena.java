@@ -0,0 +1,171 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Pool of block buffers carved out of large direct buffers, so that
+ * cached blocks live outside of the Java heap and don't add to the
+ * work of the garbage collector.
+ * <p/>
+ * Direct buffers are expensive to allocate and are only freed when
+ * collected, so the arena allocates them in chunks, slices them into
+ * blocks, and keeps released blocks for reuse rather than dropping
+ * them.
+ * <p/>
+ * Methods are *not* synchronized, so no concurrent access is allowed.
+ */
+final class BlockArena
+{
+
+    /**
+     * Default size, in bytes, of a chunk of direct memory.
+     */
+    final static int CHUNK_SIZE = 1024 * 1024;
+
+
+    /**
+     * Length of a block.
+     */
+    private final int _blockSize;
+
+
+    /**
+     * Number of blocks carved out of each chunk.
+     */
+    private final int _blocksPerChunk;
+
+
+    /**
+     * The chunk being carved, or null if none.
+     */
+    private ByteBuffer _chunk;
+
+
+    /**
+     * Released block buffers, ready for reuse.
+     */
+    private final ArrayList _free = new ArrayList();
+
+
+    /**
+     * Number of chunks allocated so far.
+     */
+    private int _chunks;
+
+
+    /**
+     * Constructs an arena handing out buffers of the indicated length.
+     */
+    BlockArena( int blockSize )
+    {
+        _blockSize = blockSize;
+        _blocksPerChunk = Math.max( 1, CHUNK_SIZE / blockSize );
+    }
+
+
+    /**
+     * Returns a zeroed buffer of one block, reusing a released one if
+     * possible.
+     */
+    ByteBuffer allocate()
+    {
+        if ( !_free.isEmpty() )
+        {
+            ByteBuffer buffer = (ByteBuffer) _free.remove( _free.size() - 1 );
+            for ( int pos = 0; pos < _blockSize; pos += 8 )
+            {
+                buffer.putLong( pos, 0L );
+            }
+            return buffer;
+        }
+        if ( _chunk == null || !_chunk.hasRemaining() )
+        {
+            _chunk = ByteBuffer.allocateDirect( _blocksPerChunk * _blockSize );
+            _chunks++;
+        }
+        _chunk.limit( _chunk.position() + _blockSize );
+        ByteBuffer buffer = _chunk.slice();
+        _chunk.position( _chunk.limit() );
+        _chunk.limit( _chunk.capacity() );
+        return buffer;
+    }
+
+
+    /**
+     * Takes back a buffer handed out by this arena.
+     */
+    void release( ByteBuffer buffer )
+    {
+        if ( buffer.isDirect() && buffer.capacity() == _blockSize )
+        {
+            _free.add( buffer );
+        }
+    }
+
+
+    /**
+     * Returns the number of released buffers ready for reuse.
+     */
+    int getFreeCount()
+    {
+        return _free.size();
+    }
+
+
+    /**
+     * Returns the number of bytes of direct memory allocated.
+     */
+    long getAllocatedSize()
+    {
+        return (long) _chunks * _blocksPerChunk * _blockSize;
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of clean, unused blocks for a {@link RecordFile}. Blocks are
+ * hashed by block id, so a lookup costs the same regardless of the
+ * size of the cache, and are kept in least-recently-used order so
+ * that the oldest block can be evicted when the cache is full.
+ * <p/>
+ * The cache is bounded by a number of blocks, which the record file
+ * derives from a byte budget. Evicted blocks are handed back to the
+ * caller in order for their buffers to be recycled.
+ * <p/>
+ * Methods are *not* synchronized, so no concurrent access is allowed.
+ */
+final class BlockCache
+{
+
+    /**
+     * Cached blocks, in least-recently-used order.
+     */
+    private final LinkedHashMap _blocks = new LinkedHashMap( 16, 0.75f, true );
+
+
+    /**
+     * Maximum number of blocks in the cache.
+     */
+    private int _max;
+
+
+    /**
+     * Constructs a cache holding at most the indicated number of blocks.
+     */
+    BlockCache( int max )
+    {
+        setMaximumSize( max );
+    }
+
+
+    /**
+     * Sets the maximum number of blocks in the cache. If the cache
+     * currently holds more blocks, the least recently used blocks are
+     * dropped.
+     */
+    void setMaximumSize( int max )
+    {
+        if ( max <= 0 )
+        {
+            throw new IllegalArgumentException(
+                "Block cache must contain at least one block" );
+        }
+        _max = max;
+        while ( _blocks.size() > _max )
+        {
+            evict();
+        }
+    }
+
+
+    /**
+     * Returns the maximum number of blocks in the cache.
+     */
+    int getMaximumSize()
+    {
+        return _max;
+    }
+
+
+    /**
+     * Returns the number of blocks in the cache.
+     */
+    int size()
+    {
+        return _blocks.size();
+    }
+
+
+    /**
+     * Returns true if the cache cannot take another block without
+     * evicting one.
+     */
+    boolean isFull()
+    {
+        return _blocks.size() >= _max;
+    }
+
+
+    /**
+     * Returns true if the indicated block is cached. Doesn't count as
+     * a use of the block.
+     */
+    boolean contains( long blockid )
+    {
+        return _blocks.containsKey( new Long( blockid ) );
+    }
+
+
+    /**
+     * Removes and returns the indicated block, or null if the block
+     * isn't cached.
+     */
+    BlockIo remove( long blockid )
+    {
+        return (BlockIo) _blocks.remove( new Long( blockid ) );
+    }
+
+
+    /**
+     * Places a block in the cache as the most recently used one. If the
+     * cache was full, the least recently used block is evicted and
+     * returned so that its buffer can be recycled; otherwise returns
+     * null.
+     */
+    BlockIo put( BlockIo block )
+    {
+        BlockIo evicted = null;
+        Long key = new Long( block.getBlockId() );
+        if ( _blocks.put( key, block ) == null && _blocks.size() > _max )
+        {
+            evicted = evict();
+        }
+        return evicted;
+    }
+
+
+    /**
+     * Removes and returns the least recently used block, or null if the
+     * cache is empty.
+     */
+    BlockIo evict()
+    {
+        Iterator i = _blocks.values().iterator();
+        if ( !i.hasNext() )
+        {
+            return null;
+        }
+        BlockIo block = (BlockIo) i.next();
+        i.remove();
+        return block;
+    }
+
+
+    /**
+     * Removes all blocks from the cache.
+     */
+    void clear()
+    {
+        _blocks.clear();
+    }
+
+}
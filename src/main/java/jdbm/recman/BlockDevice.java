@@ -0,0 +1,129 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+
+/**
+ * Storage for the blocks of a {@link RecordFile}. A block device
+ * reads and writes fixed size blocks identified by their block
+ * number; the block size is fixed when the device is created, and
+ * every buffer passed to a device is exactly one block long.
+ * <p/>
+ * Implementations are selected with the
+ * {@link jdbm.RecordManagerOptions#BLOCK_DEVICE} option. Besides the
+ * built-in devices, the option accepts the name of a class implementing
+ * this interface, which must have a public constructor taking the file
+ * name (a <code>String</code>) and the block size (an <code>int</code>).
+ * <p/>
+ * Devices are only used by one record file at a time, which does its
+ * own locking.
+ *
+ * @see RandomAccessFileDevice
+ * @see FileChannelDevice
+ * @see MappedDevice
+ * @see MemoryDevice
+ */
+public interface BlockDevice
+{
+
+    /**
+     * Reads the indicated block into the buffer.
+     *
+     * @return false if the block lies beyond the end of the device, in
+     *         which case the buffer is left untouched.
+     */
+    public boolean read( long blockid, byte[] buffer )
+        throws IOException;
+
+
+    /**
+     * Writes the buffer to the indicated block.
+     */
+    public void write( long blockid, byte[] buffer )
+        throws IOException;
+
+
+    /**
+     * Writes a batch of blocks. The first <code>count</code> entries of
+     * <code>blockids</code> give the block each buffer is written to.
+     */
+    public void write( long[] blockids, byte[][] buffers, int count )
+        throws IOException;
+
+
+    /**
+     * Forces all written blocks to stable storage.
+     */
+    public void sync()
+        throws IOException;
+
+
+    /**
+     * Returns the length of the device, in bytes.
+     */
+    public long length()
+        throws IOException;
+
+
+    /**
+     * Truncates the device to the indicated number of blocks, if
+     * longer. The blocks past the new end read as beyond the end
+     * until written again.
+     */
+    public void truncate( long blocks )
+        throws IOException;
+
+
+    /**
+     * Closes the device.
+     */
+    public void close()
+        throws IOException;
+
+}
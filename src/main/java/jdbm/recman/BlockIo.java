@@ -48,12 +48,18 @@
 package jdbm.recman;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
- * This class wraps a page-sized byte array and provides methods
+ * This class wraps a page-sized buffer and provides methods
  * to read and write data to and from it. The readers and writers
  * are just the ones that the rest of the toolkit needs, nothing else.
  * Values written are compatible with java.io routines.
+ * <p/>
+ * The buffer is either a byte array on the heap, or a slice of a
+ * direct buffer handed out by a {@link BlockArena}, in which case the
+ * data lives outside of the Java heap.
  *
  * @see java.io.DataInput
  * @see java.io.DataOutput
@@ -65,10 +71,31 @@ public final class BlockIo implements java.io.Externalizable
 
     private long blockId;
 
-    private transient byte[] data; // work area
+    private transient ByteBuffer buffer; // work area
+    private transient byte[] data; // its array, if on the heap
     private transient BlockView view = null;
     private transient boolean dirty = false;
     private transient int transactionCount = 0;
+    private transient int pinCount = 0;
+    private transient IOException failure = null; // if it couldn't be read
+    private final transient Latch latch = new Latch();
+
+    /**
+     * Maximum number of modified ranges tracked per block. Past it,
+     * the ranges collapse into one that covers them all.
+     */
+    static final int MAX_RANGES = 8;
+
+    /**
+     * Ranges that are closer than this, in bytes, are tracked as one.
+     */
+    static final int RANGE_GAP = 8;
+
+    // byte ranges modified since the block was last clean, as pairs of
+    // start and end offsets, or the whole block if wholeModified is set.
+    private transient int[] ranges;
+    private transient int rangeCount = 0;
+    private transient boolean wholeModified = false;
 
     /**
      * Default constructor for serialization
@@ -83,22 +110,92 @@ public final class BlockIo implements java.io.Externalizable
      * buffer.
      */
     BlockIo( long blockId, byte[] data )
+    {
+        this( blockId, ByteBuffer.wrap( data ) );
+    }
+
+    /**
+     * Constructs a new BlockIo instance working on the indicated
+     * buffer, which covers exactly one block.
+     */
+    BlockIo( long blockId, ByteBuffer buffer )
     {
         // removeme for production version
         if ( blockId > 10000000000L )
             throw new Error( "bogus block id " + blockId );
         this.blockId = blockId;
-        this.data = data;
+        setBuffer( buffer );
+    }
+
+    /**
+     * Sets the underlying buffer.
+     */
+    private void setBuffer( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+        this.data = buffer.hasArray() && buffer.arrayOffset() == 0
+            && buffer.capacity() == buffer.array().length
+            ? buffer.array() : null;
     }
 
     /**
-     * Returns the underlying array
+     * Returns the underlying array. Only blocks kept on the heap have
+     * one; use the bulk accessors for blocks that may be off-heap.
      */
     byte[] getData()
     {
+        if ( data == null )
+        {
+            throw new IllegalStateException( "Block " + blockId
+                + " is not stored on the heap" );
+        }
         return data;
     }
 
+    /**
+     * Returns the underlying buffer.
+     */
+    ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Returns true if the block is stored on the heap, and thus has
+     * an underlying array.
+     */
+    boolean hasArray()
+    {
+        return data != null;
+    }
+
+    /**
+     * Returns the size of the block available to views, in bytes. This
+     * is the length of the block, less any trailer reserved by the
+     * record file.
+     */
+    public int getSize()
+    {
+        return buffer.limit();
+    }
+
+    /**
+     * Returns the length of the whole block, in bytes.
+     */
+    int getLength()
+    {
+        return buffer.capacity();
+    }
+
+    /**
+     * Reserves the indicated number of bytes at the end of the block,
+     * out of reach of views.
+     */
+    void reserveTrailer( int size )
+    {
+        buffer.limit( buffer.capacity() - size );
+    }
+
     /**
      * Sets the block number. Should only be called by RecordFile.
      */
@@ -137,19 +234,113 @@ public final class BlockIo implements java.io.Externalizable
     }
 
     /**
-     * Sets the dirty flag
+     * Sets the dirty flag. As it isn't known what was changed, the
+     * whole block counts as modified.
      */
     void setDirty()
     {
         dirty = true;
+        wholeModified = true;
     }
 
     /**
-     * Clears the dirty flag
+     * Clears the dirty flag, and forgets about modified ranges.
      */
     void setClean()
     {
         dirty = false;
+        resetModified();
+    }
+
+    /**
+     * Sets the dirty flag, and records the indicated range as modified.
+     */
+    private void setDirty( int pos, int length )
+    {
+        dirty = true;
+        if ( wholeModified || length == 0 )
+        {
+            return;
+        }
+        if ( ranges == null )
+        {
+            ranges = new int[ 2 * MAX_RANGES ];
+        }
+        int start = pos;
+        int end = pos + length;
+
+        // absorb the ranges this one overlaps or nearly touches
+        int i = 0;
+        while ( i < rangeCount )
+        {
+            int s = ranges[ 2 * i ];
+            int e = ranges[ 2 * i + 1 ];
+            if ( s <= end + RANGE_GAP && start <= e + RANGE_GAP )
+            {
+                start = Math.min( start, s );
+                end = Math.max( end, e );
+                rangeCount--;
+                ranges[ 2 * i ] = ranges[ 2 * rangeCount ];
+                ranges[ 2 * i + 1 ] = ranges[ 2 * rangeCount + 1 ];
+            }
+            else
+            {
+                i++;
+            }
+        }
+        if ( rangeCount == MAX_RANGES )
+        {
+            for ( i = 0; i < rangeCount; i++ )
+            {
+                start = Math.min( start, ranges[ 2 * i ] );
+                end = Math.max( end, ranges[ 2 * i + 1 ] );
+            }
+            rangeCount = 0;
+        }
+        ranges[ 2 * rangeCount ] = start;
+        ranges[ 2 * rangeCount + 1 ] = end;
+        rangeCount++;
+    }
+
+    /**
+     * Returns the byte ranges modified since the block was last clean,
+     * as pairs of start and end offsets sorted by start, or null if
+     * the whole block counts as modified.
+     */
+    int[] getModifiedRanges()
+    {
+        if ( wholeModified )
+        {
+            return null;
+        }
+        int[] result = new int[ 2 * rangeCount ];
+        System.arraycopy( ranges == null ? result : ranges, 0, result, 0,
+                          result.length );
+        // few ranges; insertion sort by start
+        for ( int i = 1; i < rangeCount; i++ )
+        {
+            int s = result[ 2 * i ];
+            int e = result[ 2 * i + 1 ];
+            int j = i - 1;
+            while ( j >= 0 && result[ 2 * j ] > s )
+            {
+                result[ 2 * j + 2 ] = result[ 2 * j ];
+                result[ 2 * j + 3 ] = result[ 2 * j + 1 ];
+                j--;
+            }
+            result[ 2 * j + 2 ] = s;
+            result[ 2 * j + 3 ] = e;
+        }
+        return result;
+    }
+
+    /**
+     * Forgets about modified ranges.
+     */
+    private void resetModified()
+    {
+        rangeCount = 0;
+        wholeModified = false;
     }
 
     /**
@@ -178,7 +369,8 @@ public final class BlockIo implements java.io.Externalizable
     {
         transactionCount++;
         // @fixme(alex)
-        setClean();
+        // modified ranges are kept until the transaction is logged.
+        dirty = false;
     }
 
     /**
@@ -194,12 +386,155 @@ public final class BlockIo implements java.io.Externalizable
 
     }
 
+    /**
+     * Returns the latch guarding the contents of the block while it
+     * is in use.
+     */
+    Latch getLatch()
+    {
+        return latch;
+    }
+
+    /**
+     * Pins the block in memory, for one more user. Should only be
+     * called by RecordFile.
+     */
+    void pin()
+    {
+        pinCount++;
+    }
+
+    /**
+     * Unpins the block, and returns the number of users left.
+     */
+    int unpin()
+    {
+        if ( pinCount == 0 )
+            throw new Error( "block " + blockId + " not pinned" );
+        return --pinCount;
+    }
+
+    /**
+     * Marks the block as failed to be read, with the indicated
+     * exception. Should only be called by RecordFile.
+     */
+    void setFailure( IOException failure )
+    {
+        this.failure = failure;
+    }
+
+    /**
+     * Returns the exception the block failed to be read with, or null.
+     */
+    IOException getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Fills the block with zeroes. Doesn't set the dirty flag, but
+     * the whole block counts as modified.
+     */
+    void clearData()
+    {
+        wholeModified = true;
+        if ( data != null )
+        {
+            Arrays.fill( data, (byte) 0 );
+        }
+        else
+        {
+            ByteBuffer dup = buffer.duplicate();
+            dup.clear();
+            while ( dup.remaining() >= Magic.SZ_LONG )
+            {
+                dup.putLong( 0L );
+            }
+            while ( dup.hasRemaining() )
+            {
+                dup.put( (byte) 0 );
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the block with the indicated bytes,
+     * which cover a whole block. Doesn't set the dirty flag, and
+     * forgets about modified ranges.
+     */
+    void load( byte[] src )
+    {
+        resetModified();
+        if ( data != null )
+        {
+            System.arraycopy( src, 0, data, 0, data.length );
+        }
+        else
+        {
+            ByteBuffer dup = buffer.duplicate();
+            dup.clear();
+            dup.put( src, 0, dup.capacity() );
+        }
+    }
+
+    /**
+     * Copies the contents of the whole block into the indicated array.
+     */
+    void copyTo( byte[] dst )
+    {
+        if ( data != null )
+        {
+            System.arraycopy( data, 0, dst, 0, data.length );
+        }
+        else
+        {
+            ByteBuffer dup = buffer.duplicate();
+            dup.clear();
+            dup.get( dst, 0, dup.capacity() );
+        }
+    }
+
+    /**
+     * Reads a range of bytes from the indicated position
+     */
+    public void readBytes( int pos, byte[] dst, int offset, int length )
+    {
+        if ( data != null )
+        {
+            System.arraycopy( data, pos, dst, offset, length );
+        }
+        else
+        {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position( pos );
+            dup.get( dst, offset, length );
+        }
+    }
+
+    /**
+     * Writes a range of bytes to the indicated position
+     */
+    public void writeBytes( int pos, byte[] src, int offset, int length )
+    {
+        if ( data != null )
+        {
+            System.arraycopy( src, offset, data, pos, length );
+        }
+        else
+        {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position( pos );
+            dup.put( src, offset, length );
+        }
+        setDirty( pos, length );
+    }
+
     /**
      * Reads a byte from the indicated position
      */
     public byte readByte( int pos )
     {
-        return data[pos];
+        return buffer.get( pos );
     }
 
     /**
@@ -207,8 +542,8 @@ public final class BlockIo implements java.io.Externalizable
      */
     public void writeByte( int pos, byte value )
     {
-        data[pos] = value;
-        setDirty();
+        buffer.put( pos, value );
+        setDirty( pos, Magic.SZ_BYTE );
     }
 
     /**
@@ -216,9 +551,7 @@ public final class BlockIo implements java.io.Externalizable
      */
     public short readShort( int pos )
     {
-        return (short)
-            ( ( (short) ( data[pos + 0] & 0xff ) << 8 ) |
-                ( (short) ( data[pos + 1] & 0xff ) << 0 ) );
+        return buffer.getShort( pos );
     }
 
     /**
@@ -226,9 +559,8 @@ public final class BlockIo implements java.io.Externalizable
      */
     public void writeShort( int pos, short value )
     {
-        data[pos + 0] = (byte) ( 0xff & ( value >> 8 ) );
-        data[pos + 1] = (byte) ( 0xff & ( value >> 0 ) );
-        setDirty();
+        buffer.putShort( pos, value );
+        setDirty( pos, Magic.SZ_SHORT );
     }
 
     /**
@@ -236,11 +568,7 @@ public final class BlockIo implements java.io.Externalizable
      */
     public int readInt( int pos )
     {
-        return
-            ( ( (int) ( data[pos + 0] & 0xff ) << 24 ) |
-                ( (int) ( data[pos + 1] & 0xff ) << 16 ) |
-                ( (int) ( data[pos + 2] & 0xff ) << 8 ) |
-                ( (int) ( data[pos + 3] & 0xff ) << 0 ) );
+        return buffer.getInt( pos );
     }
 
     /**
@@ -248,11 +576,8 @@ public final class BlockIo implements java.io.Externalizable
      */
     public void writeInt( int pos, int value )
     {
-        data[pos + 0] = (byte) ( 0xff & ( value >> 24 ) );
-        data[pos + 1] = (byte) ( 0xff & ( value >> 16 ) );
-        data[pos + 2] = (byte) ( 0xff & ( value >> 8 ) );
-        data[pos + 3] = (byte) ( 0xff & ( value >> 0 ) );
-        setDirty();
+        buffer.putInt( pos, value );
+        setDirty( pos, Magic.SZ_INT );
     }
 
     /**
@@ -260,28 +585,7 @@ public final class BlockIo implements java.io.Externalizable
      */
     public long readLong( int pos )
     {
-        // Contributed by Erwin Bolwidt <ejb@klomp.org>
-        // Gives about 15% performance improvement
-        return
-            ( (long) ( ( ( data[pos + 0] & 0xff ) << 24 ) |
-                ( ( data[pos + 1] & 0xff ) << 16 ) |
-                ( ( data[pos + 2] & 0xff ) << 8 ) |
-                ( ( data[pos + 3] & 0xff ) ) ) << 32 ) |
-                ( (long) ( ( ( data[pos + 4] & 0xff ) << 24 ) |
-                    ( ( data[pos + 5] & 0xff ) << 16 ) |
-                    ( ( data[pos + 6] & 0xff ) << 8 ) |
-                    ( ( data[pos + 7] & 0xff ) ) ) & 0xffffffff );
-        /* Original version by Alex Boisvert.  Might be faster on 64-bit JVMs.
-        return
-            (((long)(data[pos+0] & 0xff) << 56) |
-             ((long)(data[pos+1] & 0xff) << 48) |
-             ((long)(data[pos+2] & 0xff) << 40) |
-             ((long)(data[pos+3] & 0xff) << 32) |
-             ((long)(data[pos+4] & 0xff) << 24) |
-             ((long)(data[pos+5] & 0xff) << 16) |
-             ((long)(data[pos+6] & 0xff) <<  8) |
-             ((long)(data[pos+7] & 0xff) <<  0));
-        */
+        return buffer.getLong( pos );
     }
 
     /**
@@ -289,15 +593,8 @@ public final class BlockIo implements java.io.Externalizable
      */
     public void writeLong( int pos, long value )
     {
-        data[pos + 0] = (byte) ( 0xff & ( value >> 56 ) );
-        data[pos + 1] = (byte) ( 0xff & ( value >> 48 ) );
-        data[pos + 2] = (byte) ( 0xff & ( value >> 40 ) );
-        data[pos + 3] = (byte) ( 0xff & ( value >> 32 ) );
-        data[pos + 4] = (byte) ( 0xff & ( value >> 24 ) );
-        data[pos + 5] = (byte) ( 0xff & ( value >> 16 ) );
-        data[pos + 6] = (byte) ( 0xff & ( value >> 8 ) );
-        data[pos + 7] = (byte) ( 0xff & ( value >> 0 ) );
-        setDirty();
+        buffer.putLong( pos, value );
+        setDirty( pos, Magic.SZ_LONG );
     }
 
     // overrides java.lang.Object
@@ -316,16 +613,26 @@ public final class BlockIo implements java.io.Externalizable
     {
         blockId = in.readLong();
         int length = in.readInt();
-        data = new byte[length];
-        in.readFully( data );
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        setBuffer( ByteBuffer.wrap( bytes ) );
     }
 
     // implement externalizable interface
     public void writeExternal( ObjectOutput out ) throws IOException
     {
         out.writeLong( blockId );
-        out.writeInt( data.length );
-        out.write( data );
+        out.writeInt( buffer.capacity() );
+        if ( data != null )
+        {
+            out.write( data );
+        }
+        else
+        {
+            byte[] bytes = new byte[ buffer.capacity() ];
+            copyTo( bytes );
+            out.write( bytes );
+        }
     }
 
 }
@@ -0,0 +1,386 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Background reader for a {@link RecordFile}. Callers hint the ids of
+ * blocks they expect to read shortly; a daemon thread reads them from
+ * the block device and stages their contents, so that the record file
+ * can pick them up without waiting on the disk.
+ * <p/>
+ * Staged blocks mirror the device, not the record file: the record
+ * file must {@link #invalidate} any block it writes to the device, and
+ * must only consult the prefetcher for blocks it doesn't hold itself.
+ * <p/>
+ * Devices need not be thread-safe, so every device access, here and
+ * in the record file, is synchronized on the device.
+ * <p/>
+ * The reader thread is started on the first hint, and is never
+ * interrupted, since an interrupt would close a channel based device.
+ */
+final class BlockPrefetcher
+    implements Runnable
+{
+
+    /**
+     * The device blocks are read from.
+     */
+    private final BlockDevice _device;
+
+
+    /**
+     * Length of a block.
+     */
+    private final int _blockSize;
+
+
+    /**
+     * Maximum number of blocks pending and staged together.
+     */
+    private int _max;
+
+
+    /**
+     * Hinted block ids not read yet, in hint order.
+     */
+    private final LinkedHashSet _pending = new LinkedHashSet();
+
+
+    /**
+     * Blocks read ahead, block id to contents, oldest first.
+     */
+    private final LinkedHashMap _staged = new LinkedHashMap();
+
+
+    /**
+     * Block currently being read by the reader thread, or -1.
+     */
+    private long _inFlight = -1;
+
+
+    /**
+     * True if the block being read was written in the meantime.
+     */
+    private boolean _inFlightStale;
+
+
+    /**
+     * The reader thread, or null if not started.
+     */
+    private Thread _thread;
+
+
+    /**
+     * True once the prefetcher is closed.
+     */
+    private boolean _closed;
+
+
+    /**
+     * Constructs a prefetcher for the indicated device, staging at most
+     * the indicated number of blocks.
+     */
+    BlockPrefetcher( BlockDevice device, int blockSize, int max )
+    {
+        _device = device;
+        _blockSize = blockSize;
+        setMaximumSize( max );
+    }
+
+
+    /**
+     * Sets the maximum number of blocks pending and staged together.
+     */
+    synchronized void setMaximumSize( int max )
+    {
+        if ( max <= 0 )
+        {
+            throw new IllegalArgumentException(
+                "Prefetcher must stage at least one block" );
+        }
+        _max = max;
+        while ( _pending.size() + _staged.size() > _max )
+        {
+            if ( !_pending.isEmpty() )
+            {
+                removeLast( _pending.iterator() );
+            }
+            else
+            {
+                removeFirst( _staged.keySet().iterator() );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the maximum number of blocks pending and staged together.
+     */
+    synchronized int getMaximumSize()
+    {
+        return _max;
+    }
+
+
+    /**
+     * Hints that the indicated block will be read shortly. When the
+     * prefetcher is full, the oldest staged block is dropped to make
+     * room; if nothing is staged, the hint is ignored.
+     */
+    synchronized void hint( long blockid )
+    {
+        if ( _closed || blockid == _inFlight )
+        {
+            return;
+        }
+        Long key = new Long( blockid );
+        if ( _pending.contains( key ) || _staged.containsKey( key ) )
+        {
+            return;
+        }
+        if ( _pending.size() + _staged.size() >= _max )
+        {
+            if ( _staged.isEmpty() )
+            {
+                return;
+            }
+            removeFirst( _staged.keySet().iterator() );
+        }
+        _pending.add( key );
+
+        if ( _thread == null )
+        {
+            _thread = new Thread( this, "JDBM prefetch" );
+            _thread.setDaemon( true );
+            _thread.start();
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * Takes the staged contents of the indicated block, waiting if the
+     * block is being read. Returns null if the block isn't staged; in
+     * that case it is no longer pending either, and the caller reads
+     * it itself.
+     */
+    synchronized byte[] take( long blockid )
+    {
+        Long key = new Long( blockid );
+        _pending.remove( key );
+        while ( _inFlight == blockid )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException except )
+            {
+                // the caller reads the block itself.
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return (byte[]) _staged.remove( key );
+    }
+
+
+    /**
+     * Forgets what is known about the indicated block, because it has
+     * been written to the device.
+     */
+    synchronized void invalidate( long blockid )
+    {
+        Long key = new Long( blockid );
+        _pending.remove( key );
+        _staged.remove( key );
+        if ( _inFlight == blockid )
+        {
+            _inFlightStale = true;
+        }
+    }
+
+
+    /**
+     * Forgets all pending and staged blocks.
+     */
+    synchronized void clear()
+    {
+        _pending.clear();
+        _staged.clear();
+        _inFlightStale = true;
+    }
+
+
+    /**
+     * Returns the number of staged blocks.
+     */
+    synchronized int size()
+    {
+        return _staged.size();
+    }
+
+
+    /**
+     * Stops the reader thread and waits for it to finish its current
+     * read, so that the device can be closed safely.
+     */
+    void close()
+    {
+        Thread thread;
+        synchronized ( this )
+        {
+            _closed = true;
+            _pending.clear();
+            _staged.clear();
+            thread = _thread;
+            notifyAll();
+        }
+        if ( thread != null )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException except )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Reads hinted blocks until closed.
+     */
+    public void run()
+    {
+        while ( true )
+        {
+            long blockid;
+            synchronized ( this )
+            {
+                while ( !_closed && _pending.isEmpty() )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException except )
+                    {
+                        // keep going until closed.
+                    }
+                }
+                if ( _closed )
+                {
+                    return;
+                }
+                Iterator i = _pending.iterator();
+                blockid = ( (Long) i.next() ).longValue();
+                i.remove();
+                _inFlight = blockid;
+                _inFlightStale = false;
+            }
+
+            byte[] data = new byte[ _blockSize ];
+            boolean found;
+            try
+            {
+                synchronized ( _device )
+                {
+                    found = _device.read( blockid, data );
+                }
+            }
+            catch ( IOException except )
+            {
+                // prefetching is only a hint; the reader of the block
+                // will get the error when it reads the block itself.
+                found = false;
+            }
+
+            synchronized ( this )
+            {
+                if ( found && !_inFlightStale && !_closed )
+                {
+                    _staged.put( new Long( blockid ), data );
+                }
+                _inFlight = -1;
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Removes the first element of an iteration.
+     */
+    private static void removeFirst( Iterator i )
+    {
+        i.next();
+        i.remove();
+    }
+
+
+    /**
+     * Removes the last element of an iteration.
+     */
+    private static void removeLast( Iterator i )
+    {
+        while ( i.hasNext() )
+        {
+            i.next();
+        }
+        i.remove();
+    }
+
+}
@@ -358,6 +358,20 @@ public class CacheRecordManager
     }
 
 
+    /**
+     * Returns a read-only view of the records as of the last commit.
+     * Records updated in the cache but not committed aren't part of
+     * it.
+     */
+    public synchronized RecordManager snapshot()
+        throws IOException
+    {
+        checkIfClosed();
+
+        return _recman.snapshot();
+    }
+
+
     /**
      * Rollback (cancel) all changes since beginning of transaction.
      */
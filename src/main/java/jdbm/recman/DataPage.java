@@ -55,7 +55,15 @@ final class DataPage extends PageHeader
     // offsets
     private static final short O_FIRST = PageHeader.SIZE; // short firstrowid
     static final short O_DATA = (short) ( O_FIRST + Magic.SZ_SHORT );
-    static final short DATA_PER_PAGE = (short) ( RecordFile.BLOCK_SIZE - O_DATA );
+
+    /**
+     * Returns the number of data bytes on a page of the indicated
+     * block size.
+     */
+    static int dataPerPage( int blockSize )
+    {
+        return blockSize - O_DATA;
+    }
 
     /**
      * Constructs a data page view from the indicated block.
@@ -0,0 +1,188 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Block device using positional {@link FileChannel} I/O. Reads and
+ * writes don't move a shared file pointer, so each block costs a single
+ * system call instead of a seek plus a read or write.
+ * <p/>
+ * Batches of blocks with consecutive ids are coalesced into a single
+ * gathering write, so a sorted batch costs one system call per run of
+ * adjacent blocks.
+ */
+public final class FileChannelDevice
+    implements BlockDevice
+{
+    /**
+     * Maximum number of blocks in one gathering write.
+     */
+    static final int MAX_RUN = 128;
+
+    private final RandomAccessFile _file;
+    private final FileChannel _channel;
+    private final int _blockSize;
+
+    /**
+     * Opens or creates the indicated file in read/write mode.
+     */
+    public FileChannelDevice( String fileName, int blockSize )
+        throws IOException
+    {
+        _file = new RandomAccessFile( fileName, "rw" );
+        _channel = _file.getChannel();
+        _blockSize = blockSize;
+    }
+
+    public boolean read( long blockid, byte[] buffer )
+        throws IOException
+    {
+        long offset = blockid * _blockSize;
+        long length = _channel.size();
+        if ( offset >= length )
+        {
+            return false;
+        }
+        ByteBuffer bb = ByteBuffer.wrap( buffer, 0, _blockSize );
+        while ( bb.hasRemaining() )
+        {
+            int read = _channel.read( bb, offset + bb.position() );
+            if ( read == -1 )
+            {
+                Arrays.fill( buffer, bb.position(), _blockSize, (byte) 0 );
+                break;
+            }
+        }
+        return true;
+    }
+
+    public void write( long blockid, byte[] buffer )
+        throws IOException
+    {
+        long offset = blockid * _blockSize;
+        ByteBuffer bb = ByteBuffer.wrap( buffer, 0, _blockSize );
+        while ( bb.hasRemaining() )
+        {
+            _channel.write( bb, offset + bb.position() );
+        }
+    }
+
+    public void write( long[] blockids, byte[][] buffers, int count )
+        throws IOException
+    {
+        int start = 0;
+        while ( start < count )
+        {
+            int end = start + 1;
+            while ( end < count && end - start < MAX_RUN
+                    && blockids[end] == blockids[end - 1] + 1 )
+            {
+                end++;
+            }
+            if ( end - start == 1 )
+            {
+                write( blockids[start], buffers[start] );
+            }
+            else
+            {
+                writeRun( blockids[start], buffers, start, end - start );
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Writes a run of adjacent blocks with a single gathering write.
+     */
+    private void writeRun( long blockid, byte[][] buffers, int offset, int length )
+        throws IOException
+    {
+        ByteBuffer[] run = new ByteBuffer[ length ];
+        for ( int i = 0; i < length; i++ )
+        {
+            run[i] = ByteBuffer.wrap( buffers[offset + i], 0, _blockSize );
+        }
+        long remaining = (long) length * _blockSize;
+        _channel.position( blockid * _blockSize );
+        while ( remaining > 0 )
+        {
+            remaining -= _channel.write( run );
+        }
+    }
+
+    public void sync()
+        throws IOException
+    {
+        _channel.force( false );
+    }
+
+    public long length()
+        throws IOException
+    {
+        return _channel.size();
+    }
+
+    public void truncate( long blocks )
+        throws IOException
+    {
+        _channel.truncate( blocks * _blockSize );
+    }
+
+    public void close()
+        throws IOException
+    {
+        _file.close();
+    }
+
+}
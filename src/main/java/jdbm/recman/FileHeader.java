@@ -50,40 +50,139 @@ package jdbm.recman;
 /**
  * This class represents a file header. It is a 1:1 representation of
  * the data that appears in block 0 of a file.
+ * <p/>
+ * Files created before the block size was configurable have a header
+ * with the {@link Magic#FILE_HEADER} magic, and always use blocks of
+ * {@link RecordFile#BLOCK_SIZE} bytes. Newer files have the
+ * {@link Magic#FILE_HEADER_V2} magic, followed by the block size and
+ * a set of flags for optional features of the file format. Files that
+ * keep their free physical rowids by size class have a list for each
+ * class after the other lists, and fewer roots.
  */
 class FileHeader implements BlockView
 {
     // offsets
     private static final short O_MAGIC = 0; // short magic
-    private static final short O_LISTS = Magic.SZ_SHORT; // long[2*NLISTS]
-    private static final int O_ROOTS =
-        O_LISTS + ( Magic.NLISTS * 2 * Magic.SZ_LONG );
+    private static final short O_BLOCKSIZE = Magic.SZ_SHORT; // int blockSize, v2 only
+    private static final short O_FLAGS = O_BLOCKSIZE + Magic.SZ_INT; // int flags, v2 only
+    private static final short O_LISTS_V1 = Magic.SZ_SHORT; // long[2*NLISTS]
+    private static final short O_LISTS_V2 = O_FLAGS + Magic.SZ_INT; // long[2*NLISTS]
+
+    /**
+     * Flag set if every block of the file ends with a checksum.
+     */
+    static final int FLAG_CHECKSUMS = 1;
+
+    /**
+     * Flag set if free physical rowids are kept in a list per size
+     * class.
+     */
+    static final int FLAG_SIZE_CLASSES = 2;
+
+    // offsets of the lists and roots in this header
+    private final short _lists;
+    private final int _roots;
 
     // my block
     private BlockIo block;
 
     /**
-     * The number of "root" rowids available in the file.
+     * Constructs a FileHeader object from a block.
+     *
+     * @param block The block that contains the file header
+     * @param isNew If true, the file header is for a new file.
+     * @throws IOException if the block is too short to keep the file
+     *                     header.
      */
-    static final int NROOTS =
-        ( RecordFile.BLOCK_SIZE - O_ROOTS ) / Magic.SZ_LONG;
+    FileHeader( BlockIo block, boolean isNew )
+    {
+        this( block, isNew, 0 );
+    }
 
     /**
      * Constructs a FileHeader object from a block.
      *
      * @param block The block that contains the file header
      * @param isNew If true, the file header is for a new file.
+     * @param flags The flags of a new file; ignored for an existing one.
      * @throws IOException if the block is too short to keep the file
      *                     header.
      */
-    FileHeader( BlockIo block, boolean isNew )
+    FileHeader( BlockIo block, boolean isNew, int flags )
     {
         this.block = block;
         if ( isNew )
-            block.writeShort( O_MAGIC, Magic.FILE_HEADER );
+        {
+            block.writeShort( O_MAGIC, Magic.FILE_HEADER_V2 );
+            block.writeInt( O_BLOCKSIZE, block.getLength() );
+            block.writeInt( O_FLAGS, flags );
+        }
         else if ( !magicOk() )
             throw new Error( "CRITICAL: file header magic not OK "
                 + block.readShort( O_MAGIC ) );
+        else if ( getBlockSize( block ) != block.getLength() )
+            throw new Error( "CRITICAL: file header block size "
+                + getBlockSize( block ) + " does not match block of "
+                + block.getLength() + " bytes" );
+
+        _lists = isV2() ? O_LISTS_V2 : O_LISTS_V1;
+        int lists = Magic.NLISTS;
+        if ( hasSizeClasses() )
+        {
+            lists += Magic.NSIZE_CLASSES;
+        }
+        _roots = _lists + ( lists * 2 * Magic.SZ_LONG );
+    }
+
+    /**
+     * Returns the block size recorded in the indicated header block,
+     * or 0 if the block does not hold a file header. Only the first
+     * bytes of the block are looked at, so the block may be shorter
+     * than the actual block size.
+     */
+    static int getBlockSize( BlockIo block )
+    {
+        short magic = block.readShort( O_MAGIC );
+        if ( magic == Magic.FILE_HEADER )
+        {
+            return RecordFile.BLOCK_SIZE;
+        }
+        if ( magic == Magic.FILE_HEADER_V2 )
+        {
+            return block.readInt( O_BLOCKSIZE );
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the flags recorded in the indicated header block, or 0 if
+     * the header has none. Only the first bytes of the block are
+     * looked at.
+     */
+    static int getFlags( BlockIo block )
+    {
+        if ( block.readShort( O_MAGIC ) == Magic.FILE_HEADER_V2 )
+        {
+            return block.readInt( O_FLAGS );
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the flags of the file.
+     */
+    int getFlags()
+    {
+        return getFlags( block );
+    }
+
+    /**
+     * Returns true if free physical rowids are kept in a list per size
+     * class.
+     */
+    boolean hasSizeClasses()
+    {
+        return ( getFlags() & FLAG_SIZE_CLASSES ) != 0;
     }
 
     /**
@@ -91,7 +190,16 @@ class FileHeader implements BlockView
      */
     private boolean magicOk()
     {
-        return block.readShort( O_MAGIC ) == Magic.FILE_HEADER;
+        short magic = block.readShort( O_MAGIC );
+        return magic == Magic.FILE_HEADER || magic == Magic.FILE_HEADER_V2;
+    }
+
+    /**
+     * Returns true if the header records its block size.
+     */
+    private boolean isV2()
+    {
+        return block.readShort( O_MAGIC ) == Magic.FILE_HEADER_V2;
     }
 
 
@@ -100,7 +208,7 @@ class FileHeader implements BlockView
      */
     private short offsetOfFirst( int list )
     {
-        return (short) ( O_LISTS + ( 2 * Magic.SZ_LONG * list ) );
+        return (short) ( _lists + ( 2 * Magic.SZ_LONG * list ) );
     }
 
     /**
@@ -116,7 +224,15 @@ class FileHeader implements BlockView
      */
     private short offsetOfRoot( int root )
     {
-        return (short) ( O_ROOTS + ( root * Magic.SZ_LONG ) );
+        return (short) ( _roots + ( root * Magic.SZ_LONG ) );
+    }
+
+    /**
+     * Returns the number of "root" rowids available in the file.
+     */
+    int getRootCount()
+    {
+        return ( block.getSize() - _roots ) / Magic.SZ_LONG;
     }
 
     /**
@@ -158,7 +274,7 @@ class FileHeader implements BlockView
      * block header is wasted anyway, it's more useful to store it were
      * it belongs.
      *
-     * @see NROOTS
+     * @see #getRootCount
      */
     long getRoot( int root )
     {
@@ -169,7 +285,7 @@ class FileHeader implements BlockView
      * Sets the indicated root rowid.
      *
      * @see getRoot
-     * @see NROOTS
+     * @see #getRootCount
      */
     void setRoot( int root, long rowid )
     {
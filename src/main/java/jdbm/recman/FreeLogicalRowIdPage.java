@@ -58,11 +58,12 @@ class FreeLogicalRowIdPage extends PageHeader
     // offsets
     private static final short O_COUNT = PageHeader.SIZE; // short count
     static final short O_FREE = (short) ( O_COUNT + Magic.SZ_SHORT );
-    static final short ELEMS_PER_PAGE = (short)
-        ( ( RecordFile.BLOCK_SIZE - O_FREE ) / PhysicalRowId.SIZE );
+
+    // number of slots on the page.
+    final int elemsPerPage;
 
     // slots we returned.
-    final PhysicalRowId[] slots = new PhysicalRowId[ELEMS_PER_PAGE];
+    final PhysicalRowId[] slots;
 
     /**
      * Constructs a data page view from the indicated block.
@@ -70,6 +71,8 @@ class FreeLogicalRowIdPage extends PageHeader
     FreeLogicalRowIdPage( BlockIo block )
     {
         super( block );
+        elemsPerPage = ( block.getSize() - O_FREE ) / PhysicalRowId.SIZE;
+        slots = new PhysicalRowId[ elemsPerPage ];
     }
 
     /**
@@ -163,7 +166,7 @@ class FreeLogicalRowIdPage extends PageHeader
      */
     int getFirstFree()
     {
-        for ( int i = 0; i < ELEMS_PER_PAGE; i++ )
+        for ( int i = 0; i < elemsPerPage; i++ )
         {
             if ( isFree( i ) )
                 return i;
@@ -176,7 +179,7 @@ class FreeLogicalRowIdPage extends PageHeader
      */
     int getFirstAllocated()
     {
-        for ( int i = 0; i < ELEMS_PER_PAGE; i++ )
+        for ( int i = 0; i < elemsPerPage; i++ )
         {
             if ( isAllocated( i ) )
                 return i;
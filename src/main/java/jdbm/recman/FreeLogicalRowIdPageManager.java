@@ -48,6 +48,7 @@
 package jdbm.recman;
 
 import java.io.IOException;
+import java.util.HashSet;
 
 /**
  * This class manages free Logical rowid pages and provides methods
@@ -151,4 +152,34 @@ final class FreeLogicalRowIdPageManager
         free.setOffset( rowid.getOffset() );
         file.release( freePage, true );
     }
+
+    /**
+     * Returns all of the free rowids.
+     */
+    HashSet getAll()
+        throws IOException
+    {
+        HashSet retval = new HashSet();
+        PageCursor curs = new PageCursor( pageman, Magic.FREELOGIDS_PAGE );
+        while ( curs.next() != 0 )
+        {
+            FreeLogicalRowIdPage fp = FreeLogicalRowIdPage
+                .getFreeLogicalRowIdPageView( file.getShared( curs.getCurrent() ) );
+            try
+            {
+                for ( int slot = 0; slot < fp.elemsPerPage; slot++ )
+                {
+                    if ( fp.isAllocated( slot ) )
+                    {
+                        retval.add( new Location( fp.get( slot ) ) );
+                    }
+                }
+            }
+            finally
+            {
+                file.release( curs.getCurrent(), false );
+            }
+        }
+        return retval;
+    }
 }
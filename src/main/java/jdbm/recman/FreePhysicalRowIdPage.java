@@ -55,11 +55,12 @@ final class FreePhysicalRowIdPage extends PageHeader
     // offsets
     private static final short O_COUNT = PageHeader.SIZE; // short count
     static final short O_FREE = O_COUNT + Magic.SZ_SHORT;
-    static final short ELEMS_PER_PAGE =
-        ( RecordFile.BLOCK_SIZE - O_FREE ) / FreePhysicalRowId.SIZE;
+
+    // number of slots on the page.
+    final int elemsPerPage;
 
     // slots we returned.
-    FreePhysicalRowId[] slots = new FreePhysicalRowId[ELEMS_PER_PAGE];
+    FreePhysicalRowId[] slots;
 
     /**
      * Constructs a data page view from the indicated block.
@@ -67,6 +68,8 @@ final class FreePhysicalRowIdPage extends PageHeader
     FreePhysicalRowIdPage( BlockIo block )
     {
         super( block );
+        elemsPerPage = ( block.getSize() - O_FREE ) / FreePhysicalRowId.SIZE;
+        slots = new FreePhysicalRowId[ elemsPerPage ];
     }
 
     /**
@@ -158,7 +161,7 @@ final class FreePhysicalRowIdPage extends PageHeader
      */
     int getFirstFree()
     {
-        for ( int i = 0; i < ELEMS_PER_PAGE; i++ )
+        for ( int i = 0; i < elemsPerPage; i++ )
         {
             if ( isFree( i ) )
                 return i;
@@ -172,11 +175,35 @@ final class FreePhysicalRowIdPage extends PageHeader
      */
     int getFirstLargerThan( int size )
     {
-        for ( int i = 0; i < ELEMS_PER_PAGE; i++ )
+        for ( int i = 0; i < elemsPerPage; i++ )
         {
             if ( isAllocated( i ) && get( i ).getSize() >= size )
                 return i;
         }
         return -1;
     }
+
+    /**
+     * Returns the slot with the smallest available size >= indicated
+     * size, or -1 if no slots are available.
+     */
+    int getBestFit( int size )
+    {
+        int best = -1;
+        int bestSize = Integer.MAX_VALUE;
+        for ( int i = 0; i < elemsPerPage; i++ )
+        {
+            if ( isFree( i ) )
+                continue;
+            int slotSize = get( i ).getSize();
+            if ( slotSize >= size && slotSize < bestSize )
+            {
+                best = i;
+                bestSize = slotSize;
+                if ( slotSize == size )
+                    break;
+            }
+        }
+        return best;
+    }
 }
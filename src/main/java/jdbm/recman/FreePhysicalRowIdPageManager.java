@@ -48,19 +48,60 @@
 package jdbm.recman;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * This class manages free physical rowid pages and provides methods
  * to free and allocate physical rowids on a high level.
+ * <p/>
+ * Newer files keep the free rowids in a list of pages per size class,
+ * classes being powers of two. A rowid is taken from the best fit
+ * among the first pages of its class, or else from any larger class,
+ * where everything fits, so that allocation doesn't walk all of the
+ * free rowids. Older files keep them in a single list.
+ * <p/>
+ * Optionally, the free rowids are read into memory on first use,
+ * sorted by size and location, and allocated from there with no page
+ * I/O. The lists are brought up to date by {@link #flush}, before a
+ * commit, and the rowids read again after a rollback.
  */
 final class FreePhysicalRowIdPageManager
 {
+    /**
+     * Size of the rowids of the smallest size class, which also holds
+     * smaller ones. The largest class holds everything above.
+     */
+    static final int MIN_CLASS_SIZE = 64;
+
+    /**
+     * Number of pages of its size class looked at for the best fit of
+     * a rowid, before turning to the larger classes.
+     */
+    static final int MAX_CLASS_PAGES = 4;
+
     // our record file
     protected RecordFile _file;
 
     // our page manager
     protected PageManager _pageman;
 
+    // whether free rowids are kept by size class
+    private final boolean _classes;
+
+    // whether free rowids are kept in memory
+    private boolean _inMemory;
+
+    // free rowids in memory, sorted by size and location, or null if
+    // not read yet; those put since the last flush, and those taken
+    // since from the lists.
+    private TreeSet _extents;
+    private final HashSet _added = new HashSet();
+    private final ArrayList _taken = new ArrayList();
+
     /**
      * Creates a new instance using the indicated record file and
      * page manager.
@@ -70,6 +111,163 @@ final class FreePhysicalRowIdPageManager
     {
         _file = file;
         _pageman = pageman;
+        _classes = pageman.getFileHeader().hasSizeClasses();
+    }
+
+
+    /**
+     * Sets whether free rowids are kept in memory. The lists are
+     * brought up to date when turned off.
+     */
+    void setInMemory( boolean inMemory )
+        throws IOException
+    {
+        if ( !inMemory )
+        {
+            flush();
+            _extents = null;
+        }
+        _inMemory = inMemory;
+    }
+
+
+    /**
+     * Writes the rowids put and taken in memory since the last flush
+     * to the lists.
+     */
+    void flush()
+        throws IOException
+    {
+        if ( _extents == null )
+        {
+            return;
+        }
+        // take from the lists first, so that pages are freed as they
+        // empty rather than filled again.
+        for ( Iterator i = _taken.iterator(); i.hasNext(); )
+        {
+            Extent extent = (Extent) i.next();
+            FreePhysicalRowIdPage fp = FreePhysicalRowIdPage
+                .getFreePhysicalRowIdPageView( _file.get( extent.page ) );
+            fp.free( extent.slot );
+            if ( fp.getCount() == 0 )
+            {
+                _file.release( extent.page, false );
+                _pageman.free( listOf( extent.size ), extent.page );
+            }
+            else
+            {
+                _file.release( extent.page, true );
+            }
+        }
+        _taken.clear();
+        for ( Iterator i = new TreeSet( _added ).iterator(); i.hasNext(); )
+        {
+            Extent extent = (Extent) i.next();
+            putLast( listOf( extent.size ), extent );
+        }
+        _added.clear();
+    }
+
+
+    /**
+     * Forgets the rowids kept in memory, to be read from the lists
+     * again once they are rolled back.
+     */
+    void discard()
+    {
+        _extents = null;
+        _added.clear();
+        _taken.clear();
+    }
+
+
+    /**
+     * Reads the free rowids of the lists into memory.
+     */
+    private void load()
+        throws IOException
+    {
+        _extents = new TreeSet();
+        if ( !_classes )
+        {
+            load( Magic.FREEPHYSIDS_PAGE );
+            return;
+        }
+        for ( int c = 0; c < Magic.NSIZE_CLASSES; c++ )
+        {
+            load( classList( c ) );
+        }
+    }
+
+
+    /**
+     * Reads the free rowids of the indicated list into memory.
+     */
+    private void load( short list )
+        throws IOException
+    {
+        PageCursor curs = new PageCursor( _pageman, list );
+        while ( curs.next() != 0 )
+        {
+            long page = curs.getCurrent();
+            FreePhysicalRowIdPage fp = FreePhysicalRowIdPage
+                .getFreePhysicalRowIdPageView( _file.getShared( page ) );
+            try
+            {
+                for ( int slot = 0; slot < fp.elemsPerPage; slot++ )
+                {
+                    if ( fp.isAllocated( slot ) )
+                    {
+                        FreePhysicalRowId free = fp.get( slot );
+                        Extent extent = new Extent( free.getSize(), free.getBlock(),
+                                                    free.getOffset() );
+                        extent.page = page;
+                        extent.slot = slot;
+                        _extents.add( extent );
+                    }
+                }
+            }
+            finally
+            {
+                _file.release( page, false );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the size class of free rowids of the indicated size.
+     */
+    static int sizeClass( int size )
+    {
+        int sizeClass = 0;
+        for ( int limit = 2 * MIN_CLASS_SIZE;
+              size >= limit && sizeClass < Magic.NSIZE_CLASSES - 1;
+              limit *= 2 )
+        {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+
+    /**
+     * Returns the type of the pages of the indicated size class.
+     */
+    private static short classList( int sizeClass )
+    {
+        return (short) ( Magic.FREEPHYSIDS_CLASS_PAGE + sizeClass );
+    }
+
+
+    /**
+     * Returns the type of the pages holding free rowids of the
+     * indicated size.
+     */
+    private short listOf( int size )
+    {
+        return _classes ? classList( sizeClass( size ) ) : Magic.FREEPHYSIDS_PAGE;
     }
 
 
@@ -80,28 +278,152 @@ final class FreePhysicalRowIdPageManager
     Location get( int size )
         throws IOException
     {
-        // Loop through the free physical rowid list until we find
-        // a rowid that's large enough.
-        Location retval = null;
-        PageCursor curs = new PageCursor( _pageman, Magic.FREEPHYSIDS_PAGE );
+        if ( _inMemory )
+        {
+            return getInMemory( size );
+        }
+        if ( !_classes )
+        {
+            return get( Magic.FREEPHYSIDS_PAGE, size, Integer.MAX_VALUE );
+        }
+        int sizeClass = sizeClass( size );
+        Location retval = get( classList( sizeClass ), size, MAX_CLASS_PAGES );
+        for ( int c = sizeClass + 1; retval == null && c < Magic.NSIZE_CLASSES; c++ )
+        {
+            // any rowid of a larger class fits
+            retval = get( classList( c ), size, 1 );
+        }
+        return retval;
+    }
 
-        while ( curs.next() != 0 )
+
+    /**
+     * Returns the best fit for the indicated size among the free
+     * rowids in memory, or null if nothing was found.
+     */
+    private Location getInMemory( int size )
+        throws IOException
+    {
+        if ( _extents == null )
+        {
+            load();
+        }
+        SortedSet fits = _extents.tailSet( new Extent( size, Long.MIN_VALUE, Short.MIN_VALUE ) );
+        if ( fits.isEmpty() )
+        {
+            return null;
+        }
+        Extent extent = (Extent) fits.first();
+        take( extent );
+        return new Location( extent.block, extent.offset );
+    }
+
+
+    /**
+     * Takes the indicated rowid off the free rowids in memory.
+     */
+    private void take( Extent extent )
+    {
+        _extents.remove( extent );
+        if ( extent.page == 0 )
+        {
+            _added.remove( extent );
+        }
+        else
+        {
+            _taken.add( extent );
+        }
+    }
+
+
+    /**
+     * Takes the indicated rowid, of the indicated size, off the free
+     * rowids. Returns false if it isn't one of them.
+     */
+    boolean remove( Location rowid, int size )
+        throws IOException
+    {
+        if ( !_inMemory )
+        {
+            return remove( listOf( size ), rowid );
+        }
+        if ( _extents == null )
+        {
+            load();
+        }
+        Extent key = new Extent( size, rowid.getBlock(), rowid.getOffset() );
+        SortedSet found = _extents.tailSet( key );
+        if ( found.isEmpty() || !found.first().equals( key ) )
+        {
+            return false;
+        }
+        take( (Extent) found.first() );
+        return true;
+    }
+
+
+    /**
+     * Takes the indicated rowid off the indicated list, looking
+     * through all of its pages from the last, where rowids freed
+     * lately are. Returns false if it isn't there.
+     */
+    private boolean remove( short list, Location rowid )
+        throws IOException
+    {
+        for ( long page = _pageman.getLast( list ); page != 0;
+              page = _pageman.getPrev( page ) )
+        {
+            FreePhysicalRowIdPage fp = FreePhysicalRowIdPage
+                .getFreePhysicalRowIdPageView( _file.get( page ) );
+            for ( int slot = 0; slot < fp.elemsPerPage; slot++ )
+            {
+                if ( fp.isAllocated( slot )
+                     && rowid.equals( new Location( fp.get( slot ) ) ) )
+                {
+                    fp.free( slot );
+                    if ( fp.getCount() == 0 )
+                    {
+                        _file.release( page, false );
+                        _pageman.free( list, page );
+                    }
+                    else
+                    {
+                        _file.release( page, true );
+                    }
+                    return true;
+                }
+            }
+            _file.release( page, false );
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns the best fit for the indicated size on the first page of
+     * the indicated list that has one, looking at no more than the
+     * indicated number of pages, or null if nothing was found.
+     */
+    private Location get( short list, int size, int maxPages )
+        throws IOException
+    {
+        PageCursor curs = new PageCursor( _pageman, list );
+        for ( int pages = 0; pages < maxPages && curs.next() != 0; pages++ )
         {
             FreePhysicalRowIdPage fp = FreePhysicalRowIdPage
                 .getFreePhysicalRowIdPageView( _file.get( curs.getCurrent() ) );
-            int slot = fp.getFirstLargerThan( size );
+            int slot = fp.getBestFit( size );
             if ( slot != -1 )
             {
                 // got one!
-                retval = new Location( fp.get( slot ) );
+                Location retval = new Location( fp.get( slot ) );
 
-                int slotsize = fp.get( slot ).getSize();
                 fp.free( slot );
                 if ( fp.getCount() == 0 )
                 {
                     // page became empty - free it
                     _file.release( curs.getCurrent(), false );
-                    _pageman.free( Magic.FREEPHYSIDS_PAGE, curs.getCurrent() );
+                    _pageman.free( list, curs.getCurrent() );
                 }
                 else
                 {
@@ -126,6 +448,23 @@ final class FreePhysicalRowIdPageManager
     void put( Location rowid, int size )
         throws IOException
     {
+        if ( _inMemory )
+        {
+            if ( _extents == null )
+            {
+                load();
+            }
+            Extent extent = new Extent( size, rowid.getBlock(), rowid.getOffset() );
+            _extents.add( extent );
+            _added.add( extent );
+            return;
+        }
+        if ( _classes )
+        {
+            putLast( listOf( size ), new Extent( size, rowid.getBlock(),
+                                                 rowid.getOffset() ) );
+            return;
+        }
 
         FreePhysicalRowId free = null;
         PageCursor curs = new PageCursor( _pageman, Magic.FREEPHYSIDS_PAGE );
@@ -160,4 +499,94 @@ final class FreePhysicalRowIdPageManager
         free.setSize( size );
         _file.release( freePage, true );
     }
+
+    /**
+     * Puts the indicated rowid on the last page of the indicated list,
+     * or on a new page once that one is full, and records where. Slots
+     * freed on earlier pages are taken again as they empty, rather
+     * than searched for.
+     */
+    private void putLast( short list, Extent extent )
+        throws IOException
+    {
+        FreePhysicalRowId free = null;
+        long freePage = _pageman.getLast( list );
+        int slot = -1;
+        if ( freePage != 0 )
+        {
+            FreePhysicalRowIdPage fp = FreePhysicalRowIdPage
+                .getFreePhysicalRowIdPageView( _file.get( freePage ) );
+            slot = fp.getFirstFree();
+            if ( slot != -1 )
+            {
+                free = fp.alloc( slot );
+            }
+            else
+            {
+                _file.release( freePage, false );
+            }
+        }
+        if ( free == null )
+        {
+            freePage = _pageman.allocate( list );
+            FreePhysicalRowIdPage fp = FreePhysicalRowIdPage
+                .getFreePhysicalRowIdPageView( _file.get( freePage ) );
+            slot = 0;
+            free = fp.alloc( slot );
+        }
+
+        free.setBlock( extent.block );
+        free.setOffset( extent.offset );
+        free.setSize( extent.size );
+        _file.release( freePage, true );
+        extent.page = freePage;
+        extent.slot = slot;
+    }
+
+
+    /**
+     * A free rowid kept in memory, ordered by size, then location.
+     */
+    private static final class Extent
+        implements Comparable
+    {
+        final int size;
+        final long block;
+        final short offset;
+
+        // where the rowid is on the lists, or 0 if not on them yet
+        long page;
+        int slot;
+
+        Extent( int size, long block, short offset )
+        {
+            this.size = size;
+            this.block = block;
+            this.offset = offset;
+        }
+
+        public int compareTo( Object obj )
+        {
+            Extent other = (Extent) obj;
+            if ( size != other.size )
+            {
+                return size < other.size ? -1 : 1;
+            }
+            if ( block != other.block )
+            {
+                return block < other.block ? -1 : 1;
+            }
+            return offset - other.offset;
+        }
+
+        public boolean equals( Object obj )
+        {
+            return obj instanceof Extent && compareTo( obj ) == 0;
+        }
+
+        public int hashCode()
+        {
+            return (int) ( block ^ ( block >>> 32 ) ) * 31 + offset;
+        }
+    }
 }
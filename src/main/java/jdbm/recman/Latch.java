@@ -0,0 +1,247 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+/**
+ * Shared/exclusive latch. Any number of threads may hold the latch
+ * shared, or a single thread may hold it exclusively.
+ * <p/>
+ * The exclusive holder may acquire the latch again, in either mode;
+ * every acquisition must be matched by a call to {@link #unlock}.
+ * Threads asking for the latch shared wait while another thread holds
+ * it exclusively, or, if writers are preferred, while one is waiting
+ * for it, so that a stream of readers can't starve a writer.
+ */
+final class Latch
+{
+
+    /**
+     * True if threads waiting for exclusive access hold off new
+     * shared holders.
+     */
+    private final boolean _preferWriters;
+
+
+    /**
+     * Number of shared holds.
+     */
+    private int _shared;
+
+
+    /**
+     * Thread holding the latch exclusively, or null.
+     */
+    private Thread _owner;
+
+
+    /**
+     * Number of holds of the exclusive holder.
+     */
+    private int _held;
+
+
+    /**
+     * Number of threads waiting for exclusive access.
+     */
+    private int _waitingWriters;
+
+
+    /**
+     * Constructs a latch that doesn't prefer writers.
+     */
+    Latch()
+    {
+        this( false );
+    }
+
+
+    /**
+     * Constructs a latch.
+     *
+     * @param preferWriters true if a waiting writer holds off new
+     *                      shared holders.
+     */
+    Latch( boolean preferWriters )
+    {
+        _preferWriters = preferWriters;
+    }
+
+
+    /**
+     * Acquires the latch shared, waiting if needed.
+     */
+    synchronized void lockShared()
+    {
+        Thread current = Thread.currentThread();
+        if ( _owner == current )
+        {
+            _held++;
+            return;
+        }
+        boolean interrupted = false;
+        while ( _owner != null || ( _preferWriters && _waitingWriters > 0 ) )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException except )
+            {
+                interrupted = true;
+            }
+        }
+        _shared++;
+        if ( interrupted )
+        {
+            current.interrupt();
+        }
+    }
+
+
+    /**
+     * Acquires the latch exclusively, waiting if needed.
+     */
+    synchronized void lockExclusive()
+    {
+        Thread current = Thread.currentThread();
+        if ( _owner == current )
+        {
+            _held++;
+            return;
+        }
+        boolean interrupted = false;
+        _waitingWriters++;
+        try
+        {
+            while ( _owner != null || _shared > 0 )
+            {
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException except )
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            _waitingWriters--;
+        }
+        _owner = current;
+        _held = 1;
+        if ( interrupted )
+        {
+            current.interrupt();
+        }
+    }
+
+
+    /**
+     * Turns the single exclusive hold of the current thread into a
+     * shared hold, letting other shared holders in.
+     */
+    synchronized void downgrade()
+    {
+        if ( _owner != Thread.currentThread() || _held != 1 )
+        {
+            throw new IllegalStateException( "Latch not held exclusively once" );
+        }
+        _owner = null;
+        _held = 0;
+        _shared++;
+        notifyAll();
+    }
+
+
+    /**
+     * Releases one hold of the latch.
+     */
+    synchronized void unlock()
+    {
+        if ( _owner == Thread.currentThread() )
+        {
+            if ( --_held == 0 )
+            {
+                _owner = null;
+                notifyAll();
+            }
+        }
+        else
+        {
+            if ( _shared == 0 )
+            {
+                throw new IllegalStateException( "Latch not held" );
+            }
+            if ( --_shared == 0 )
+            {
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if the current thread holds the latch exclusively.
+     */
+    synchronized boolean isHeldExclusively()
+    {
+        return _owner == Thread.currentThread();
+    }
+
+
+    /**
+     * Returns true if any thread holds the latch.
+     */
+    synchronized boolean isLocked()
+    {
+        return _owner != null || _shared > 0;
+    }
+
+}
@@ -123,6 +123,11 @@ final class Location
         return ol.block == block && ol.offset == offset;
     }
 
+    public int hashCode()
+    {
+        return (int) ( block ^ ( block >>> 32 ) ) * 31 + offset;
+    }
+
     public String toString()
     {
         return "PL(" + block + ":" + offset + ")";
@@ -0,0 +1,439 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Reads one binary log file written by the {@link TransactionManager}
+ * back into block images, as part of recovery. The images are those
+ * left by the committed transactions of the log, latest first; they
+ * are rebuilt in memory, and not written to the data file.
+ * <p/>
+ * Every log file logs a block as a whole the first time it appears,
+ * so that each can be read on its own. {@link #replay} reads several
+ * of them in parallel, one per thread.
+ */
+final class LogReplay
+    implements Runnable
+{
+
+    /**
+     * The log file read.
+     */
+    private final File _file;
+
+
+    /**
+     * Latest committed image of each block, by block id.
+     */
+    private final HashMap _images = new HashMap();
+
+
+    /**
+     * True if the log ended cleanly, after a commit marker.
+     */
+    private boolean _complete;
+
+
+    /**
+     * The failure to read the log, if any.
+     */
+    private IOException _failure;
+
+
+    /**
+     * Constructs a reader of the indicated log file.
+     */
+    LogReplay( File file )
+    {
+        _file = file;
+    }
+
+
+    /**
+     * Reads the log file, recording rather than throwing any failure.
+     */
+    public void run()
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream( new FileInputStream( _file ) ) );
+            try
+            {
+                if ( in.readShort() != Magic.LOGFILE_HEADER_V2 )
+                {
+                    throw new Error( "Bad magic on log file " + _file );
+                }
+                _complete = read( in );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( EOFException except )
+        {
+            // a log file cut short before its magic holds nothing
+            _complete = false;
+        }
+        catch ( FileNotFoundException except )
+        {
+            _complete = false;
+        }
+        catch ( IOException except )
+        {
+            _failure = except;
+        }
+    }
+
+
+    /**
+     * Returns the latest committed image of each block, keyed by block id.
+     */
+    HashMap getImages()
+    {
+        return _images;
+    }
+
+
+    /**
+     * Returns true if the log ended cleanly, after its last commit
+     * marker. Logs that follow one that didn't must be ignored.
+     */
+    boolean isComplete()
+    {
+        return _complete;
+    }
+
+
+    /**
+     * Returns the failure to read the log, if any.
+     */
+    IOException getFailure()
+    {
+        return _failure;
+    }
+
+
+    /**
+     * Reads the indicated logs, in as many threads as there are
+     * processors.
+     */
+    static void replay( final LogReplay[] replays )
+    {
+        int threads = Math.min( replays.length,
+                                Runtime.getRuntime().availableProcessors() );
+        final int[] next = new int[ 1 ];
+        Runnable worker = new Runnable()
+        {
+            public void run()
+            {
+                while ( true )
+                {
+                    int i;
+                    synchronized ( next )
+                    {
+                        if ( next[0] == replays.length )
+                        {
+                            return;
+                        }
+                        i = next[0]++;
+                    }
+                    replays[i].run();
+                }
+            }
+        };
+
+        Thread[] pool = new Thread[ Math.max( 0, threads - 1 ) ];
+        for ( int i = 0; i < pool.length; i++ )
+        {
+            pool[i] = new Thread( worker, "JDBM recovery" );
+            pool[i].setDaemon( true );
+            pool[i].start();
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        for ( int i = 0; i < pool.length; i++ )
+        {
+            while ( pool[i].isAlive() )
+            {
+                try
+                {
+                    pool[i].join();
+                }
+                catch ( InterruptedException except )
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Reads the records of the log, applying those of committed
+     * transactions to the block images. Stops at the first record that
+     * is incomplete or fails its checksum. Returns true if the log
+     * ended cleanly.
+     */
+    private boolean read( DataInputStream in ) throws IOException
+    {
+        // the records of the transaction being read
+        ArrayList records = new ArrayList();
+        long txnId = -1;
+        byte[] header = new byte[ TransactionManager.BLOCK_RECORD_SIZE ];
+        ByteBuffer fields = ByteBuffer.wrap( header );
+        CRC32 check = new CRC32();
+
+        try
+        {
+            while ( true )
+            {
+                int type = in.read();
+                if ( type == -1 )
+                {
+                    return records.isEmpty();
+                }
+                header[0] = (byte) type;
+                check.reset();
+                if ( type == TransactionManager.LOG_BLOCK
+                     || type == TransactionManager.LOG_DELTA )
+                {
+                    in.readFully( header, 1, TransactionManager.BLOCK_RECORD_SIZE
+                        - Magic.SZ_BYTE - Magic.SZ_INT );
+                    check.update( header, 0, TransactionManager.BLOCK_RECORD_SIZE
+                        - Magic.SZ_INT );
+                    long id = fields.getLong( 1 );
+                    LogRecord record = new LogRecord( fields.getLong( 9 ) );
+                    int length = fields.getInt( 17 );
+                    if ( type == TransactionManager.LOG_BLOCK )
+                    {
+                        if ( !RecordFile.isValidBlockSize( length ) )
+                        {
+                            return false;
+                        }
+                        record.data = new byte[ length ];
+                        in.readFully( record.data );
+                        check.update( record.data, 0, length );
+                    }
+                    else if ( !readRanges( in, length, record, check ) )
+                    {
+                        return false;
+                    }
+                    if ( in.readInt() != (int) check.getValue() )
+                    {
+                        return false;
+                    }
+                    if ( id != txnId )
+                    {
+                        // leftovers of a transaction that never committed
+                        records.clear();
+                        txnId = id;
+                    }
+                    records.add( record );
+                }
+                else if ( type == TransactionManager.LOG_COMMIT )
+                {
+                    in.readFully( header, 1, TransactionManager.COMMIT_RECORD_SIZE
+                        - Magic.SZ_BYTE - Magic.SZ_INT );
+                    long id = fields.getLong( 1 );
+                    int count = fields.getInt( 9 );
+                    check.update( header, 0, TransactionManager.COMMIT_RECORD_SIZE
+                        - Magic.SZ_INT );
+                    if ( in.readInt() != (int) check.getValue()
+                         || id != txnId || count != records.size()
+                         || !apply( records ) )
+                    {
+                        return false;
+                    }
+                    records.clear();
+                    txnId = -1;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+        }
+        catch ( EOFException e )
+        {
+            // torn record at the end of the log, ignore it
+            return false;
+        }
+    }
+
+
+    /**
+     * Reads the ranges of a delta record into the indicated record.
+     * Returns false if they don't make sense.
+     */
+    private static boolean readRanges( DataInputStream in, int count,
+                                       LogRecord record, CRC32 check )
+        throws IOException
+    {
+        if ( count < 0 || count > RecordFile.MAX_BLOCK_SIZE )
+        {
+            return false;
+        }
+        byte[] header = new byte[ TransactionManager.RANGE_HEADER_SIZE ];
+        ByteBuffer fields = ByteBuffer.wrap( header );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        record.ranges = new int[ 2 * count ];
+        for ( int i = 0; i < count; i++ )
+        {
+            in.readFully( header );
+            check.update( header, 0, header.length );
+            int offset = fields.getInt( 0 );
+            int length = fields.getInt( Magic.SZ_INT );
+            if ( offset < 0 || length < 0
+                 || offset + length > RecordFile.MAX_BLOCK_SIZE )
+            {
+                return false;
+            }
+            byte[] data = new byte[ length ];
+            in.readFully( data );
+            check.update( data, 0, length );
+            bytes.write( data );
+            record.ranges[ 2 * i ] = offset;
+            record.ranges[ 2 * i + 1 ] = offset + length;
+        }
+        record.data = bytes.toByteArray();
+        return true;
+    }
+
+
+    /**
+     * Applies the records of a committed transaction to the block
+     * images. Returns false, without applying anything, if a delta
+     * refers to a block that wasn't logged as a whole before, or
+     * reaches past its end.
+     */
+    private boolean apply( ArrayList records )
+    {
+        // block sizes as of each record, to check deltas up front
+        HashMap sizes = new HashMap();
+        for ( int i = 0; i < records.size(); i++ )
+        {
+            LogRecord record = (LogRecord) records.get( i );
+            Long key = new Long( record.blockid );
+            if ( record.ranges == null )
+            {
+                sizes.put( key, new Integer( record.data.length ) );
+                continue;
+            }
+            Integer size = (Integer) sizes.get( key );
+            if ( size == null )
+            {
+                byte[] image = (byte[]) _images.get( key );
+                if ( image == null )
+                {
+                    return false;
+                }
+                size = new Integer( image.length );
+            }
+            for ( int r = 0; r < record.ranges.length; r += 2 )
+            {
+                if ( record.ranges[ r + 1 ] > size.intValue() )
+                {
+                    return false;
+                }
+            }
+        }
+
+        for ( int i = 0; i < records.size(); i++ )
+        {
+            LogRecord record = (LogRecord) records.get( i );
+            Long key = new Long( record.blockid );
+            if ( record.ranges == null )
+            {
+                _images.put( key, record.data );
+                continue;
+            }
+            byte[] image = (byte[]) _images.get( key );
+            int pos = 0;
+            for ( int r = 0; r < record.ranges.length; r += 2 )
+            {
+                int length = record.ranges[ r + 1 ] - record.ranges[ r ];
+                System.arraycopy( record.data, pos, image, record.ranges[ r ], length );
+                pos += length;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * A block image or delta read back from the log.
+     */
+    private static final class LogRecord
+    {
+        final long blockid;
+
+        // the block image, or the concatenated bytes of the ranges
+        byte[] data;
+
+        // start and end offsets of the ranges of a delta, or null
+        int[] ranges;
+
+        LogRecord( long blockid )
+        {
+            this.blockid = blockid;
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+
+package jdbm.recman;
+
+import java.io.IOException;
+
+/**
+ * Background syncer of the log of a {@link TransactionManager}, for
+ * commits that don't wait for their own sync. Every interval, it syncs
+ * whatever was appended to the log since the last sync.
+ * <p/>
+ * Like the {@link Checkpointer}, the thread is never interrupted. It is
+ * stopped by {@link #close}, without waiting for a sync in progress.
+ */
+final class LogSyncer
+    implements Runnable
+{
+
+    /**
+     * The transaction manager whose log is synced.
+     */
+    private final TransactionManager _txnMgr;
+
+
+    /**
+     * Time, in milliseconds, between syncs.
+     */
+    private final long _interval;
+
+
+    /**
+     * True once closed.
+     */
+    private boolean _closed;
+
+
+    /**
+     * Constructs and starts a syncer for the indicated transaction
+     * manager.
+     */
+    LogSyncer( TransactionManager txnMgr, long interval )
+    {
+        _txnMgr = txnMgr;
+        _interval = interval;
+
+        Thread thread = new Thread( this, "JDBM log sync" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Stops the syncer thread once it is done with its current sync.
+     */
+    synchronized void close()
+    {
+        _closed = true;
+        notifyAll();
+    }
+
+
+    /**
+     * Syncs the log every interval, until closed.
+     */
+    public void run()
+    {
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                long deadline = System.currentTimeMillis() + _interval;
+                long delay = _interval;
+                while ( !_closed && delay > 0 )
+                {
+                    try
+                    {
+                        wait( delay );
+                    }
+                    catch ( InterruptedException except )
+                    {
+                        // keep going until closed.
+                    }
+                    delay = deadline - System.currentTimeMillis();
+                }
+                if ( _closed )
+                {
+                    return;
+                }
+            }
+
+            try
+            {
+                _txnMgr.syncLog();
+            }
+            catch ( IOException except )
+            {
+                _txnMgr.syncFailed( except );
+                return;
+            }
+        }
+    }
+
+}
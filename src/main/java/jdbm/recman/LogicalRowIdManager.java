@@ -48,6 +48,8 @@
 package jdbm.recman;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * This class manages the linked lists of logical rowid pages.
@@ -87,7 +89,8 @@ final class LogicalRowIdManager
             // a new translation page and freeing all the rowids on it.
             long firstPage = pageman.allocate( Magic.TRANSLATION_PAGE );
             short curOffset = TranslationPage.O_TRANS;
-            for ( int i = 0; i < TranslationPage.ELEMS_PER_PAGE; i++ )
+            int elems = TranslationPage.elemsPerPage( file.getUsableSize() );
+            for ( int i = 0; i < elems; i++ )
             {
                 freeman.put( new Location( firstPage, curOffset ) );
                 curOffset += PhysicalRowId.SIZE;
@@ -140,9 +143,22 @@ final class LogicalRowIdManager
     Location fetch( Location rowid )
         throws IOException
     {
+        return fetch( rowid, null );
+    }
 
-        TranslationPage xlatPage = TranslationPage.getTranslationPageView(
-            file.get( rowid.getBlock() ) );
+    /**
+     * Returns a mapping as of the indicated snapshot, or as of now if
+     * the snapshot is null.
+     *
+     * @param rowid The logical rowid
+     * @param snapshot The snapshot to read from
+     * @returns The physical rowid
+     */
+    Location fetch( Location rowid, Snapshot snapshot )
+        throws IOException
+    {
+        BlockIo block = file.getShared( snapshot, rowid.getBlock() );
+        TranslationPage xlatPage = TranslationPage.getTranslationPageView( block );
         try
         {
             Location retval = new Location( xlatPage.get( rowid.getOffset() ) );
@@ -150,8 +166,47 @@ final class LogicalRowIdManager
         }
         finally
         {
-            file.release( rowid.getBlock(), false );
+            file.release( snapshot, block );
         }
     }
 
+    /**
+     * Returns the mappings of the rowids in use, from the physical
+     * rowid to the logical one.
+     */
+    HashMap getTranslations()
+        throws IOException
+    {
+        // free rowids keep the mapping they had last
+        HashSet free = freeman.getAll();
+        HashMap retval = new HashMap();
+        int elems = TranslationPage.elemsPerPage( file.getUsableSize() );
+        PageCursor curs = new PageCursor( pageman, Magic.TRANSLATION_PAGE );
+        while ( curs.next() != 0 )
+        {
+            long page = curs.getCurrent();
+            TranslationPage xlatPage =
+                TranslationPage.getTranslationPageView( file.getShared( page ) );
+            try
+            {
+                short offset = TranslationPage.O_TRANS;
+                for ( int i = 0; i < elems; i++ )
+                {
+                    Location rowid = new Location( page, offset );
+                    Location loc = new Location( xlatPage.get( offset ) );
+                    if ( loc.getBlock() != 0 && !free.contains( rowid ) )
+                    {
+                        retval.put( loc, rowid );
+                    }
+                    offset += PhysicalRowId.SIZE;
+                }
+            }
+            finally
+            {
+                file.release( page, false );
+            }
+        }
+        return retval;
+    }
+
 }
@@ -57,6 +57,12 @@ public interface Magic
      */
     public short FILE_HEADER = 0x1350;
 
+    /**
+     * Magic cookie at start of file, for files that record their
+     * block size in the file header
+     */
+    public short FILE_HEADER_V2 = 0x1340;
+
     /**
      * Magic for blocks. They're offset by the block type magic codes.
      */
@@ -72,10 +78,23 @@ public interface Magic
     short FREEPHYSIDS_PAGE = 4;
 
     /**
-     * Number of lists in a file
+     * Magic for blocks in the list of free physical rowids of the
+     * smallest size class, in files that keep them by size class. The
+     * lists of the larger classes follow. Offset by baseBlockMagic
+     */
+    short FREEPHYSIDS_CLASS_PAGE = 5;
+
+    /**
+     * Number of lists in a file, not counting those of size classes
      */
     public short NLISTS = 5;
 
+    /**
+     * Number of size classes of free physical rowids, in files that
+     * keep them by size class
+     */
+    public short NSIZE_CLASSES = 10;
+
     /**
      * Maximum number of blocks in a file, leaving room for a 16 bit
      * offset encoded within a long.
@@ -87,6 +106,16 @@ public interface Magic
      */
     short LOGFILE_HEADER = 0x1360;
 
+    /**
+     * Magic for transaction files written in the binary log format
+     */
+    short LOGFILE_HEADER_V2 = 0x1361;
+
+    /**
+     * Magic for the manifest of transaction log segments
+     */
+    short LOGFILE_MANIFEST = 0x1362;
+
     /**
      * Size of an externalized byte
      */
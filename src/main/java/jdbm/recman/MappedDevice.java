@@ -0,0 +1,258 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Block device accessing a file through memory mappings. The file is
+ * mapped in fixed size segments, which are added as the file grows, so
+ * reading a block costs a copy out of the mapping (and a page fault
+ * when cold) instead of a seek and read system call.
+ * <p/>
+ * Mapping a segment extends the file to the end of the segment, so
+ * the logical length of the file is tracked separately and the file
+ * is truncated back to it when closed. A file that wasn't closed keeps
+ * the padding; as blocks of zeroes read the same as blocks past the
+ * end, trailing blocks of zeroes are left out of the logical length
+ * when the file is opened, and truncated on close.
+ */
+public final class MappedDevice
+    implements BlockDevice
+{
+    /**
+     * Size of a mapped segment. Must be a multiple of the block size.
+     */
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile _file;
+    private final FileChannel _channel;
+    private final int _blockSize;
+
+    // mapped segments, indexed by offset / SEGMENT_SIZE.
+    private final ArrayList _segments = new ArrayList();
+
+    // indexes of segments written to since the last sync.
+    private final ArrayList _dirtySegments = new ArrayList();
+
+    // length of the file as seen by the record file.
+    private long _length;
+
+    /**
+     * Opens or creates the indicated file in read/write mode.
+     */
+    public MappedDevice( String fileName, int blockSize )
+        throws IOException
+    {
+        if ( SEGMENT_SIZE % blockSize != 0 )
+        {
+            throw new IllegalArgumentException( "Block size " + blockSize
+                + " does not divide segment size " + SEGMENT_SIZE );
+        }
+        _file = new RandomAccessFile( fileName, "rw" );
+        _channel = _file.getChannel();
+        _blockSize = blockSize;
+        _length = trimmedLength();
+    }
+
+    /**
+     * Returns the length of the file without its trailing blocks of
+     * zeroes. Reads through the channel, so as not to map segments.
+     */
+    private long trimmedLength()
+        throws IOException
+    {
+        long length = _file.length();
+        ByteBuffer buffer = ByteBuffer.allocate( _blockSize );
+        while ( length > 0 )
+        {
+            long offset = ( ( length - 1 ) / _blockSize ) * _blockSize;
+            buffer.clear();
+            buffer.limit( (int) ( length - offset ) );
+            while ( buffer.hasRemaining()
+                    && _channel.read( buffer, offset + buffer.position() ) >= 0 )
+            {
+                // read the whole block
+            }
+            for ( int i = 0; i < buffer.position(); i++ )
+            {
+                if ( buffer.get( i ) != 0 )
+                {
+                    return length;
+                }
+            }
+            length = offset;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the logical length of the file.
+     */
+    public long length()
+    {
+        return _length;
+    }
+
+    public boolean read( long blockid, byte[] buffer )
+        throws IOException
+    {
+        long offset = blockid * _blockSize;
+        if ( offset >= _length )
+        {
+            return false;
+        }
+        ByteBuffer segment = segmentFor( offset );
+        segment.position( (int) ( offset % SEGMENT_SIZE ) );
+        segment.get( buffer, 0, _blockSize );
+        return true;
+    }
+
+    public void write( long blockid, byte[] buffer )
+        throws IOException
+    {
+        long offset = blockid * _blockSize;
+        ByteBuffer segment = segmentFor( offset );
+        segment.position( (int) ( offset % SEGMENT_SIZE ) );
+        segment.put( buffer, 0, _blockSize );
+        if ( offset + _blockSize > _length )
+        {
+            _length = offset + _blockSize;
+        }
+        markDirty( (int) ( offset / SEGMENT_SIZE ) );
+    }
+
+    public void write( long[] blockids, byte[][] buffers, int count )
+        throws IOException
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            write( blockids[i], buffers[i] );
+        }
+    }
+
+    /**
+     * Forces modified segments to disk.
+     */
+    public void sync()
+        throws IOException
+    {
+        for ( int i = 0; i < _dirtySegments.size(); i++ )
+        {
+            int index = ( (Integer) _dirtySegments.get( i ) ).intValue();
+            ( (MappedByteBuffer) _segments.get( index ) ).force();
+        }
+        _dirtySegments.clear();
+    }
+
+    /**
+     * Truncates the logical length of the file. The file itself is
+     * truncated when closed, as the mappings may extend past it.
+     */
+    public void truncate( long blocks )
+    {
+        if ( blocks * _blockSize < _length )
+        {
+            _length = blocks * _blockSize;
+        }
+    }
+
+    /**
+     * Syncs the mappings, drops them, truncates the file to its
+     * logical length and closes it.
+     */
+    public void close()
+        throws IOException
+    {
+        sync();
+        _segments.clear();
+        _channel.truncate( _length );
+        _file.close();
+    }
+
+    /**
+     * Returns a private view of the segment holding the indicated offset,
+     * mapping it first if necessary.
+     */
+    private ByteBuffer segmentFor( long offset )
+        throws IOException
+    {
+        int index = (int) ( offset / SEGMENT_SIZE );
+        while ( _segments.size() <= index )
+        {
+            _segments.add( null );
+        }
+        MappedByteBuffer segment = (MappedByteBuffer) _segments.get( index );
+        if ( segment == null )
+        {
+            segment = _channel.map( FileChannel.MapMode.READ_WRITE,
+                                    (long) index * SEGMENT_SIZE,
+                                    SEGMENT_SIZE );
+            _segments.set( index, segment );
+        }
+        return segment.duplicate();
+    }
+
+    /**
+     * Records that the indicated segment needs to be forced at sync time.
+     */
+    private void markDirty( int index )
+    {
+        Integer key = new Integer( index );
+        if ( !_dirtySegments.contains( key ) )
+        {
+            _dirtySegments.add( key );
+        }
+    }
+
+}
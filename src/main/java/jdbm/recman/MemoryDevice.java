@@ -0,0 +1,140 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Block device keeping all blocks on the Java heap. Nothing is ever
+ * written to disk, so the content is lost when the device is closed;
+ * this is meant for tests, benchmarks and throw-away stores.
+ */
+public final class MemoryDevice
+    implements BlockDevice
+{
+    // blocks, indexed by block id; null for blocks never written.
+    private final ArrayList _blocks = new ArrayList();
+    private final int _blockSize;
+
+    /**
+     * Creates an empty device. The file name is ignored.
+     */
+    public MemoryDevice( String fileName, int blockSize )
+    {
+        _blockSize = blockSize;
+    }
+
+    public boolean read( long blockid, byte[] buffer )
+    {
+        if ( blockid >= _blocks.size() )
+        {
+            return false;
+        }
+        byte[] data = (byte[]) _blocks.get( (int) blockid );
+        if ( data == null )
+        {
+            return false;
+        }
+        System.arraycopy( data, 0, buffer, 0, _blockSize );
+        return true;
+    }
+
+    public void write( long blockid, byte[] buffer )
+    {
+        if ( blockid > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Block " + blockid
+                + " out of range for memory device" );
+        }
+        int index = (int) blockid;
+        while ( _blocks.size() <= index )
+        {
+            _blocks.add( null );
+        }
+        byte[] data = (byte[]) _blocks.get( index );
+        if ( data == null )
+        {
+            data = new byte[ _blockSize ];
+            _blocks.set( index, data );
+        }
+        System.arraycopy( buffer, 0, data, 0, _blockSize );
+    }
+
+    public void write( long[] blockids, byte[][] buffers, int count )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            write( blockids[i], buffers[i] );
+        }
+    }
+
+    public void sync()
+    {
+        // nothing to do
+    }
+
+    public long length()
+    {
+        return (long) _blocks.size() * _blockSize;
+    }
+
+    public void truncate( long blocks )
+    {
+        while ( _blocks.size() > blocks )
+        {
+            _blocks.remove( _blocks.size() - 1 );
+        }
+    }
+
+    public void close()
+    {
+        _blocks.clear();
+    }
+
+}
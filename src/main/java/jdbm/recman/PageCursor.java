@@ -56,6 +56,7 @@ import java.io.IOException;
 final class PageCursor
 {
     PageManager pageman;
+    Snapshot snapshot;
     long current;
     short type;
 
@@ -63,8 +64,18 @@ final class PageCursor
      * Constructs a page cursor that starts at the indicated block.
      */
     PageCursor( PageManager pageman, long current )
+    {
+        this( pageman, null, current );
+    }
+
+    /**
+     * Constructs a page cursor that starts at the indicated block, and
+     * follows the pages as of the indicated snapshot.
+     */
+    PageCursor( PageManager pageman, Snapshot snapshot, long current )
     {
         this.pageman = pageman;
+        this.snapshot = snapshot;
         this.current = current;
     }
 
@@ -94,7 +105,7 @@ final class PageCursor
         if ( current == 0 )
             current = pageman.getFirst( type );
         else
-            current = pageman.getNext( current );
+            current = pageman.getNext( current, snapshot );
         return current;
     }
 
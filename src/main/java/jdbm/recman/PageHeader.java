@@ -114,7 +114,8 @@ public class PageHeader implements BlockView
     {
         int magic = getMagic();
         return magic >= Magic.BLOCK
-            && magic <= ( Magic.BLOCK + Magic.FREEPHYSIDS_PAGE );
+            && magic < ( Magic.BLOCK + Magic.FREEPHYSIDS_CLASS_PAGE
+                         + Magic.NSIZE_CLASSES );
     }
 
     /**
@@ -171,6 +172,14 @@ public class PageHeader implements BlockView
         block.writeLong( O_PREV, prev );
     }
 
+    /**
+     * Returns the type of the page header
+     */
+    short getType()
+    {
+        return (short) ( getMagic() - Magic.BLOCK );
+    }
+
     /**
      * Sets the type of the page header
      */
@@ -48,6 +48,7 @@
 package jdbm.recman;
 
 import java.io.*;
+import java.util.TreeSet;
 
 /**
  * This class manages the linked lists of pages that make up a file.
@@ -69,9 +70,9 @@ final class PageManager
 
         // check the file header. If the magic is 0, we assume a new
         // file. Note that we hold on to the file header node.
-        headerBuf = file.get( 0 );
+        headerBuf = file.hold( 0 );
         if ( headerBuf.readShort( 0 ) == 0 )
-            header = new FileHeader( headerBuf, true );
+            header = new FileHeader( headerBuf, true, newFileFlags() );
         else
             header = new FileHeader( headerBuf, false );
     }
@@ -113,9 +114,7 @@ final class PageManager
         long oldLast = header.getLastOf( type );
 
         // Clean data.
-        System.arraycopy( RecordFile.cleanData, 0,
-                          buf.getData(), 0,
-                          RecordFile.BLOCK_SIZE );
+        buf.clearData();
         pageHdr.setType( type );
         pageHdr.setPrev( oldLast );
         pageHdr.setNext( 0 );
@@ -193,18 +192,162 @@ final class PageManager
     }
 
 
+    /**
+     * Shrinks the file. The free pages at its end are taken off the
+     * free list, and the pages of the free rowid lists found there are
+     * moved to free pages before them, to go as well. Data and
+     * translation pages are never moved, as rowids refer to them. The
+     * free list is left in block order, so that pages are allocated
+     * from the head of the file first. Returns the number of blocks
+     * left, which the file may be truncated to.
+     */
+    long shrink() throws IOException
+    {
+        long end = header.getLastOf( Magic.FREE_PAGE );
+        if ( end == 0 )
+        {
+            // very new file - only the header
+            return 1;
+        }
+        TreeSet free = new TreeSet();
+        for ( long page = header.getFirstOf( Magic.FREE_PAGE ); page != 0;
+              page = getNext( page ) )
+        {
+            free.add( new Long( page ) );
+        }
+        long newEnd = end;
+        while ( newEnd > 1 )
+        {
+            long last = newEnd - 1;
+            if ( !free.remove( new Long( last ) ) )
+            {
+                if ( free.isEmpty() || !isMovable( last ) )
+                {
+                    break;
+                }
+                Long to = (Long) free.first();
+                free.remove( to );
+                move( last, to.longValue() );
+            }
+            newEnd--;
+        }
+        if ( newEnd == end )
+        {
+            return end;
+        }
+
+        // link the free pages left in block order
+        Long[] pages = (Long[]) free.toArray( new Long[ free.size() ] );
+        long next = 0;
+        for ( int i = pages.length - 1; i >= 0; i-- )
+        {
+            long page = pages[i].longValue();
+            BlockIo buf = file.get( page );
+            PageHeader pageHdr = PageHeader.getView( buf );
+            boolean isDirty = pageHdr.getNext() != next;
+            if ( isDirty )
+            {
+                pageHdr.setNext( next );
+            }
+            file.release( page, isDirty );
+            next = page;
+        }
+        header.setFirstOf( Magic.FREE_PAGE, next );
+        header.setLastOf( Magic.FREE_PAGE, newEnd );
+        return newEnd;
+    }
+
+    /**
+     * Returns whether the indicated page may be moved, being on a list
+     * of free rowids.
+     */
+    private boolean isMovable( long block ) throws IOException
+    {
+        BlockIo buf = file.getShared( block );
+        try
+        {
+            short type = PageHeader.getView( buf ).getType();
+            return type == Magic.FREELOGIDS_PAGE || type >= Magic.FREEPHYSIDS_PAGE;
+        }
+        finally
+        {
+            file.release( block, false );
+        }
+    }
+
+    /**
+     * Moves the page at the indicated block to the indicated free
+     * page, which is off the free list, in the place of the former on
+     * its list. The former is left as it is, to be dropped.
+     */
+    private void move( long from, long to ) throws IOException
+    {
+        BlockIo buf = file.get( from );
+        PageHeader pageHdr = PageHeader.getView( buf );
+        short type = pageHdr.getType();
+        long prev = pageHdr.getPrev();
+        long next = pageHdr.getNext();
+        byte[] data = new byte[ buf.getSize() ];
+        buf.readBytes( 0, data, 0, data.length );
+        file.release( from, false );
+
+        buf = file.get( to );
+        buf.writeBytes( 0, data, 0, data.length );
+        buf.setView( null );
+        file.release( to, true );
+
+        if ( prev != 0 )
+        {
+            buf = file.get( prev );
+            PageHeader.getView( buf ).setNext( to );
+            file.release( prev, true );
+        }
+        else
+        {
+            header.setFirstOf( type, to );
+        }
+        if ( next != 0 )
+        {
+            buf = file.get( next );
+            PageHeader.getView( buf ).setPrev( to );
+            file.release( next, true );
+        }
+        else
+        {
+            header.setLastOf( type, to );
+        }
+    }
+
+    /**
+     * Returns whether the current transaction holds changes.
+     */
+    boolean hasChanges()
+    {
+        return headerBuf.isDirty() || file.hasChanges();
+    }
+
     /**
      * Returns the page following the indicated block
      */
     long getNext( long block ) throws IOException
     {
+        return getNext( block, null );
+    }
+
+    /**
+     * Returns the page following the indicated block as of the
+     * indicated snapshot, or as of now if the snapshot is null.
+     */
+    long getNext( long block, Snapshot snapshot ) throws IOException
+    {
+        BlockIo buf = file.getShared( snapshot, block );
         try
         {
-            return PageHeader.getView( file.get( block ) ).getNext();
+            return PageHeader.getView( buf ).getNext();
         }
         finally
         {
-            file.release( block, false );
+            file.release( snapshot, buf );
         }
     }
 
@@ -215,7 +358,7 @@ final class PageManager
     {
         try
         {
-            return PageHeader.getView( file.get( block ) ).getPrev();
+            return PageHeader.getView( file.getShared( block ) ).getPrev();
         }
         finally
         {
@@ -246,14 +389,26 @@ final class PageManager
      * {@link RecordFile.flush()} as well).
      */
     void commit() throws IOException
+    {
+        file.waitForLog( commitToLog() );
+    }
+
+    /**
+     * Writes the current transaction to the log, and returns the log
+     * sequence number to wait for before it is durable.
+     *
+     * @see RecordFile#commitToLog
+     */
+    long commitToLog() throws IOException
     {
         // write the header out
         file.release( headerBuf );
-        file.commit();
+        long lsn = file.commitToLog();
 
         // and obtain it again
-        headerBuf = file.get( 0 );
+        headerBuf = file.hold( 0 );
         header = new FileHeader( headerBuf, false );
+        return lsn;
     }
 
     /**
@@ -262,17 +417,38 @@ final class PageManager
      */
     void rollback() throws IOException
     {
-        // release header
-        file.discard( headerBuf );
+        // release header, to be rolled back with the other blocks
+        file.release( headerBuf );
         file.rollback();
         // and obtain it again
-        headerBuf = file.get( 0 );
+        headerBuf = file.hold( 0 );
         if ( headerBuf.readShort( 0 ) == 0 )
-            header = new FileHeader( headerBuf, true );
+            header = new FileHeader( headerBuf, true, newFileFlags() );
         else
             header = new FileHeader( headerBuf, false );
     }
 
+    /**
+     * Sets a savepoint in the current transaction.
+     *
+     * @see RecordFile#setSavepoint
+     */
+    int setSavepoint()
+    {
+        return file.setSavepoint();
+    }
+
+    /**
+     * Rolls back the current transaction to a savepoint. The header
+     * stays held, and is rolled back in place.
+     *
+     * @see RecordFile#rollback(int)
+     */
+    void rollback( int savepoint ) throws IOException
+    {
+        file.rollback( savepoint );
+    }
+
     /**
      * Closes the page manager. This flushes the page manager and releases
      * the lock on the header.
@@ -286,6 +462,19 @@ final class PageManager
         file = null;
     }
 
+    /**
+     * Returns the flags of the file header of a new file.
+     */
+    private int newFileFlags()
+    {
+        int flags = FileHeader.FLAG_SIZE_CLASSES;
+        if ( file.hasChecksums() )
+        {
+            flags |= FileHeader.FLAG_CHECKSUMS;
+        }
+        return flags;
+    }
+
     /**
      * Returns the file header.
      */
@@ -48,6 +48,8 @@
 package jdbm.recman;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
 
 /**
  * This class manages physical row ids, and their data.
@@ -60,6 +62,14 @@ final class PhysicalRowIdManager
     private PageManager pageman;
     private FreePhysicalRowIdPageManager freeman;
 
+    // usable block size of the file, and data bytes on a data page.
+    private final int blockSize;
+    private final int dataPerPage;
+
+    // where new records are tacked on, if known. Only valid as long as
+    // the blocks aren't rolled back.
+    private Location tail;
+
     /**
      * Creates a new rowid manager using the indicated record file.
      * and page manager.
@@ -70,6 +80,8 @@ final class PhysicalRowIdManager
         this.file = file;
         this.pageman = pageManager;
         this.freeman = new FreePhysicalRowIdPageManager( file, pageman );
+        this.blockSize = file.getUsableSize();
+        this.dataPerPage = DataPage.dataPerPage( blockSize );
     }
 
     /**
@@ -119,22 +131,286 @@ final class PhysicalRowIdManager
         free( rowid );
     }
 
+    /**
+     * Moves the record at the indicated rowid to a free rowid, and
+     * returns the latter, or null if no free rowid fits the record.
+     */
+    Location move( Location rowid )
+        throws IOException
+    {
+        byte[] data = fetch( rowid );
+        Location retval = allocFree( data.length );
+        if ( retval == null )
+        {
+            return null;
+        }
+        write( retval, data, 0, data.length );
+        free( rowid );
+        return retval;
+    }
+
+    /**
+     * Drops the free rowids past the last record of the data pages, the
+     * records being at the indicated rowids, and frees the pages left
+     * empty. Returns the rowid of the last record, or null if there is
+     * none, in which case all of the data pages are freed.
+     */
+    Location trim( Set records )
+        throws IOException
+    {
+        // walk back from the last page to the last record, taking the
+        // free rowids past it off the free lists.
+        tail = null;
+        Location last = null;
+        int lastSize = 0;
+        long page = pageman.getLast( Magic.USED_PAGE );
+        while ( page != 0 && last == null )
+        {
+            ArrayList rowids = new ArrayList();
+            ArrayList sizes = new ArrayList();
+            BlockIo block = file.get( page );
+            int pos = DataPage.getDataPageView( block ).getFirst();
+            while ( pos != 0 && pos <= blockSize - RecordHeader.SIZE )
+            {
+                Location rowid = new Location( page, (short) pos );
+                int size = new RecordHeader( block, (short) pos ).getAvailableSize();
+                if ( size == 0 && !records.contains( rowid ) )
+                {
+                    // end of the records
+                    break;
+                }
+                rowids.add( rowid );
+                sizes.add( new Integer( size ) );
+                if ( size == 0 )
+                {
+                    break;
+                }
+                pos += RecordHeader.SIZE + size;
+            }
+            file.release( page, false );
+
+            for ( int i = rowids.size() - 1; i >= 0 && last == null; i-- )
+            {
+                Location rowid = (Location) rowids.get( i );
+                int size = ( (Integer) sizes.get( i ) ).intValue();
+                if ( records.contains( rowid ) )
+                {
+                    last = rowid;
+                    lastSize = size;
+                }
+                else
+                {
+                    freeman.remove( rowid, size );
+                }
+            }
+            if ( last == null )
+            {
+                page = pageman.getPrev( page );
+            }
+        }
+
+        if ( last == null )
+        {
+            for ( long free = pageman.getLast( Magic.USED_PAGE ); free != 0;
+                  free = pageman.getLast( Magic.USED_PAGE ) )
+            {
+                pageman.free( Magic.USED_PAGE, free );
+            }
+            return null;
+        }
+        Location end = following( last, lastSize );
+        if ( end != null )
+        {
+            endAt( end );
+        }
+        return last;
+    }
+
+    /**
+     * Returns the location of the record header following the rowid at
+     * the indicated location with the indicated available size, or
+     * null if the rowid fills the data pages up.
+     */
+    private Location following( Location rowid, int size )
+        throws IOException
+    {
+        long page = rowid.getBlock();
+        int end = rowid.getOffset() + RecordHeader.SIZE + size;
+        while ( end >= blockSize )
+        {
+            page = pageman.getNext( page );
+            if ( page == 0 )
+            {
+                return null;
+            }
+            end -= dataPerPage;
+        }
+        return new Location( page, (short) end );
+    }
+
+    /**
+     * Returns the location of the rowid right before the indicated one,
+     * or null if there is none.
+     */
+    private Location preceding( Location rowid )
+        throws IOException
+    {
+        long page = rowid.getBlock();
+        int pos = firstOf( page );
+        if ( pos == rowid.getOffset() )
+        {
+            // the rowid before starts on a page before.
+            do
+            {
+                page = pageman.getPrev( page );
+            }
+            while ( page != 0 && ( pos = firstOf( page ) ) == 0 );
+            if ( page == 0 )
+            {
+                return null;
+            }
+        }
+
+        // follow the rowids on the page up to the indicated one, or to
+        // the last one.
+        Location retval = null;
+        int size = 0;
+        BlockIo block = file.get( page );
+        while ( pos <= blockSize - RecordHeader.SIZE
+                && ( page != rowid.getBlock() || pos < rowid.getOffset() ) )
+        {
+            int avail = new RecordHeader( block, (short) pos ).getAvailableSize();
+            if ( avail <= 0 )
+            {
+                // the end of the records, or no rowid at all
+                break;
+            }
+            retval = new Location( page, (short) pos );
+            size = avail;
+            pos += RecordHeader.SIZE + avail;
+        }
+        file.release( page, false );
+        if ( retval == null || !rowid.equals( following( retval, size ) ) )
+        {
+            return null;
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the offset of the first rowid on the indicated page, or 0
+     * if the page only holds the end of a record.
+     */
+    private int firstOf( long page )
+        throws IOException
+    {
+        BlockIo block = file.get( page );
+        try
+        {
+            return DataPage.getDataPageView( block ).getFirst();
+        }
+        finally
+        {
+            file.release( page, false );
+        }
+    }
+
+    /**
+     * Ends the records at the indicated location, clearing the space
+     * past it and freeing the data pages that follow. New records are
+     * tacked on there, in space expected to be zeroes.
+     */
+    private void endAt( Location end )
+        throws IOException
+    {
+        long page = end.getBlock();
+        if ( end.getOffset() == DataPage.O_DATA )
+        {
+            // nothing left on the page
+            page = pageman.getPrev( page );
+            tail = null;
+        }
+        else
+        {
+            tail = end;
+            BlockIo block = file.get( page );
+            byte[] rest = new byte[ blockSize - end.getOffset() ];
+            block.readBytes( end.getOffset(), rest, 0, rest.length );
+            boolean isDirty = false;
+            for ( int i = 0; i < rest.length && !isDirty; i++ )
+            {
+                isDirty = rest[i] != 0;
+            }
+            if ( isDirty )
+            {
+                block.writeBytes( end.getOffset(), new byte[ rest.length ], 0, rest.length );
+            }
+            file.release( page, isDirty );
+        }
+        for ( long free = pageman.getLast( Magic.USED_PAGE ); free != page;
+              free = pageman.getLast( Magic.USED_PAGE ) )
+        {
+            pageman.free( Magic.USED_PAGE, free );
+        }
+    }
+
+    /**
+     * Sets whether free space is kept in memory.
+     *
+     * @see FreePhysicalRowIdPageManager#setInMemory
+     */
+    void setFreeSpaceInMemory( boolean inMemory )
+        throws IOException
+    {
+        freeman.setInMemory( inMemory );
+    }
+
+    /**
+     * Writes the free space kept in memory, if any, to the file, ahead
+     * of a commit.
+     */
+    void flush()
+        throws IOException
+    {
+        freeman.flush();
+    }
+
+    /**
+     * Forgets the free space kept in memory, if any, once the file is
+     * rolled back.
+     */
+    void discard()
+    {
+        tail = null;
+        freeman.discard();
+    }
+
     /**
      * Retrieves a record.
      */
     byte[] fetch( Location rowid )
         throws IOException
+    {
+        return fetch( rowid, null );
+    }
+
+    /**
+     * Retrieves a record as of the indicated snapshot, or as of now if
+     * the snapshot is null.
+     */
+    byte[] fetch( Location rowid, Snapshot snapshot )
+        throws IOException
     {
         // fetch the record header
-        PageCursor curs = new PageCursor( pageman, rowid.getBlock() );
-        BlockIo block = file.get( curs.getCurrent() );
+        PageCursor curs = new PageCursor( pageman, snapshot, rowid.getBlock() );
+        BlockIo block = file.getShared( snapshot, curs.getCurrent() );
         RecordHeader head = new RecordHeader( block, rowid.getOffset() );
 
         // allocate a return buffer
         byte[] retval = new byte[ head.getCurrentSize() ];
         if ( retval.length == 0 )
         {
-            file.release( curs.getCurrent(), false );
+            file.release( snapshot, block );
             return retval;
         }
 
@@ -142,27 +418,37 @@ final class PhysicalRowIdManager
         int offsetInBuffer = 0;
         int leftToRead = retval.length;
         short dataOffset = (short) ( rowid.getOffset() + RecordHeader.SIZE );
+
+        // pages of a record are usually allocated in a row, so read the
+        // ones we expect to follow ahead of us.
+        long expected = curs.getCurrent() + 1;
+        file.prefetch( expected, pagesFor( leftToRead - ( blockSize - dataOffset ) ) );
         while ( leftToRead > 0 )
         {
             // copy current page's data to return buffer
-            int toCopy = RecordFile.BLOCK_SIZE - dataOffset;
+            int toCopy = blockSize - dataOffset;
             if ( leftToRead < toCopy )
             {
                 toCopy = leftToRead;
             }
-            System.arraycopy( block.getData(), dataOffset,
-                              retval, offsetInBuffer,
-                              toCopy );
+            block.readBytes( dataOffset, retval, offsetInBuffer, toCopy );
 
             // Go to the next block
             leftToRead -= toCopy;
             offsetInBuffer += toCopy;
 
-            file.release( block );
+            file.release( snapshot, block );
 
             if ( leftToRead > 0 )
             {
-                block = file.get( curs.next() );
+                long next = curs.next();
+                if ( next != expected )
+                {
+                    // the record isn't contiguous; guess again from here.
+                    file.prefetch( next + 1, pagesFor( leftToRead - dataPerPage ) );
+                }
+                expected = next + 1;
+                block = file.getShared( snapshot, next );
                 dataOffset = DataPage.O_DATA;
             }
 
@@ -171,13 +457,26 @@ final class PhysicalRowIdManager
         return retval;
     }
 
+    /**
+     * Returns the number of data pages needed for the indicated number
+     * of bytes.
+     */
+    private int pagesFor( int bytes )
+    {
+        if ( bytes <= 0 )
+        {
+            return 0;
+        }
+        return ( bytes + dataPerPage - 1 ) / dataPerPage;
+    }
+
     /**
      * Allocate a new rowid with the indicated size.
      */
     private Location alloc( int size )
         throws IOException
     {
-        Location retval = freeman.get( size );
+        Location retval = allocFree( size );
         if ( retval == null )
         {
             retval = allocNew( size, pageman.getLast( Magic.USED_PAGE ) );
@@ -185,6 +484,85 @@ final class PhysicalRowIdManager
         return retval;
     }
 
+    /**
+     * Allocates a free rowid with the indicated size, or returns null
+     * if none fits. The rest of a much larger one stays free.
+     */
+    private Location allocFree( int size )
+        throws IOException
+    {
+        Location retval = freeman.get( size );
+        if ( retval == null )
+        {
+            return null;
+        }
+
+        // where the rest would start. Its header can't take the last
+        // bytes of a page, so these go along; a small bit left doesn't
+        // make a rowid of its own either (16 bytes, as in allocNew).
+        size = Math.max( size, 1 );
+        int end = retval.getOffset() + RecordHeader.SIZE + size;
+        if ( end > blockSize )
+        {
+            end = DataPage.O_DATA + ( end - blockSize ) % dataPerPage;
+        }
+        if ( blockSize - end < RecordHeader.SIZE + 16 )
+        {
+            size += blockSize - end;
+        }
+        BlockIo block = file.get( retval.getBlock() );
+        RecordHeader hdr = new RecordHeader( block, retval.getOffset() );
+        int rest = hdr.getAvailableSize() - size - RecordHeader.SIZE;
+        if ( rest < 16 )
+        {
+            file.release( retval.getBlock(), false );
+            return retval;
+        }
+        hdr.setAvailableSize( size );
+        file.release( retval.getBlock(), true );
+        setFirsts( retval, size );
+
+        Location restId = following( retval, size );
+        block = file.get( restId.getBlock() );
+        hdr = new RecordHeader( block, restId.getOffset() );
+        hdr.setFree();
+        hdr.setAvailableSize( rest );
+        file.release( restId.getBlock(), true );
+        freeman.put( restId, rest );
+        return retval;
+    }
+
+    /**
+     * Points the pages the rowid at the indicated location, with the
+     * indicated available size, runs over to the first rowid past it,
+     * or to none if it fills them. When the rowid ends at the end of a
+     * page, the rowid past it is the first of the next page.
+     */
+    private void setFirsts( Location rowid, int size )
+        throws IOException
+    {
+        long page = rowid.getBlock();
+        int end = rowid.getOffset() + RecordHeader.SIZE + size;
+        while ( end >= blockSize )
+        {
+            page = pageman.getNext( page );
+            if ( page == 0 )
+            {
+                // the rowid ends with the last page
+                return;
+            }
+            end -= dataPerPage;
+            short first = (short) ( end < blockSize ? end : 0 );
+            DataPage curPage = DataPage.getDataPageView( file.get( page ) );
+            boolean isDirty = curPage.getFirst() != first;
+            if ( isDirty )
+            {
+                curPage.setFirst( first );
+            }
+            file.release( page, isDirty );
+        }
+    }
+
     /**
      * Allocates a new rowid. The second parameter is there to
      * allow for a recursive call - it indicates where the search
@@ -212,9 +590,14 @@ final class PhysicalRowIdManager
             curPage = DataPage.getDataPageView( curBlock );
         }
 
-        // follow the rowids on this page to get to the last one. We don't
-        // fall off, because this is the last page, remember?
-        short pos = curPage.getFirst();
+        // follow the rowids on this page to get to the last one, from
+        // where it is if we know. We don't fall off, because this is the
+        // last page, remember?
+        int pos = curPage.getFirst();
+        if ( tail != null && tail.getBlock() == start )
+        {
+            pos = tail.getOffset();
+        }
         if ( pos == 0 )
         {
             // page is exactly filled by the last block of a record
@@ -222,18 +605,18 @@ final class PhysicalRowIdManager
             return allocNew( size, 0 );
         }
 
-        RecordHeader hdr = new RecordHeader( curBlock, pos );
-        while ( hdr.getAvailableSize() != 0 && pos < RecordFile.BLOCK_SIZE )
+        RecordHeader hdr = new RecordHeader( curBlock, (short) pos );
+        while ( hdr.getAvailableSize() != 0 && pos < blockSize )
         {
             pos += hdr.getAvailableSize() + RecordHeader.SIZE;
-            if ( pos == RecordFile.BLOCK_SIZE )
+            if ( pos == blockSize )
             {
                 // Again, a filled page.
                 file.release( curBlock );
                 return allocNew( size, 0 );
             }
 
-            hdr = new RecordHeader( curBlock, pos );
+            hdr = new RecordHeader( curBlock, (short) pos );
         }
 
         if ( pos == RecordHeader.SIZE )
@@ -245,17 +628,17 @@ final class PhysicalRowIdManager
 
         // we have the position, now tack on extra pages until we've got
         // enough space.
-        Location retval = new Location( start, pos );
-        int freeHere = RecordFile.BLOCK_SIZE - pos - RecordHeader.SIZE;
+        Location retval = new Location( start, (short) pos );
+        int freeHere = blockSize - pos - RecordHeader.SIZE;
         if ( freeHere < size )
         {
             // check whether the last page would have only a small bit left.
             // if yes, increase the allocation. A small bit is a record
             // header plus 16 bytes.
-            int lastSize = ( size - freeHere ) % DataPage.DATA_PER_PAGE;
-            if ( ( DataPage.DATA_PER_PAGE - lastSize ) < ( RecordHeader.SIZE + 16 ) )
+            int lastSize = ( size - freeHere ) % dataPerPage;
+            if ( ( dataPerPage - lastSize ) < ( RecordHeader.SIZE + 16 ) )
             {
-                size += ( DataPage.DATA_PER_PAGE - lastSize );
+                size += ( dataPerPage - lastSize );
             }
 
             // write out the header now so we don't have to come back.
@@ -264,14 +647,14 @@ final class PhysicalRowIdManager
 
             int neededLeft = size - freeHere;
             // Refactor these two blocks!
-            while ( neededLeft >= DataPage.DATA_PER_PAGE )
+            while ( neededLeft >= dataPerPage )
             {
                 start = pageman.allocate( Magic.USED_PAGE );
                 curBlock = file.get( start );
                 curPage = DataPage.getDataPageView( curBlock );
                 curPage.setFirst( (short) 0 ); // no rowids, just data
                 file.release( start, true );
-                neededLeft -= DataPage.DATA_PER_PAGE;
+                neededLeft -= dataPerPage;
             }
             if ( neededLeft > 0 )
             {
@@ -281,6 +664,11 @@ final class PhysicalRowIdManager
                 curPage = DataPage.getDataPageView( curBlock );
                 curPage.setFirst( (short) ( DataPage.O_DATA + neededLeft ) );
                 file.release( start, true );
+                tail = new Location( start, (short) ( DataPage.O_DATA + neededLeft ) );
+            }
+            else
+            {
+                tail = null;
             }
         }
         else
@@ -294,24 +682,81 @@ final class PhysicalRowIdManager
             }
             hdr.setAvailableSize( size );
             file.release( start, true );
+            int end = pos + RecordHeader.SIZE + size;
+            tail = end < blockSize ? new Location( start, (short) end ) : null;
         }
         return retval;
 
     }
 
 
+    /**
+     * Frees the indicated rowid, merged with the free rowids next to
+     * it. Space at the end of the records is given back to the end
+     * instead.
+     */
     private void free( Location id )
         throws IOException
     {
-        // get the rowid, and write a zero current size into it.
         BlockIo curBlock = file.get( id.getBlock() );
-        DataPage curPage = DataPage.getDataPageView( curBlock );
+        int size = new RecordHeader( curBlock, id.getOffset() ).getAvailableSize();
+        file.release( id.getBlock(), false );
+
+        // take along the free rowids that follow
+        Location next = following( id, size );
+        while ( next != null )
+        {
+            curBlock = file.get( next.getBlock() );
+            RecordHeader hdr = new RecordHeader( curBlock, next.getOffset() );
+            int nextSize = hdr.getAvailableSize();
+            boolean isFree = hdr.isFree();
+            file.release( next.getBlock(), false );
+            if ( nextSize == 0 )
+            {
+                // end of the records
+                next = null;
+            }
+            else if ( isFree && freeman.remove( next, nextSize ) )
+            {
+                size += RecordHeader.SIZE + nextSize;
+                next = following( next, nextSize );
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        // and the one before, which can't have a free one before it
+        Location prev = preceding( id );
+        if ( prev != null )
+        {
+            curBlock = file.get( prev.getBlock() );
+            RecordHeader hdr = new RecordHeader( curBlock, prev.getOffset() );
+            int prevSize = hdr.getAvailableSize();
+            boolean isFree = hdr.isFree();
+            file.release( prev.getBlock(), false );
+            if ( isFree && freeman.remove( prev, prevSize ) )
+            {
+                id = prev;
+                size += RecordHeader.SIZE + prevSize;
+            }
+        }
+
+        if ( next == null )
+        {
+            endAt( id );
+            return;
+        }
+        setFirsts( id, size );
+
+        // mark the rowid free, and write it to the free list
+        curBlock = file.get( id.getBlock() );
         RecordHeader hdr = new RecordHeader( curBlock, id.getOffset() );
-        hdr.setCurrentSize( 0 );
+        hdr.setFree();
+        hdr.setAvailableSize( size );
         file.release( id.getBlock(), true );
-
-        // write the rowid to the free list
-        freeman.put( id, hdr.getAvailableSize() );
+        freeman.put( id, size );
     }
 
     /**
@@ -338,14 +783,13 @@ final class PhysicalRowIdManager
         while ( leftToWrite > 0 )
         {
             // copy current page's data to return buffer
-            int toCopy = RecordFile.BLOCK_SIZE - dataOffset;
+            int toCopy = blockSize - dataOffset;
 
             if ( leftToWrite < toCopy )
             {
                 toCopy = leftToWrite;
             }
-            System.arraycopy( data, offsetInBuffer, block.getData(),
-                              dataOffset, toCopy );
+            block.writeBytes( dataOffset, data, offsetInBuffer, toCopy );
 
             // Go to the next block
             leftToWrite -= toCopy;
@@ -86,7 +86,7 @@ public final class Provider
         String value;
         int cacheSize;
 
-        recman = new BaseRecordManager( name );
+        recman = new BaseRecordManager( name, options );
 
         value = options.getProperty( RecordManagerOptions.DISABLE_TRANSACTIONS, "false" );
         if ( value.equalsIgnoreCase( "TRUE" ) )
@@ -94,12 +94,80 @@ public final class Provider
             ( (BaseRecordManager) recman ).disableTransactions();
         }
 
+        value = options.getProperty( RecordManagerOptions.PAGE_CACHE_SIZE );
+        if ( value != null )
+        {
+            ( (BaseRecordManager) recman ).setPageCacheSize( Long.parseLong( value ) );
+        }
+
+        value = options.getProperty( RecordManagerOptions.DIRTY_PAGE_LIMIT );
+        if ( value != null )
+        {
+            ( (BaseRecordManager) recman ).setDirtyPageLimit( Long.parseLong( value ) );
+        }
+
+        value = options.getProperty( RecordManagerOptions.FREE_SPACE_IN_MEMORY, "false" );
+        if ( value.equalsIgnoreCase( "TRUE" ) )
+        {
+            ( (BaseRecordManager) recman ).setFreeSpaceInMemory( true );
+        }
+
+        value = options.getProperty( RecordManagerOptions.LOG_SEGMENT_SIZE );
+        if ( value != null )
+        {
+            ( (BaseRecordManager) recman ).setLogSegmentSize( Long.parseLong( value ) );
+        }
+
+        value = options.getProperty( RecordManagerOptions.CHECKPOINT_LOG_SIZE );
+        String pages = options.getProperty( RecordManagerOptions.CHECKPOINT_DIRTY_PAGES );
+        if ( value != null || pages != null )
+        {
+            ( (BaseRecordManager) recman ).setCheckpointThresholds(
+                value != null ? Long.parseLong( value )
+                    : TransactionManager.DEFAULT_CHECKPOINT_SIZE,
+                pages != null ? Integer.parseInt( pages )
+                    : TransactionManager.DEFAULT_CHECKPOINT_BLOCKS );
+        }
+
+        value = options.getProperty( RecordManagerOptions.GROUP_COMMIT_WINDOW );
+        if ( value != null )
+        {
+            String size = options.getProperty( RecordManagerOptions.GROUP_COMMIT_SIZE, "0" );
+            ( (BaseRecordManager) recman ).setGroupCommit( Long.parseLong( value ),
+                                                           Long.parseLong( size ) );
+        }
+
+        value = options.getProperty( RecordManagerOptions.DURABILITY );
+        if ( value != null )
+        {
+            String interval = options.getProperty( RecordManagerOptions.DURABILITY_INTERVAL );
+            ( (BaseRecordManager) recman ).setDurability( value,
+                interval != null ? Long.parseLong( interval )
+                    : TransactionManager.DEFAULT_SYNC_INTERVAL );
+        }
+
+        value = options.getProperty( RecordManagerOptions.PAGE_CACHE_OFF_HEAP, "false" );
+        if ( value.equalsIgnoreCase( "TRUE" ) )
+        {
+            ( (BaseRecordManager) recman ).setPageCacheOffHeap( true );
+        }
+
+        value = options.getProperty( RecordManagerOptions.PREFETCH_SIZE );
+        if ( value != null )
+        {
+            ( (BaseRecordManager) recman ).setPrefetchSize( Integer.parseInt( value ) );
+        }
+
         value = options.getProperty( RecordManagerOptions.CACHE_SIZE, "1000" );
         cacheSize = Integer.parseInt( value );
 
         value = options.getProperty( RecordManagerOptions.CACHE_TYPE,
                                      RecordManagerOptions.NORMAL_CACHE );
-        if ( value.equalsIgnoreCase( RecordManagerOptions.NORMAL_CACHE ) )
+        if ( value.equalsIgnoreCase( RecordManagerOptions.NO_CACHE ) )
+        {
+            // use the record manager as is
+        }
+        else if ( value.equalsIgnoreCase( RecordManagerOptions.NORMAL_CACHE ) )
         {
             MRU cache = new MRU( cacheSize );
             recman = new CacheRecordManager( recman, cache );
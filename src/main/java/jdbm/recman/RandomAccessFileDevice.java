@@ -0,0 +1,180 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Block device on top of a {@link RandomAccessFile}, using a seek
+ * followed by a read or write for every block. This is the default
+ * device.
+ * <p/>
+ * Batches of blocks with consecutive ids are copied into a staging
+ * buffer and written with a single call.
+ */
+public final class RandomAccessFileDevice
+    implements BlockDevice
+{
+    /**
+     * Maximum number of blocks staged for one write.
+     */
+    static final int MAX_RUN = 32;
+
+    private final RandomAccessFile _file;
+    private final int _blockSize;
+
+    // staging buffer for runs of adjacent blocks, allocated on demand.
+    private byte[] _staging;
+
+    /**
+     * Opens or creates the indicated file in read/write mode.
+     */
+    public RandomAccessFileDevice( String fileName, int blockSize )
+        throws IOException
+    {
+        _file = new RandomAccessFile( fileName, "rw" );
+        _blockSize = blockSize;
+    }
+
+    public boolean read( long blockid, byte[] buffer )
+        throws IOException
+    {
+        long offset = blockid * _blockSize;
+        long length = _file.length();
+        if ( offset >= length )
+        {
+            return false;
+        }
+        _file.seek( offset );
+        int remaining = _blockSize;
+        int pos = 0;
+        while ( remaining > 0 )
+        {
+            int read = _file.read( buffer, pos, remaining );
+            if ( read == -1 )
+            {
+                Arrays.fill( buffer, pos, _blockSize, (byte) 0 );
+                break;
+            }
+            remaining -= read;
+            pos += read;
+        }
+        return true;
+    }
+
+    public void write( long blockid, byte[] buffer )
+        throws IOException
+    {
+        _file.seek( blockid * _blockSize );
+        _file.write( buffer, 0, _blockSize );
+    }
+
+    public void write( long[] blockids, byte[][] buffers, int count )
+        throws IOException
+    {
+        int start = 0;
+        while ( start < count )
+        {
+            int end = start + 1;
+            while ( end < count && end - start < MAX_RUN
+                    && blockids[end] == blockids[end - 1] + 1 )
+            {
+                end++;
+            }
+            if ( end - start == 1 )
+            {
+                write( blockids[start], buffers[start] );
+            }
+            else
+            {
+                if ( _staging == null )
+                {
+                    _staging = new byte[ MAX_RUN * _blockSize ];
+                }
+                for ( int i = start; i < end; i++ )
+                {
+                    System.arraycopy( buffers[i], 0, _staging,
+                                      ( i - start ) * _blockSize, _blockSize );
+                }
+                _file.seek( blockids[start] * _blockSize );
+                _file.write( _staging, 0, ( end - start ) * _blockSize );
+            }
+            start = end;
+        }
+    }
+
+    public void sync()
+        throws IOException
+    {
+        _file.getFD().sync();
+    }
+
+    public long length()
+        throws IOException
+    {
+        return _file.length();
+    }
+
+    public void truncate( long blocks )
+        throws IOException
+    {
+        if ( blocks * _blockSize < _file.length() )
+        {
+            _file.setLength( blocks * _blockSize );
+        }
+    }
+
+    public void close()
+        throws IOException
+    {
+        _file.close();
+    }
+
+}
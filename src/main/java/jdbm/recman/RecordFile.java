@@ -48,7 +48,11 @@
 package jdbm.recman;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.zip.CRC32;
+
+import jdbm.RecordManagerOptions;
 
 /**
  * This class represents a random access file as a set of fixed size
@@ -57,40 +61,166 @@ import java.util.*;
  * <p/>
  * The set of dirty records on the in-use list constitutes a transaction.
  * Later on, we will send these records to some recovery thingy.
+ * <p/>
+ * Blocks may be read concurrently: the lists are guarded by the record
+ * file, and each block in use is pinned and latched, shared by readers
+ * or exclusively by a writer. Updates are expected to be serialized
+ * by the caller.
+ * <p/>
+ * The committed image of a block is copied before the block is first
+ * latched for writing in a transaction, and handed to every open
+ * {@link Snapshot} that doesn't hold an earlier one. Snapshots thus
+ * read the blocks as they were when taken, concurrently with writers.
+ * The same images let a transaction be rolled back in memory, and
+ * savepoints keep the images of blocks first latched for writing
+ * after them, to roll back part of a transaction.
  */
 public final class RecordFile
 {
+    /**
+     * The transaction manager, or null if the file lives in memory
+     * and doesn't keep a transaction log.
+     */
     final TransactionManager txnMgr;
 
-    // Todo: reorganize in hashes and fifos as necessary.
-    // free -> inUse -> dirty -> inTxn -> free
-    // free is a cache, thus a FIFO. The rest are hashes.
-    private final LinkedList free = new LinkedList();
+    // cache -> inUse -> dirty -> inTxn -> cache
+    // cache holds clean blocks in LRU order. The rest are hashes;
+    // dirty keeps the order in which blocks were released dirty.
+    // Without transactions, dirty blocks may go through flushing
+    // on their way back to the cache.
+    private final BlockCache cache;
     private final HashMap inUse = new HashMap();
-    private final HashMap dirty = new HashMap();
+    private final LinkedHashMap dirty = new LinkedHashMap();
     private final HashMap inTxn = new HashMap();
+    private final HashMap flushing = new HashMap();
 
     // transactions disabled?
     private boolean transactionsDisabled = false;
 
+    // open snapshots, the committed images of the blocks latched for
+    // writing in the current transaction, and whether the images
+    // cover all of them, which stops being the case past
+    // MAX_PRE_IMAGES blocks unless snapshots need them.
+    private final ArrayList snapshots = new ArrayList();
+    private final HashMap preImages = new HashMap();
+    private boolean preImagesComplete = true;
+
+    // savepoints of the current transaction, as maps of the images of
+    // the blocks first latched for writing after each of them.
+    private final ArrayList savepoints = new ArrayList();
+
     /**
-     * The length of a single block.
+     * Number of committed block images kept for a transaction, beyond
+     * which it is rolled back from the log instead of in memory.
+     */
+    final static int MAX_PRE_IMAGES = 1024;
+
+    /**
+     * The default length of a single block.
      */
     public final static int BLOCK_SIZE = 8192;//4096;
 
+    /**
+     * The smallest supported block size.
+     */
+    public final static int MIN_BLOCK_SIZE = 1024;
+
+    /**
+     * The largest supported block size. Offsets within a block are
+     * stored as shorts, which limits blocks to 32k.
+     */
+    public final static int MAX_BLOCK_SIZE = 32768;
+
+    /**
+     * Default size, in bytes, of the cache of clean blocks.
+     */
+    public final static long DEFAULT_CACHE_SIZE = 1024L * BLOCK_SIZE;
+
+    /**
+     * Default number of blocks the prefetcher may read ahead.
+     */
+    public final static int DEFAULT_PREFETCH_SIZE = 32;
+
+    /**
+     * Number of dirty blocks written behind in one batch.
+     */
+    final static int WRITE_BEHIND_BATCH = 64;
+
     /**
      * The extension of a record file
      */
     final static String extension = ".db";
 
     /**
-     * A block of clean data to wipe clean pages.
+     * Orders blocks by block id.
      */
-    final static byte[] cleanData = new byte[BLOCK_SIZE];
+    private final static Comparator BLOCK_ORDER =
+        new TransactionManager.BlockIoComparator();
 
-    private RandomAccessFile file;
+    private BlockDevice device;
     private final String fileName;
 
+    /**
+     * Reads hinted blocks ahead of their use, or null if prefetching
+     * is disabled.
+     */
+    private BlockPrefetcher prefetcher;
+
+    /**
+     * Hands out off-heap block buffers, or null if blocks are kept on
+     * the heap.
+     */
+    private BlockArena arena;
+
+    /**
+     * Maximum number of dirty blocks held without transactions, or 0
+     * if unbounded.
+     */
+    private int dirtyLimit;
+
+    /**
+     * Writes dirty blocks behind, or null if not needed.
+     */
+    private WriteBehind writeBehind;
+
+    /**
+     * True while a batch is being written behind.
+     */
+    private boolean writingBehind;
+
+    /**
+     * Failure of the write-behind thread, reported at the next commit.
+     */
+    private IOException writeBehindFailure;
+
+    /**
+     * Failure to spill dirty blocks to the log, reported by every
+     * commit until the transaction is rolled back.
+     */
+    private IOException spillFailure;
+
+    /**
+     * The length of a single block of this file.
+     */
+    private final int blockSize;
+
+    /**
+     * Length of the checksum trailer of a block.
+     */
+    final static int CHECKSUM_SIZE = Magic.SZ_INT;
+
+    /**
+     * True if every block ends with a checksum of its contents.
+     */
+    private final boolean checksums;
+
+    /**
+     * Number of blocks read whose checksum was verified, or found
+     * wrong.
+     */
+    private long verifiedCount;
+    private long failedCount;
+
     /**
      * Creates a new object on the indicated filename. The file is
      * opened in read/write mode.
@@ -102,9 +232,217 @@ public final class RecordFile
      */
     RecordFile( String fileName ) throws IOException
     {
+        this( fileName, RecordManagerOptions.FILE_DEVICE );
+    }
+
+    /**
+     * Creates a new object on the indicated filename, stored on a
+     * block device of the indicated type.
+     *
+     * @param fileName the name of the file to open or create, without
+     *                 an extension.
+     * @param deviceType one of the built-in device types, or the name
+     *                 of a class implementing {@link BlockDevice}.
+     * @throws IOException whenever the creation of the underlying
+     *                     device throws it.
+     * @see RecordManagerOptions#BLOCK_DEVICE
+     */
+    RecordFile( String fileName, String deviceType ) throws IOException
+    {
+        this( fileName, deviceType, BLOCK_SIZE );
+    }
+
+    /**
+     * Creates a new object on the indicated filename, stored on a
+     * block device of the indicated type.
+     *
+     * @param fileName the name of the file to open or create, without
+     *                 an extension.
+     * @param deviceType one of the built-in device types, or the name
+     *                 of a class implementing {@link BlockDevice}.
+     * @param blockSize the block size to use if the file is created. An
+     *                 existing file keeps the block size recorded in its
+     *                 header.
+     * @throws IOException whenever the creation of the underlying
+     *                     device throws it.
+     * @throws IllegalArgumentException if the block size isn't a power
+     *                     of two between {@link #MIN_BLOCK_SIZE} and
+     *                     {@link #MAX_BLOCK_SIZE}.
+     * @see RecordManagerOptions#BLOCK_DEVICE
+     * @see RecordManagerOptions#BLOCK_SIZE
+     */
+    RecordFile( String fileName, String deviceType, int blockSize )
+        throws IOException
+    {
+        this( fileName, deviceType, blockSize, false );
+    }
+
+    /**
+     * Creates a new object on the indicated filename, stored on a
+     * block device of the indicated type.
+     *
+     * @param fileName the name of the file to open or create, without
+     *                 an extension.
+     * @param deviceType one of the built-in device types, or the name
+     *                 of a class implementing {@link BlockDevice}.
+     * @param blockSize the block size to use if the file is created. An
+     *                 existing file keeps the block size recorded in its
+     *                 header.
+     * @param checksums true if blocks should carry checksums, if the
+     *                 file is created. An existing file keeps the
+     *                 setting recorded in its header.
+     * @throws IOException whenever the creation of the underlying
+     *                     device throws it.
+     * @throws IllegalArgumentException if the block size isn't a power
+     *                     of two between {@link #MIN_BLOCK_SIZE} and
+     *                     {@link #MAX_BLOCK_SIZE}.
+     * @see RecordManagerOptions#BLOCK_DEVICE
+     * @see RecordManagerOptions#BLOCK_SIZE
+     * @see RecordManagerOptions#CHECKSUMS
+     */
+    RecordFile( String fileName, String deviceType, int blockSize,
+                boolean checksums )
+        throws IOException
+    {
+        if ( !isValidBlockSize( blockSize ) )
+        {
+            throw new IllegalArgumentException( "Invalid block size: "
+                + blockSize );
+        }
         this.fileName = fileName;
-        file = new RandomAccessFile( fileName + extension, "rw" );
-        txnMgr = new TransactionManager( this );
+        device = openDevice( deviceType, fileName + extension, blockSize );
+
+        // an existing file dictates its own block size and format.
+        byte[] header = new byte[ blockSize ];
+        if ( device.read( 0, header ) )
+        {
+            int stored = FileHeader.getBlockSize( new BlockIo( 0, header ) );
+            if ( stored != 0 )
+            {
+                int flags = FileHeader.getFlags( new BlockIo( 0, header ) );
+                checksums = ( flags & FileHeader.FLAG_CHECKSUMS ) != 0;
+            }
+            if ( stored != 0 && stored != blockSize )
+            {
+                if ( !isValidBlockSize( stored ) )
+                {
+                    device.close();
+                    throw new IOException( "Invalid block size " + stored
+                        + " in header of " + fileName + extension );
+                }
+                device.close();
+                blockSize = stored;
+                device = openDevice( deviceType, fileName + extension, blockSize );
+            }
+        }
+        this.blockSize = blockSize;
+        this.checksums = checksums;
+
+        cache = new BlockCache( (int) Math.max( 1, DEFAULT_CACHE_SIZE / blockSize ) );
+        if ( device instanceof MemoryDevice )
+        {
+            // nothing survives a crash anyway, so committing straight
+            // to the device is as good as going through a log.
+            transactionsDisabled = true;
+            txnMgr = null;
+        }
+        else
+        {
+            txnMgr = new TransactionManager( this );
+            prefetcher = new BlockPrefetcher( device, blockSize,
+                                              DEFAULT_PREFETCH_SIZE );
+        }
+    }
+
+    /**
+     * Opens the block device of the indicated type.
+     */
+    private static BlockDevice openDevice( String type, String name,
+                                           int blockSize )
+        throws IOException
+    {
+        if ( type.equalsIgnoreCase( RecordManagerOptions.FILE_DEVICE ) )
+        {
+            return new RandomAccessFileDevice( name, blockSize );
+        }
+        else if ( type.equalsIgnoreCase( RecordManagerOptions.CHANNEL_DEVICE ) )
+        {
+            return new FileChannelDevice( name, blockSize );
+        }
+        else if ( type.equalsIgnoreCase( RecordManagerOptions.MAPPED_DEVICE ) )
+        {
+            return new MappedDevice( name, blockSize );
+        }
+        else if ( type.equalsIgnoreCase( RecordManagerOptions.MEMORY_DEVICE ) )
+        {
+            return new MemoryDevice( name, blockSize );
+        }
+
+        try
+        {
+            Constructor ctor = Class.forName( type ).getConstructor(
+                new Class[] { String.class, Integer.TYPE } );
+            return (BlockDevice) ctor.newInstance(
+                new Object[] { name, new Integer( blockSize ) } );
+        }
+        catch ( Exception except )
+        {
+            throw new IllegalArgumentException( "Invalid block device: "
+                + type
+                + "\n[" + except.getClass().getName()
+                + ": " + except.getMessage()
+                + "]" );
+        }
+    }
+
+    /**
+     * Returns true if the indicated block size is supported.
+     */
+    static boolean isValidBlockSize( int blockSize )
+    {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE
+            && ( blockSize & ( blockSize - 1 ) ) == 0;
+    }
+
+    /**
+     * Returns the length of a single block of this file.
+     */
+    int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Returns the number of bytes of a block available to pages: the
+     * block size, less the checksum trailer if any.
+     */
+    int getUsableSize()
+    {
+        return checksums ? blockSize - CHECKSUM_SIZE : blockSize;
+    }
+
+    /**
+     * Returns true if every block of the file carries a checksum.
+     */
+    boolean hasChecksums()
+    {
+        return checksums;
+    }
+
+    /**
+     * Returns the number of blocks read whose checksum was verified.
+     */
+    synchronized long getVerifiedCount()
+    {
+        return verifiedCount;
+    }
+
+    /**
+     * Returns the number of blocks read whose checksum was wrong.
+     */
+    synchronized long getFailedCount()
+    {
+        return failedCount;
     }
 
     /**
@@ -125,67 +463,736 @@ public final class RecordFile
     }
 
     /**
-     * Gets a block from the file. The returned byte array is
+     * Returns the block device the file is stored on.
+     */
+    BlockDevice getDevice()
+    {
+        return device;
+    }
+
+    /**
+     * Sets the size, in bytes, of the cache of clean blocks. The cache
+     * always holds at least one block.
+     */
+    synchronized void setCacheSize( long bytes )
+    {
+        if ( bytes < 0 )
+        {
+            throw new IllegalArgumentException(
+                "Argument 'bytes' must not be negative." );
+        }
+        int max = (int) Math.max( 1,
+            Math.min( Integer.MAX_VALUE, bytes / blockSize ) );
+        while ( cache.size() > max )
+        {
+            recycle( cache.evict() );
+        }
+        cache.setMaximumSize( max );
+    }
+
+    /**
+     * Returns the size, in bytes, of the cache of clean blocks.
+     */
+    long getCacheSize()
+    {
+        return (long) cache.getMaximumSize() * blockSize;
+    }
+
+    /**
+     * Sets the budget, in bytes, for dirty blocks. When transactions
+     * are disabled, once half of it is used, the oldest dirty blocks
+     * are written back in the background; once all of it is used,
+     * threads releasing dirty blocks wait for the writer to catch up.
+     * With transactions enabled, once it is used, the oldest half of
+     * the dirty blocks are spilled to the log and dropped. Zero means
+     * no budget: dirty blocks are only written by commit().
+     */
+    synchronized void setDirtyLimit( long bytes )
+    {
+        if ( bytes < 0 )
+        {
+            throw new IllegalArgumentException(
+                "Argument 'bytes' must not be negative." );
+        }
+        dirtyLimit = (int) Math.min( Integer.MAX_VALUE, ( bytes + blockSize - 1 ) / blockSize );
+        if ( dirtyLimit == 0 && writeBehind != null )
+        {
+            writeBehind.close();
+            writeBehind = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the budget, in bytes, for dirty blocks.
+     */
+    synchronized long getDirtyLimit()
+    {
+        return (long) dirtyLimit * blockSize;
+    }
+
+    /**
+     * Returns the number of dirty blocks, including the ones being
+     * written behind.
+     */
+    synchronized int getDirtyCount()
+    {
+        return dirty.size() + flushing.size();
+    }
+
+    /**
+     * Sets whether blocks read from now on are kept off the Java heap,
+     * in direct buffers, rather than in byte arrays.
+     */
+    void setOffHeap( boolean offHeap )
+    {
+        if ( offHeap && arena == null )
+        {
+            arena = new BlockArena( blockSize );
+        }
+        else if ( !offHeap )
+        {
+            arena = null;
+        }
+    }
+
+    /**
+     * Returns true if blocks are kept off the Java heap.
+     */
+    boolean isOffHeap()
+    {
+        return arena != null;
+    }
+
+    /**
+     * Sets the number of blocks that may be read ahead of their use.
+     * Zero disables prefetching. Prefetching is never done for blocks
+     * kept in memory.
+     */
+    void setPrefetchSize( int blocks )
+    {
+        if ( blocks < 0 )
+        {
+            throw new IllegalArgumentException(
+                "Argument 'blocks' must not be negative." );
+        }
+        if ( device instanceof MemoryDevice )
+        {
+            return;
+        }
+        if ( blocks == 0 )
+        {
+            if ( prefetcher != null )
+            {
+                prefetcher.close();
+                prefetcher = null;
+            }
+        }
+        else if ( prefetcher == null )
+        {
+            prefetcher = new BlockPrefetcher( device, blockSize, blocks );
+        }
+        else
+        {
+            prefetcher.setMaximumSize( blocks );
+        }
+    }
+
+    /**
+     * Returns the number of blocks that may be read ahead of their use.
+     */
+    int getPrefetchSize()
+    {
+        return prefetcher == null ? 0 : prefetcher.getMaximumSize();
+    }
+
+    /**
+     * Hints that a run of blocks will be read shortly, so that they can
+     * be read in the background. Blocks that are already in memory are
+     * skipped. This is only a hint; it never changes what get()
+     * returns.
+     *
+     * @param blockid The first block of the run.
+     * @param count The number of blocks in the run.
+     */
+    synchronized void prefetch( long blockid, int count )
+    {
+        if ( prefetcher == null )
+        {
+            return;
+        }
+        count = Math.min( count, prefetcher.getMaximumSize() );
+        for ( int i = 0; i < count; i++, blockid++ )
+        {
+            Long key = new Long( blockid );
+            if ( !cache.contains( blockid ) && !inUse.containsKey( key )
+                 && !dirty.containsKey( key ) && !inTxn.containsKey( key ) )
+            {
+                prefetcher.hint( blockid );
+            }
+        }
+    }
+
+    /**
+     * Gets a block from the file for update. The returned byte array is
      * the in-memory copy of the record, and thus can be written
      * (and subsequently released with a dirty flag in order to
-     * write the block back).
+     * write the block back). The block is latched exclusively until
+     * released.
      *
      * @param blockid The record number to retrieve.
      */
     BlockIo get( long blockid ) throws IOException
+    {
+        return get( blockid, false );
+    }
+
+    /**
+     * Gets a block from the file for reading only. Any number of
+     * threads may hold the same block this way; the block is latched
+     * shared until released, and must be released clean.
+     *
+     * @param blockid The record number to retrieve.
+     */
+    BlockIo getShared( long blockid ) throws IOException
+    {
+        return get( blockid, true );
+    }
+
+    /**
+     * Gets a block to keep in use across operations run by any thread,
+     * as the page manager does with the file header. Since only a
+     * shared latch may be released by another thread than the one
+     * that took it, the block is latched shared once its committed
+     * image is preserved; updates of the block are serialized by the
+     * caller.
+     *
+     * @param blockid The record number to retrieve.
+     */
+    BlockIo hold( long blockid ) throws IOException
+    {
+        BlockIo node = get( blockid, false );
+        node.getLatch().downgrade();
+        return node;
+    }
+
+    /**
+     * Gets a block from the file, pins it on the in-use list and
+     * latches it in the requested mode. A block that isn't in memory
+     * is read outside of the lock on the lists, latched exclusively
+     * so that other threads asking for it wait for the read to end,
+     * and fail with it.
+     */
+    private BlockIo get( long blockid, boolean shared ) throws IOException
     {
         Long key = new Long( blockid );
+        BlockIo node;
+        boolean load = false;
 
-        // try in transaction list, dirty list, free list
-        BlockIo node = (BlockIo) inTxn.get( key );
-        if ( node != null )
+        synchronized ( this )
         {
-            inTxn.remove( key );
-            inUse.put( key, node );
-            return node;
+            // try in use list, transaction list, dirty lists, cache
+            node = (BlockIo) inUse.get( key );
+            if ( node == null )
+            {
+                node = (BlockIo) inTxn.remove( key );
+                if ( node == null )
+                {
+                    node = (BlockIo) dirty.remove( key );
+                }
+                if ( node == null )
+                {
+                    // still dirty, so that it is kept dirty if the
+                    // write behind ends while the block is in use.
+                    node = (BlockIo) flushing.remove( key );
+                }
+                if ( node == null )
+                {
+                    node = cache.remove( blockid );
+                }
+                if ( node == null )
+                {
+                    // get a new node, to be read from the file
+                    node = getNewNode( blockid );
+                    node.getLatch().lockExclusive();
+                    load = true;
+                }
+                inUse.put( key, node );
+            }
+            node.pin();
         }
-        node = (BlockIo) dirty.get( key );
-        if ( node != null )
+
+        if ( !load )
         {
-            dirty.remove( key );
-            inUse.put( key, node );
+            if ( shared )
+            {
+                node.getLatch().lockShared();
+            }
+            else
+            {
+                node.getLatch().lockExclusive();
+            }
+            if ( node.getFailure() != null )
+            {
+                // the thread that read it failed
+                node.getLatch().unlock();
+                drop( node );
+                throw node.getFailure();
+            }
+            if ( !shared )
+            {
+                preserve( node );
+            }
             return node;
         }
-        for ( Iterator i = free.iterator(); i.hasNext(); )
+
+        IOException failure = null;
+        boolean loaded = false;
+        try
+        {
+            read( node );
+            node.setClean();
+            loaded = true;
+        }
+        catch ( IOException except )
+        {
+            failure = except;
+            throw except;
+        }
+        finally
+        {
+            if ( !loaded )
+            {
+                // drop the node, so that it never gets cached, and let
+                // threads that found it in use fail as well.
+                node.clearData();
+                node.setFailure( failure != null ? failure
+                    : new IOException( "Reading block " + blockid + " failed" ) );
+                synchronized ( this )
+                {
+                    inUse.remove( key );
+                    node.getLatch().unlock();
+                }
+                drop( node );
+            }
+        }
+        if ( shared )
+        {
+            node.getLatch().downgrade();
+        }
+        else
+        {
+            preserve( node );
+        }
+        return node;
+    }
+
+    /**
+     * Copies the image of a block about to be written: for the last
+     * savepoint, and the committed image for rollbacks and the open
+     * snapshots. Blocks already dirty had their committed image copied
+     * when first latched for writing.
+     */
+    private synchronized void preserve( BlockIo node )
+    {
+        Long key = new Long( node.getBlockId() );
+        BlockIo image = null;
+        if ( !savepoints.isEmpty() )
+        {
+            HashMap images = (HashMap) savepoints.get( savepoints.size() - 1 );
+            if ( !images.containsKey( key ) )
+            {
+                image = copyOf( node );
+                images.put( key, image );
+            }
+        }
+
+        if ( node.isDirty() || preImages.containsKey( key ) )
+        {
+            return;
+        }
+        if ( snapshots.isEmpty() )
+        {
+            if ( transactionsDisabled || !preImagesComplete )
+            {
+                return;
+            }
+            if ( preImages.size() >= MAX_PRE_IMAGES )
+            {
+                // too many to keep; roll back from the log instead
+                preImages.clear();
+                preImagesComplete = false;
+                return;
+            }
+        }
+        if ( image == null )
+        {
+            image = copyOf( node );
+        }
+        preImages.put( key, image );
+        for ( int i = 0; i < snapshots.size(); i++ )
+        {
+            ( (Snapshot) snapshots.get( i ) ).preserve( image );
+        }
+    }
+
+    /**
+     * Returns a copy of a block, detached from the file.
+     */
+    private static BlockIo copyOf( BlockIo node )
+    {
+        byte[] data = new byte[ node.getLength() ];
+        node.copyTo( data );
+        BlockIo image = new BlockIo( node.getBlockId(), data );
+        image.reserveTrailer( node.getLength() - node.getSize() );
+        return image;
+    }
+
+    /**
+     * Takes a snapshot of the committed state of the file. The
+     * committed images of the blocks modified in the current
+     * transaction must have been kept, which they aren't past
+     * MAX_PRE_IMAGES blocks, or with transactions disabled, unless
+     * another snapshot was open.
+     *
+     * @throws IllegalStateException if the current transaction holds
+     *         blocks whose committed image is unknown.
+     */
+    synchronized Snapshot snapshot()
+    {
+        if ( !preImages.keySet().containsAll( dirty.keySet() )
+             || !preImages.keySet().containsAll( flushing.keySet() ) )
+        {
+            throw new IllegalStateException(
+                "Uncommitted changes; commit before taking a snapshot" );
+        }
+        // blocks held for writing may be written without being
+        // latched again.
+        HashMap held = new HashMap();
+        for ( Iterator i = inUse.values().iterator(); i.hasNext(); )
+        {
+            BlockIo node = (BlockIo) i.next();
+            Long key = new Long( node.getBlockId() );
+            if ( preImages.containsKey( key ) )
+            {
+                continue;
+            }
+            if ( node.isDirty() )
+            {
+                throw new IllegalStateException(
+                    "Uncommitted changes; commit before taking a snapshot" );
+            }
+            held.put( key, copyOf( node ) );
+        }
+        preImages.putAll( held );
+
+        Snapshot snapshot = new Snapshot();
+        for ( Iterator i = preImages.values().iterator(); i.hasNext(); )
+        {
+            snapshot.preserve( (BlockIo) i.next() );
+        }
+        snapshots.add( snapshot );
+        return snapshot;
+    }
+
+    /**
+     * Closes a snapshot, dropping the block images it holds.
+     */
+    synchronized void closeSnapshot( Snapshot snapshot )
+    {
+        snapshot.close();
+        snapshots.remove( snapshot );
+        if ( snapshots.isEmpty()
+             && ( transactionsDisabled || preImages.size() > MAX_PRE_IMAGES ) )
+        {
+            preImages.clear();
+            preImagesComplete = false;
+        }
+    }
+
+    /**
+     * Sets a savepoint in the current transaction, and returns its
+     * number, to roll back to with {@link #rollback(int)}. Savepoints
+     * last until the transaction ends.
+     *
+     * @throws IllegalStateException if transactions are disabled.
+     */
+    synchronized int setSavepoint()
+    {
+        if ( transactionsDisabled )
+        {
+            throw new IllegalStateException(
+                "Savepoints need transactions" );
+        }
+        // blocks held in use may be written without being latched
+        // again.
+        HashMap images = new HashMap();
+        for ( Iterator i = inUse.values().iterator(); i.hasNext(); )
+        {
+            BlockIo node = (BlockIo) i.next();
+            images.put( new Long( node.getBlockId() ), copyOf( node ) );
+        }
+        savepoints.add( images );
+        return savepoints.size() - 1;
+    }
+
+    /**
+     * Rolls back the changes made in the current transaction since the
+     * indicated savepoint, which is kept, along with the savepoints set
+     * before it. Blocks in use keep their place, with their contents
+     * rolled back.
+     *
+     * @param savepoint a number returned by {@link #setSavepoint}.
+     */
+    synchronized void rollback( int savepoint ) throws IOException
+    {
+        if ( savepoint < 0 || savepoint >= savepoints.size() )
+        {
+            throw new IllegalArgumentException( "Invalid savepoint: "
+                                                + savepoint );
+        }
+        // restore the images of the last savepoint first: those of
+        // earlier savepoints are older.
+        for ( int n = savepoints.size() - 1; n >= savepoint; n-- )
+        {
+            HashMap images = (HashMap) savepoints.get( n );
+            for ( Iterator i = images.values().iterator(); i.hasNext(); )
+            {
+                BlockIo image = (BlockIo) i.next();
+                Long key = new Long( image.getBlockId() );
+                BlockIo node = (BlockIo) inUse.get( key );
+                if ( node == null )
+                {
+                    node = (BlockIo) dirty.get( key );
+                }
+                if ( node == null && txnMgr != null
+                     && txnMgr.isSpilled( image.getBlockId() ) )
+                {
+                    // spilled since; the image is logged again at commit
+                    node = cache.remove( image.getBlockId() );
+                    if ( node == null )
+                    {
+                        node = getNewNode( image.getBlockId() );
+                    }
+                    node.setDirty();
+                    dirty.put( key, node );
+                }
+                // blocks that aren't dirty weren't changed since
+                if ( node != null && node.isDirty() )
+                {
+                    node.load( image.getData() );
+                    node.setDirty();
+                }
+            }
+            if ( n > savepoint )
+            {
+                savepoints.remove( n );
+            }
+        }
+        // the images of the savepoint are kept: they still are what the
+        // blocks were at the savepoint, including those of the blocks
+        // held in use, which are only imaged when it's set.
+    }
+
+    /**
+     * Gets a block for reading only, as of the indicated snapshot, or
+     * as of now if the snapshot is null. The block must be released
+     * through {@link #release(Snapshot, BlockIo)}.
+     */
+    BlockIo getShared( Snapshot snapshot, long blockid ) throws IOException
+    {
+        if ( snapshot == null )
+        {
+            return getShared( blockid );
+        }
+        synchronized ( this )
+        {
+            checkSnapshot( snapshot );
+            BlockIo image = snapshot.get( blockid );
+            if ( image != null )
+            {
+                return image;
+            }
+        }
+        BlockIo node = getShared( blockid );
+        synchronized ( this )
+        {
+            // a writer may have copied the block while we waited for
+            // it, and changed it since.
+            BlockIo image = snapshot.get( blockid );
+            if ( image != null )
+            {
+                release( node );
+                return image;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Releases a block obtained from {@link #getShared(Snapshot, long)}.
+     */
+    synchronized void release( Snapshot snapshot, BlockIo block )
+    {
+        if ( snapshot == null || snapshot.get( block.getBlockId() ) != block )
+        {
+            release( block );
+        }
+    }
+
+    /**
+     * Throws if the indicated snapshot is closed.
+     */
+    private static void checkSnapshot( Snapshot snapshot )
+    {
+        if ( snapshot.isClosed() )
+        {
+            throw new IllegalStateException( "Snapshot has been closed" );
+        }
+    }
+
+    /**
+     * Closes all open snapshots.
+     */
+    private void closeSnapshots()
+    {
+        for ( int i = 0; i < snapshots.size(); i++ )
+        {
+            ( (Snapshot) snapshots.get( i ) ).close();
+        }
+        snapshots.clear();
+        preImages.clear();
+        savepoints.clear();
+    }
+
+    /**
+     * Reads the contents of a node from the file, unless it has been
+     * read ahead already.
+     */
+    private void read( BlockIo node ) throws IOException
+    {
+        long blockid = node.getBlockId();
+        byte[] staged = ( prefetcher == null ) ? null : prefetcher.take( blockid );
+        if ( txnMgr != null && txnMgr.readSpilled( node ) )
+        {
+            // the data file doesn't have it yet
+            return;
+        }
+        if ( staged != null )
+        {
+            verify( blockid, staged );
+            node.load( staged );
+        }
+        else if ( node.hasArray() )
+        {
+            boolean found;
+            synchronized ( device )
+            {
+                found = device.read( blockid, node.getData() );
+            }
+            if ( found )
+            {
+                verify( blockid, node.getData() );
+            }
+            else
+            {
+                node.clearData();
+            }
+        }
+        else
+        {
+            // devices work on arrays; go through a copy.
+            byte[] data = new byte[ blockSize ];
+            boolean found;
+            synchronized ( device )
+            {
+                found = device.read( blockid, data );
+            }
+            if ( found )
+            {
+                verify( blockid, data );
+                node.load( data );
+            }
+            else
+            {
+                node.clearData();
+            }
+        }
+    }
+
+
+    /**
+     * Checks the checksum trailer of a block read from the device, if
+     * blocks carry checksums. A block of zeroes is a block that was
+     * never written, and passes.
+     *
+     * @throws IOException if the checksum is wrong.
+     */
+    private void verify( long blockid, byte[] data ) throws IOException
+    {
+        if ( !checksums )
+        {
+            return;
+        }
+        int pos = blockSize - CHECKSUM_SIZE;
+        int stored = ( ( data[pos] & 0xff ) << 24 )
+            | ( ( data[pos + 1] & 0xff ) << 16 )
+            | ( ( data[pos + 2] & 0xff ) << 8 )
+            | ( data[pos + 3] & 0xff );
+        boolean ok = stored == checksum( data ) || ( stored == 0 && isZero( data ) );
+        synchronized ( this )
+        {
+            if ( ok )
+                verifiedCount++;
+            else
+                failedCount++;
+        }
+        if ( !ok )
+        {
+            throw new IOException( "Checksum mismatch in block " + blockid
+                + " of " + fileName + extension );
+        }
+    }
+
+    /**
+     * Writes the checksum trailer of a block about to be written to
+     * the device.
+     */
+    private void stamp( byte[] data )
+    {
+        int pos = blockSize - CHECKSUM_SIZE;
+        int crc = checksum( data );
+        data[pos] = (byte) ( crc >>> 24 );
+        data[pos + 1] = (byte) ( crc >>> 16 );
+        data[pos + 2] = (byte) ( crc >>> 8 );
+        data[pos + 3] = (byte) crc;
+    }
+
+    /**
+     * Returns the checksum of the contents of a block, trailer excluded.
+     */
+    private int checksum( byte[] data )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, blockSize - CHECKSUM_SIZE );
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns true if the block only holds zeroes.
+     */
+    private static boolean isZero( byte[] data )
+    {
+        for ( int i = 0; i < data.length; i++ )
         {
-            BlockIo cur = (BlockIo) i.next();
-            if ( cur.getBlockId() == blockid )
+            if ( data[i] != 0 )
             {
-                node = cur;
-                i.remove();
-                inUse.put( key, node );
-                return node;
+                return false;
             }
         }
-
-        // sanity check: can't be on in use list
-        if ( inUse.get( key ) != null )
-        {
-            throw new Error( "double get for block " + blockid );
-        }
-
-        // get a new node and read it from the file
-        node = getNewNode( blockid );
-        long offset = blockid * BLOCK_SIZE;
-        if ( file.length() > 0 && offset <= file.length() )
-        {
-            read( file, offset, node.getData(), BLOCK_SIZE );
-        }
-        else
-        {
-            System.arraycopy( cleanData, 0, node.getData(), 0, BLOCK_SIZE );
-        }
-        inUse.put( key, node );
-        node.setClean();
-        return node;
+        return true;
     }
 
-
     /**
      * Releases a block.
      *
@@ -195,7 +1202,11 @@ public final class RecordFile
     void release( long blockid, boolean isDirty )
         throws IOException
     {
-        BlockIo node = (BlockIo) inUse.get( new Long( blockid ) );
+        BlockIo node;
+        synchronized ( this )
+        {
+            node = (BlockIo) inUse.get( new Long( blockid ) );
+        }
         if ( node == null )
             throw new IOException( "bad blockid " + blockid + " on release" );
         if ( !node.isDirty() && isDirty )
@@ -204,18 +1215,37 @@ public final class RecordFile
     }
 
     /**
-     * Releases a block.
+     * Releases a block. The block leaves the in-use list once every
+     * get() of it has been matched by a release.
      *
      * @param block The block to release.
      */
-    void release( BlockIo block )
+    synchronized void release( BlockIo block )
     {
+        block.getLatch().unlock();
+        if ( block.unpin() > 0 )
+        {
+            return;
+        }
+
         Long key = new Long( block.getBlockId() );
         inUse.remove( key );
         if ( block.isDirty() )
         {
             // System.out.println( "Dirty: " + key + block );
             dirty.put( key, block );
+            if ( dirtyLimit == 0 )
+            {
+                return;
+            }
+            if ( transactionsDisabled )
+            {
+                throttle();
+            }
+            else if ( txnMgr != null && dirty.size() >= dirtyLimit )
+            {
+                spill();
+            }
         }
         else
         {
@@ -225,8 +1255,188 @@ public final class RecordFile
             }
             else
             {
-                free.add( block );
+                recycle( cache.put( block ) );
+            }
+        }
+    }
+
+    /**
+     * Spills the oldest half of the dirty blocks to the log, ahead of
+     * the commit, and drops them, so that a transaction holds no more
+     * than the dirty budget in memory. Blocks of transactions not yet
+     * checkpointed are still needed in memory, and kept.
+     */
+    private void spill()
+    {
+        if ( spillFailure != null )
+        {
+            return;
+        }
+        ArrayList batch = new ArrayList( dirtyLimit / 2 + 1 );
+        for ( Iterator i = dirty.values().iterator();
+              i.hasNext() && batch.size() <= dirtyLimit / 2; )
+        {
+            BlockIo node = (BlockIo) i.next();
+            if ( !node.isInTransaction() )
+            {
+                batch.add( node );
+            }
+        }
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+        try
+        {
+            txnMgr.spill( batch );
+        }
+        catch ( IOException except )
+        {
+            // the blocks stay dirty, but the transaction can't commit
+            spillFailure = except;
+            return;
+        }
+        for ( Iterator i = batch.iterator(); i.hasNext(); )
+        {
+            BlockIo node = (BlockIo) i.next();
+            dirty.remove( new Long( node.getBlockId() ) );
+            node.setClean();
+            recycle( node );
+        }
+    }
+
+    /**
+     * Starts writing dirty blocks behind once half of the dirty budget
+     * is used, and makes the caller wait while all of it is, counting
+     * the blocks being written.
+     */
+    private void throttle()
+    {
+        if ( writeBehindFailure != null )
+        {
+            return;
+        }
+        if ( dirty.size() > dirtyLimit / 2 )
+        {
+            if ( writeBehind == null )
+            {
+                writeBehind = new WriteBehind( this );
             }
+            writeBehind.wake();
+        }
+
+        boolean interrupted = false;
+        while ( writeBehind != null && dirtyLimit > 0
+                && dirty.size() + flushing.size() >= dirtyLimit )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException except )
+            {
+                interrupted = true;
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes back a batch of the oldest dirty blocks, if above the
+     * low-water mark of a quarter of the dirty budget. Called by the
+     * write-behind thread; returns false if there was nothing to do.
+     */
+    boolean flushOldest() throws IOException
+    {
+        ArrayList batch = new ArrayList( WRITE_BEHIND_BATCH );
+        synchronized ( this )
+        {
+            if ( device == null || !transactionsDisabled || dirtyLimit == 0
+                 || dirty.size() <= dirtyLimit / 4 )
+            {
+                return false;
+            }
+            for ( Iterator i = dirty.values().iterator();
+                  i.hasNext() && batch.size() < WRITE_BEHIND_BATCH; )
+            {
+                BlockIo node = (BlockIo) i.next();
+                i.remove();
+                flushing.put( new Long( node.getBlockId() ), node );
+                batch.add( node );
+            }
+            writingBehind = true;
+        }
+
+        boolean written = false;
+        try
+        {
+            synch( batch );
+            written = true;
+        }
+        finally
+        {
+            synchronized ( this )
+            {
+                for ( Iterator i = batch.iterator(); i.hasNext(); )
+                {
+                    BlockIo node = (BlockIo) i.next();
+                    Long key = new Long( node.getBlockId() );
+                    if ( flushing.remove( key ) == null )
+                    {
+                        // in use again; it stays dirty.
+                        continue;
+                    }
+                    if ( written )
+                    {
+                        node.setClean();
+                        recycle( cache.put( node ) );
+                    }
+                    else
+                    {
+                        dirty.put( key, node );
+                    }
+                }
+                writingBehind = false;
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a failure of the write-behind thread, and stops writing
+     * behind. Dirty blocks stay in memory until the next commit.
+     */
+    synchronized void writeBehindFailed( IOException except )
+    {
+        writeBehindFailure = except;
+        writeBehind = null;
+        notifyAll();
+    }
+
+    /**
+     * Waits until no dirty block is being written behind.
+     */
+    private void waitForFlush()
+    {
+        boolean interrupted = false;
+        while ( writingBehind )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException except )
+            {
+                interrupted = true;
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -235,20 +1445,42 @@ public final class RecordFile
      *
      * @param block The block to discard.
      */
-    void discard( BlockIo block )
+    synchronized void discard( BlockIo block )
     {
         Long key = new Long( block.getBlockId() );
         inUse.remove( key );
 
-        // note: block not added to free list on purpose, because
+        // note: block not added to the cache on purpose, because
         //       it's considered invalid
     }
 
+    /**
+     * Returns whether the current transaction holds changes, besides
+     * those to blocks still in use.
+     */
+    synchronized boolean hasChanges()
+    {
+        return !dirty.isEmpty() || ( txnMgr != null && txnMgr.hasSpills() );
+    }
+
     /**
      * Commits the current transaction by flushing all dirty buffers
      * to disk.
      */
     void commit() throws IOException
+    {
+        waitForLog( commitToLog() );
+    }
+
+    /**
+     * Writes the current transaction to the log without waiting for
+     * the log to be synced, so that the sync can be shared with other
+     * committers. Returns the log sequence number to hand to
+     * {@link #waitForLog}; the transaction isn't durable until that
+     * returns. Without a log, the transaction is written to disk and
+     * -1 is returned.
+     */
+    synchronized long commitToLog() throws IOException
     {
         // debugging...
         if ( !inUse.isEmpty() && inUse.size() > 1 )
@@ -260,10 +1492,27 @@ public final class RecordFile
 
         //  System.out.println("committing...");
 
-        if ( dirty.size() == 0 )
+        waitForFlush();
+        if ( writeBehindFailure != null )
+        {
+            IOException except = writeBehindFailure;
+            writeBehindFailure = null;
+            throw except;
+        }
+        if ( spillFailure != null )
+        {
+            throw spillFailure;
+        }
+
+        // the blocks of the transaction become the committed ones
+        preImages.clear();
+        preImagesComplete = true;
+        savepoints.clear();
+
+        if ( dirty.size() == 0 && ( txnMgr == null || !txnMgr.hasSpills() ) )
         {
             // if no dirty blocks, skip commit process
-            return;
+            return -1;
         }
 
         if ( !transactionsDisabled )
@@ -271,35 +1520,135 @@ public final class RecordFile
             txnMgr.start();
         }
 
+        if ( transactionsDisabled )
+        {
+            // write back in block order, so that adjacent blocks
+            // can be coalesced by the device.
+            ArrayList nodes = new ArrayList( dirty.values() );
+            dirty.clear();
+            synch( nodes );
+            for ( Iterator i = nodes.iterator(); i.hasNext(); )
+            {
+                BlockIo node = (BlockIo) i.next();
+                node.setClean();
+                recycle( cache.put( node ) );
+            }
+            return -1;
+        }
+
         for ( Iterator i = dirty.values().iterator(); i.hasNext(); )
         {
             BlockIo node = (BlockIo) i.next();
             i.remove();
             // System.out.println("node " + node + " map size now " + dirty.size());
-            if ( transactionsDisabled )
-            {
-                long offset = node.getBlockId() * BLOCK_SIZE;
-                file.seek( offset );
-                file.write( node.getData() );
-                node.setClean();
-                free.add( node );
-            }
-            else
-            {
-                txnMgr.add( node );
-                inTxn.put( new Long( node.getBlockId() ), node );
-            }
+            txnMgr.add( node );
+            inTxn.put( new Long( node.getBlockId() ), node );
         }
-        if ( !transactionsDisabled )
+        return txnMgr.commit();
+    }
+
+    /**
+     * Waits until the log has been synced up to the indicated sequence
+     * number, as returned by {@link #commitToLog}. Committers that
+     * arrive together share a single sync. Must not be called while
+     * holding blocks.
+     */
+    void waitForLog( long lsn ) throws IOException
+    {
+        if ( lsn >= 0 )
+        {
+            txnMgr.awaitDurable( lsn );
+        }
+    }
+
+    /**
+     * Sets the size, in bytes, a log segment grows to before the next
+     * one is started. Ignored without a log.
+     */
+    synchronized void setLogSegmentSize( long bytes )
+    {
+        if ( txnMgr != null )
+        {
+            txnMgr.setSegmentSize( bytes );
+        }
+    }
+
+    /**
+     * Sets the size, in bytes, the log grows to and the number of
+     * distinct blocks it holds before it is checkpointed in the
+     * background. Ignored without a log.
+     */
+    synchronized void setCheckpointThresholds( long bytes, int blocks )
+    {
+        if ( txnMgr != null )
         {
-            txnMgr.commit();
+            txnMgr.setCheckpointThresholds( bytes, blocks );
+        }
+    }
+
+    /**
+     * Sets how long, in milliseconds, a committer syncing the log
+     * waits for others to join the sync, and how many bytes of log
+     * cut the wait short. Zero bytes means the whole window is
+     * always waited for. Ignored without a log.
+     */
+    void setGroupCommit( long window, long bytes )
+    {
+        if ( window < 0 || bytes < 0 )
+        {
+            throw new IllegalArgumentException(
+                "Arguments must not be negative." );
+        }
+        if ( txnMgr != null )
+        {
+            txnMgr.setGroupCommit( window, bytes );
+        }
+    }
+
+    /**
+     * Sets the durability level of commits, one of the levels defined
+     * in {@link RecordManagerOptions}, and the interval, in
+     * milliseconds, between syncs at the periodic level. Ignored
+     * without a log.
+     */
+    void setDurability( String level, long interval )
+    {
+        int durability;
+        if ( level.equalsIgnoreCase( RecordManagerOptions.SYNC_DURABILITY ) )
+        {
+            durability = TransactionManager.SYNC_DURABILITY;
+        }
+        else if ( level.equalsIgnoreCase( RecordManagerOptions.GROUP_DURABILITY ) )
+        {
+            durability = TransactionManager.GROUP_DURABILITY;
+        }
+        else if ( level.equalsIgnoreCase( RecordManagerOptions.PERIODIC_DURABILITY ) )
+        {
+            durability = TransactionManager.PERIODIC_DURABILITY;
+        }
+        else if ( level.equalsIgnoreCase( RecordManagerOptions.OS_DURABILITY ) )
+        {
+            durability = TransactionManager.OS_DURABILITY;
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Invalid durability: " + level );
+        }
+        if ( interval <= 0 )
+        {
+            throw new IllegalArgumentException(
+                "Interval must be positive." );
+        }
+        if ( txnMgr != null )
+        {
+            txnMgr.setDurability( durability, interval );
         }
     }
 
     /**
      * Rollback the current transaction by discarding all dirty buffers
      */
-    void rollback() throws IOException
+    synchronized void rollback() throws IOException
     {
         // debugging...
         if ( !inUse.isEmpty() )
@@ -309,9 +1658,51 @@ public final class RecordFile
                 + inUse.size() + ")" );
         }
         //  System.out.println("rollback...");
+        waitForFlush();
+        savepoints.clear();
+        spillFailure = null;
+        if ( txnMgr != null )
+        {
+            // spilled blocks are read from the data file, or the
+            // committed part of the log, again
+            for ( Iterator i = txnMgr.discardSpills().iterator(); i.hasNext(); )
+            {
+                recycle( cache.remove( ( (Long) i.next() ).longValue() ) );
+            }
+        }
+
+        if ( !transactionsDisabled && preImagesComplete
+             && preImages.keySet().containsAll( dirty.keySet() ) )
+        {
+            // put back the committed images, without going to the log
+            for ( Iterator i = dirty.values().iterator(); i.hasNext(); )
+            {
+                BlockIo node = (BlockIo) i.next();
+                BlockIo image = (BlockIo) preImages.get( new Long( node.getBlockId() ) );
+                node.load( image.getData() );
+                node.setClean();
+                i.remove();
+                if ( node.isInTransaction() )
+                {
+                    inTxn.put( new Long( node.getBlockId() ), node );
+                }
+                else
+                {
+                    recycle( cache.put( node ) );
+                }
+            }
+            preImages.clear();
+            return;
+        }
+
         dirty.clear();
+        preImages.clear();
+        preImagesComplete = true;
 
-        txnMgr.synchronizeLogFromDisk();
+        if ( txnMgr != null )
+        {
+            txnMgr.synchronizeLogFromDisk();
+        }
 
         if ( !inTxn.isEmpty() )
         {
@@ -325,13 +1716,23 @@ public final class RecordFile
     /**
      * Commits and closes file.
      */
-    void close() throws IOException
+    synchronized void close() throws IOException
     {
-        if ( !dirty.isEmpty() )
+        closeSnapshots();
+        waitForFlush();
+        if ( writeBehind != null )
+        {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        if ( !dirty.isEmpty() || ( txnMgr != null && txnMgr.hasSpills() ) )
         {
             commit();
         }
-        txnMgr.shutdown();
+        if ( txnMgr != null )
+        {
+            txnMgr.shutdown();
+        }
 
         if ( !inTxn.isEmpty() )
         {
@@ -353,10 +1754,15 @@ public final class RecordFile
             throw new Error( "inUse blocks at close time" );
         }
 
-        // debugging stuff to keep an eye on the free list
-        // System.out.println("Free list size:" + free.size());
-        file.close();
-        file = null;
+        // debugging stuff to keep an eye on the cache
+        // System.out.println("Cache size:" + cache.size());
+        cache.clear();
+        if ( prefetcher != null )
+        {
+            prefetcher.close();
+        }
+        device.close();
+        device = null;
     }
 
 
@@ -364,10 +1770,24 @@ public final class RecordFile
      * Force closing the file and underlying transaction manager.
      * Used for testing purposed only.
      */
-    void forceClose() throws IOException
+    synchronized void forceClose() throws IOException
     {
-        txnMgr.forceClose();
-        file.close();
+        closeSnapshots();
+        waitForFlush();
+        if ( writeBehind != null )
+        {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        if ( txnMgr != null )
+        {
+            txnMgr.forceClose();
+        }
+        if ( prefetcher != null )
+        {
+            prefetcher.close();
+        }
+        device.close();
     }
 
     /**
@@ -385,20 +1805,28 @@ public final class RecordFile
 
 
     /**
-     * Returns a new node. The node is retrieved (and removed)
-     * from the released list or created new.
+     * Returns a new node. If the cache is full, the least recently
+     * used block is evicted and its buffer recycled; otherwise the
+     * node is created new.
      */
     private BlockIo getNewNode( long blockid )
         throws IOException
     {
 
         BlockIo retval = null;
-        if ( !free.isEmpty() )
+        if ( cache.isFull() )
         {
-            retval = (BlockIo) free.removeFirst();
+            retval = cache.evict();
         }
         if ( retval == null )
-            retval = new BlockIo( 0, new byte[BLOCK_SIZE] );
+        {
+            if ( arena != null )
+                retval = new BlockIo( 0, arena.allocate() );
+            else
+                retval = new BlockIo( 0, new byte[blockSize] );
+            if ( checksums )
+                retval.reserveTrailer( CHECKSUM_SIZE );
+        }
 
         retval.setBlockId( blockid );
         retval.setView( null );
@@ -406,17 +1834,76 @@ public final class RecordFile
     }
 
     /**
-     * Synchs a node to disk. This is called by the transaction manager's
-     * synchronization code.
+     * Unpins a block that failed to be read, and is off the in-use
+     * list already. The last user gives back its buffer.
+     */
+    private synchronized void drop( BlockIo node )
+    {
+        if ( node.unpin() == 0 )
+        {
+            recycle( node );
+        }
+    }
+
+    /**
+     * Returns the buffer of a block evicted from the cache to the
+     * arena it came from, if any.
+     */
+    private void recycle( BlockIo block )
+    {
+        if ( block != null && arena != null && !block.hasArray() )
+        {
+            arena.release( block.getBuffer() );
+        }
+    }
+
+    /**
+     * Synchs a batch of nodes to disk. This is called by the transaction
+     * manager's synchronization code. The nodes are sorted by block id
+     * and handed to the device as a single batch, so that runs of
+     * adjacent blocks are written together. Blocks read ahead are
+     * invalidated as they are written, and checksums, if any, are
+     * stamped on the way out.
      */
-    void synch( BlockIo node ) throws IOException
+    void synch( Collection nodes ) throws IOException
     {
-        byte[] data = node.getData();
-        if ( data != null )
+        BlockIo[] blocks = (BlockIo[]) nodes.toArray( new BlockIo[ nodes.size() ] );
+        Arrays.sort( blocks, BLOCK_ORDER );
+
+        long[] blockids = new long[ blocks.length ];
+        byte[][] buffers = new byte[ blocks.length ][];
+        int count = 0;
+        for ( int i = 0; i < blocks.length; i++ )
+        {
+            byte[] data;
+            if ( blocks[i].hasArray() )
+            {
+                data = blocks[i].getData();
+            }
+            else
+            {
+                // devices work on arrays; go through a copy.
+                data = new byte[ blockSize ];
+                blocks[i].copyTo( data );
+            }
+            if ( checksums )
+            {
+                stamp( data );
+            }
+            blockids[count] = blocks[i].getBlockId();
+            buffers[count] = data;
+            count++;
+        }
+        synchronized ( device )
         {
-            long offset = node.getBlockId() * BLOCK_SIZE;
-            file.seek( offset );
-            file.write( data );
+            device.write( blockids, buffers, count );
+            if ( prefetcher != null )
+            {
+                for ( int i = 0; i < count; i++ )
+                {
+                    prefetcher.invalidate( blockids[i] );
+                }
+            }
         }
     }
 
@@ -426,13 +1913,13 @@ public final class RecordFile
      *
      * @arg recycle true if block data can be reused
      */
-    void releaseFromTransaction( BlockIo node, boolean recycle )
+    synchronized void releaseFromTransaction( BlockIo node, boolean recycle )
         throws IOException
     {
         Long key = new Long( node.getBlockId() );
         if ( ( inTxn.remove( key ) != null ) && recycle )
         {
-            free.add( node );
+            recycle( cache.put( node ) );
         }
     }
 
@@ -441,29 +1928,48 @@ public final class RecordFile
      */
     void sync() throws IOException
     {
-        file.getFD().sync();
+        synchronized ( device )
+        {
+            device.sync();
+        }
     }
 
-
     /**
-     * Utility method: Read a block from a RandomAccessFile
+     * Truncates the file to the indicated number of blocks, the blocks
+     * past it being free. The log is written to the file first, so
+     * that none of them is written back later. There must be no
+     * uncommitted changes.
      */
-    private static void read( RandomAccessFile file, long offset,
-                              byte[] buffer, int nBytes ) throws IOException
+    synchronized void truncate( long blocks ) throws IOException
     {
-        file.seek( offset );
-        int remaining = nBytes;
-        int pos = 0;
-        while ( remaining > 0 )
+        if ( hasChanges() )
+        {
+            throw new IllegalStateException(
+                "Cannot truncate the file with uncommitted changes" );
+        }
+        waitForFlush();
+        if ( txnMgr != null )
+        {
+            txnMgr.synchronizeLog();
+        }
+
+        long end;
+        synchronized ( device )
         {
-            int read = file.read( buffer, pos, remaining );
-            if ( read == -1 )
+            end = device.length() / blockSize;
+            device.truncate( blocks );
+            device.sync();
+            if ( prefetcher != null )
             {
-                System.arraycopy( cleanData, 0, buffer, pos, remaining );
-                break;
+                for ( long blockid = blocks; blockid < end; blockid++ )
+                {
+                    prefetcher.invalidate( blockid );
+                }
             }
-            remaining -= read;
-            pos += read;
+        }
+        for ( long blockid = blocks; blockid < end; blockid++ )
+        {
+            recycle( cache.remove( blockid ) );
         }
     }
 
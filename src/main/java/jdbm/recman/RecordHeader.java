@@ -61,6 +61,9 @@ class RecordHeader
     private static final short O_AVAILABLESIZE = Magic.SZ_INT; // int availableSize
     static final int SIZE = O_AVAILABLESIZE + Magic.SZ_INT;
 
+    // current size of a free record. Older files leave it at zero.
+    private static final int FREE = -1;
+
     // my block and the position within the block
     private BlockIo block;
     private short pos;
@@ -73,7 +76,7 @@ class RecordHeader
     {
         this.block = block;
         this.pos = pos;
-        if ( pos > ( RecordFile.BLOCK_SIZE - SIZE ) )
+        if ( pos > ( block.getSize() - SIZE ) )
             throw new Error( "Offset too large for record header ("
                 + block.getBlockId() + ":"
                 + pos + ")" );
@@ -111,6 +114,22 @@ class RecordHeader
         block.writeInt( pos + O_AVAILABLESIZE, value );
     }
 
+    /**
+     * Returns whether the record is known to be free
+     */
+    boolean isFree()
+    {
+        return getCurrentSize() == FREE;
+    }
+
+    /**
+     * Marks the record as free
+     */
+    void setFree()
+    {
+        setCurrentSize( FREE );
+    }
+
     // overrides java.lang.Object
     public String toString()
     {
@@ -0,0 +1,131 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+
+package jdbm.recman;
+
+import java.util.HashMap;
+
+/**
+ * The committed state of a {@link RecordFile} at one point in time.
+ * A snapshot holds the image, as of its creation, of every block
+ * modified since; the other blocks are read from the file, where they
+ * are still as they were.
+ * <p/>
+ * Images are taken by the record file before the block is first
+ * latched for writing, and are only ever added, so that a block once
+ * found in the snapshot stays there. Snapshots are guarded by the
+ * record file they belong to.
+ */
+final class Snapshot
+{
+
+    /**
+     * Images of the blocks modified since the snapshot was taken,
+     * by block id.
+     */
+    private final HashMap _images = new HashMap();
+
+
+    /**
+     * True once closed.
+     */
+    private boolean _closed;
+
+
+    /**
+     * Returns the image of the indicated block, or null if the block
+     * hasn't been modified since the snapshot was taken.
+     */
+    BlockIo get( long blockid )
+    {
+        return (BlockIo) _images.get( new Long( blockid ) );
+    }
+
+
+    /**
+     * Keeps the indicated image of a block, unless the snapshot holds
+     * an earlier one.
+     */
+    void preserve( BlockIo image )
+    {
+        Long key = new Long( image.getBlockId() );
+        if ( !_images.containsKey( key ) )
+        {
+            _images.put( key, image );
+        }
+    }
+
+
+    /**
+     * Returns the number of block images held.
+     */
+    int size()
+    {
+        return _images.size();
+    }
+
+
+    /**
+     * Drops the images held, and keeps the snapshot from being read.
+     */
+    void close()
+    {
+        _closed = true;
+        _images.clear();
+    }
+
+
+    /**
+     * Returns true once closed.
+     */
+    boolean isClosed()
+    {
+        return _closed;
+    }
+
+}
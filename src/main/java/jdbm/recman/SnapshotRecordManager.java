@@ -0,0 +1,349 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.util.Map;
+
+import jdbm.RecordManager;
+import jdbm.helper.DefaultSerializer;
+import jdbm.helper.Serializer;
+
+/**
+ * A read-only view of a record manager, as of the last commit before
+ * the view was taken. Obtained from {@link BaseRecordManager#snapshot}.
+ * <p/>
+ * Fetches through the view don't take the lock of the record manager,
+ * and thus run while writers update and commit: blocks modified since
+ * the snapshot was taken are read from copies made before they were
+ * first written. A long scan, of a {@link jdbm.btree.BTree} loaded
+ * through the view for instance, then sees a consistent state without
+ * stalling writers. The copies are kept until the view is closed, so
+ * it should be closed as soon as it is no longer needed, and before the
+ * record manager.
+ * <p/>
+ * Any attempt to change records, roots or names through the view
+ * throws an {@link UnsupportedOperationException}.
+ */
+public final class SnapshotRecordManager
+    implements RecordManager
+{
+
+    /**
+     * Underlying record file.
+     */
+    private RecordFile _file;
+
+
+    /**
+     * The snapshot blocks are read from.
+     */
+    private Snapshot _snapshot;
+
+
+    /**
+     * Physical row identifier manager of the record manager.
+     */
+    private final PhysicalRowIdManager _physMgr;
+
+
+    /**
+     * Logical to physical row identifier manager of the record manager.
+     */
+    private final LogicalRowIdManager _logMgr;
+
+
+    /**
+     * Number of root rowids of the file, which doesn't change.
+     */
+    private final int _rootCount;
+
+
+    /**
+     * Constructs a view of the indicated snapshot, read through the
+     * row id managers of its record manager.
+     */
+    SnapshotRecordManager( RecordFile file, Snapshot snapshot,
+                           PhysicalRowIdManager physMgr,
+                           LogicalRowIdManager logMgr, int rootCount )
+    {
+        _file = file;
+        _snapshot = snapshot;
+        _physMgr = physMgr;
+        _logMgr = logMgr;
+        _rootCount = rootCount;
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public long insert( Object obj )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public long insert( Object obj, Serializer serializer )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void delete( long recid )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void update( long recid, Object obj )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void update( long recid, Object obj, Serializer serializer )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Fetches a record as of the snapshot, using standard java object
+     * serialization.
+     *
+     * @param recid the recid for the record that must be fetched.
+     * @throws IOException when one of the underlying I/O operations fails.
+     * @returns the object contained in the record.
+     */
+    public Object fetch( long recid )
+        throws IOException
+    {
+        return fetch( recid, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * Fetches a record as of the snapshot, using a custom serializer.
+     *
+     * @param recid      the recid for the record that must be fetched.
+     * @param serializer a custom serializer
+     * @throws IOException when one of the underlying I/O operations fails.
+     * @returns the object contained in the record.
+     */
+    public Object fetch( long recid, Serializer serializer )
+        throws IOException
+    {
+        checkIfClosed();
+        if ( recid <= 0 )
+        {
+            throw new IllegalArgumentException( "Argument 'recid' is invalid: "
+                + recid );
+        }
+        Location rowid = _logMgr.fetch( new Location( recid ), _snapshot );
+        return serializer.deserialize( _physMgr.fetch( rowid, _snapshot ) );
+    }
+
+
+    /**
+     * Closes the view, and drops the block copies kept for it.
+     */
+    public void close()
+        throws IOException
+    {
+        checkIfClosed();
+
+        _file.closeSnapshot( _snapshot );
+        _file = null;
+        _snapshot = null;
+    }
+
+
+    /**
+     * Returns the number of slots available for "root" rowids. These slots
+     * can be used to store special rowids, like rowids that point to
+     * other rowids. Root rowids are useful for bootstrapping access to
+     * a set of data.
+     */
+    public int getRootCount()
+    {
+        checkIfClosed();
+
+        return _rootCount;
+    }
+
+
+    /**
+     * Returns the indicated root rowid, as of the snapshot.
+     *
+     * @see #getRootCount
+     */
+    public long getRoot( int id )
+        throws IOException
+    {
+        checkIfClosed();
+
+        BlockIo block = _file.getShared( _snapshot, 0 );
+        try
+        {
+            return new FileHeader( block, false ).getRoot( id );
+        }
+        finally
+        {
+            _file.release( _snapshot, block );
+        }
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void setRoot( int id, long rowid )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void commit()
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void rollback()
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Not supported: take a snapshot of the record manager instead.
+     */
+    public RecordManager snapshot()
+        throws IOException
+    {
+        throw new UnsupportedOperationException( "Already a snapshot" );
+    }
+
+
+    /**
+     * Obtain the record id of a named object, as of the snapshot.
+     * Returns 0 if named object doesn't exist.
+     */
+    public long getNamedObject( String name )
+        throws IOException
+    {
+        long recid = getRoot( NAME_DIRECTORY_ROOT );
+        if ( recid == 0 )
+        {
+            return 0;
+        }
+        Long value = (Long) ( (Map) fetch( recid ) ).get( name );
+        return value == null ? 0 : value.longValue();
+    }
+
+
+    /**
+     * Not supported: the view is read-only.
+     */
+    public void setNamedObject( String name, long recid )
+        throws IOException
+    {
+        throw readOnly();
+    }
+
+
+    /**
+     * Returns the exception thrown by attempts to change the view.
+     */
+    private UnsupportedOperationException readOnly()
+    {
+        return new UnsupportedOperationException( "Snapshot is read-only" );
+    }
+
+
+    /**
+     * Check if the view has been closed.  If so, throw an
+     * IllegalStateException.
+     */
+    private void checkIfClosed()
+        throws IllegalStateException
+    {
+        if ( _file == null )
+        {
+            throw new IllegalStateException( "Snapshot has been closed" );
+        }
+    }
+}
@@ -48,7 +48,10 @@
 package jdbm.recman;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.zip.CRC32;
 
 /**
  * This class manages the transaction log that belongs to every
@@ -56,45 +59,292 @@ import java.util.*;
  * in progress. In the latter case, the transaction manager
  * takes care of a roll forward.
  * <p/>
- * Implementation note: this is a proof-of-concept implementation
- * which hasn't been optimized for speed. For instance, all sorts
- * of streams are created for every transaction.
+ * The log is a short magic followed by a sequence of binary records.
+ * Every block of a transaction is logged as
+ * <pre>
+ *   byte type, long txnid, long blockid, int length, byte[length] data, int crc
+ * </pre>
+ * and the transaction is closed by a commit marker
+ * <pre>
+ *   byte type, long txnid, int blockcount, int crc
+ * </pre>
+ * where the crc covers all preceding fields of the record. A block
+ * that was logged before in the same log file is logged as the byte
+ * ranges modified since, instead of as a whole:
+ * <pre>
+ *   byte type, long txnid, long blockid, int count,
+ *   count * ( int offset, int length, byte[length] data ), int crc
+ * </pre>
+ * Since every block is logged as a whole the first time it appears in
+ * a log file, recovery never applies deltas to what is in the data
+ * file, which may hold torn blocks. Records are
+ * assembled in a reusable direct buffer and written to the log through
+ * its channel. On recovery, only transactions that end in a valid
+ * commit marker are rolled forward; a torn or corrupted record ends
+ * the log. Logs written by earlier versions, a single file that may
+ * consist of serialized block lists, are still recovered.
+ * <p/>
+ * Commits are group commits: a transaction is appended to the log by
+ * {@link #commit}, and made durable by {@link #awaitDurable}. The first
+ * committer to need a sync becomes the leader, optionally waits a short
+ * window for others to append, and syncs the log on behalf of all of
+ * them; the others wait for its sync, or the next one, to cover their
+ * transactions. Each transaction is identified by a log sequence
+ * number that keeps increasing across log files.
+ * <p/>
+ * How soon commits are synced depends on the durability level. They
+ * may wait for their own sync, be synced every so often in the
+ * background, or be left to the operating system until the log
+ * segment is closed. Since the data file is only written once the
+ * segments holding its changes are synced, a crash may lose the last
+ * commits, but never leaves a transaction half applied.
+ * <p/>
+ * The log is kept as numbered segments; a segment that grows past a
+ * size is closed, and the next one started. A manifest records the
+ * range of live segments. Each segment logs a block as a whole the
+ * first time it appears, so that segments can be read on their own:
+ * recovery reads them in parallel, and writes the latest image of
+ * each block to the data file.
+ * <p/>
+ * Checkpoints run in the background. Once the segments written since
+ * the last checkpoint grow past a size, or hold more than a number of
+ * distinct blocks, they are sealed: the committed contents of their
+ * blocks are copied, and a fresh segment is started for the commits
+ * that follow. A {@link Checkpointer} thread then writes the copies to
+ * the data file, syncs it, and drops the sealed segments from the
+ * manifest before deleting them. If that fails, the next transaction
+ * started reports the failure, and the one after asks for the copies
+ * to be written again.
+ * <p/>
+ * A transaction too large to be held in memory has some of its blocks
+ * written to the log ahead of the commit marker, by {@link #spill}, and
+ * dropped by the owner. Until checkpointed, they are read back from
+ * the log, by {@link #readSpilled}. Recovery ignores them unless the
+ * commit marker follows.
  */
-// TODO: Handle the case where we are recovering lg9 and lg0, were we
-// should start with lg9 instead of lg0!
 
 public final class TransactionManager
 {
     private RecordFile owner;
 
-    // streams for transaction log.
+    // stream and channel for transaction log.
     private FileOutputStream fos;
-    private ObjectOutputStream oos;
+    private FileChannel channel;
+
+    /**
+     * Record type of a logged block image.
+     */
+    static final byte LOG_BLOCK = 1;
+
+    /**
+     * Record type of a commit marker.
+     */
+    static final byte LOG_COMMIT = 2;
+
+    /**
+     * Record type of the modified ranges of a block.
+     */
+    static final byte LOG_DELTA = 3;
+
+    /**
+     * Size of the offset and length preceding each range of a delta
+     * record.
+     */
+    static final int RANGE_HEADER_SIZE = Magic.SZ_INT + Magic.SZ_INT;
+
+    /**
+     * Size of a block record, not counting the block data.
+     */
+    static final int BLOCK_RECORD_SIZE = Magic.SZ_BYTE + Magic.SZ_LONG
+        + Magic.SZ_LONG + Magic.SZ_INT + Magic.SZ_INT;
+
+    /**
+     * Size of a commit record.
+     */
+    static final int COMMIT_RECORD_SIZE = Magic.SZ_BYTE + Magic.SZ_LONG
+        + Magic.SZ_INT + Magic.SZ_INT;
+
+    /**
+     * Size of the buffer log records are assembled in.
+     */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+
+    // reusable buffer log records are assembled in, and the
+    // scratch space used to checksum them.
+    private final ByteBuffer logBuffer;
+    private final byte[] recordHeader = new byte[ BLOCK_RECORD_SIZE ];
+    private final byte[] rangeHeader = new byte[ RANGE_HEADER_SIZE ];
+    private final byte[] blockData;
+    private final CRC32 crc = new CRC32();
+
+    // id of the next transaction written to the log
+    private long nextTxnId;
+
+    // blocks logged as a whole in the current log file, which may be
+    // logged as deltas from then on.
+    private final HashSet imaged = new HashSet();
+
+    // group commit state, guarded by this object's monitor: the last
+    // transaction appended, the last one known to be durable, the log
+    // appended since the last sync started, and whether a sync is
+    // under way.
+    private long appendedTxnId = -1;
+    private long durableTxnId = -1;
+    private long pendingBytes;
+    private boolean syncing;
+
+    // how long a leader waits for others to join its sync, and the
+    // amount of log that ends the wait early.
+    private long groupWindow;
+    private long groupBytes;
+
+    // number of times the log was synced
+    private int syncCount;
 
     /**
-     * By default, we keep 10 transactions in the log file before
-     * synchronizing it with the main database file.
+     * Durability level at which every commit waits for its transaction
+     * to be synced to the log. Concurrent commits share syncs.
      */
-    static final int DEFAULT_TXNS_IN_LOG = 10;
+    static final int SYNC_DURABILITY = 0;
+
+    /**
+     * Durability level at which every commit waits for its transaction
+     * to be synced to the log, by a sync that waits for a group commit
+     * window.
+     */
+    static final int GROUP_DURABILITY = 1;
+
+    /**
+     * Durability level at which commits return as soon as they are
+     * written to the log, which is synced in the background at an
+     * interval.
+     */
+    static final int PERIODIC_DURABILITY = 2;
+
+    /**
+     * Durability level at which commits return as soon as they are
+     * written to the log, which is only synced when a segment is
+     * closed.
+     */
+    static final int OS_DURABILITY = 3;
+
+    /**
+     * Group commit window, in milliseconds, used at the group
+     * durability level unless one is set.
+     */
+    static final long DEFAULT_GROUP_WINDOW = 10;
+
+    /**
+     * Default interval, in milliseconds, between syncs at the periodic
+     * durability level.
+     */
+    static final long DEFAULT_SYNC_INTERVAL = 100;
+
+    // durability level, guarded by this object's monitor, the
+    // background syncer of the periodic level, and how it failed.
+    private int durability = SYNC_DURABILITY;
+    private LogSyncer syncer;
+    private IOException syncFailure;
+
+    /**
+     * Default size, in bytes, the log grows to before it is
+     * checkpointed.
+     */
+    static final long DEFAULT_CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Default number of distinct blocks the log holds before it is
+     * checkpointed.
+     */
+    static final int DEFAULT_CHECKPOINT_BLOCKS = 1024;
+
+    // thresholds that trigger a checkpoint
+    private long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+    private int checkpointBlocks = DEFAULT_CHECKPOINT_BLOCKS;
 
     /**
      * Maximum number of transactions before the log file is
-     * synchronized with the main database file.
+     * checkpointed, or zero for no limit.
      */
-    private int _maxTxns = DEFAULT_TXNS_IN_LOG;
+    private int _maxTxns = 0;
+
+    // In-core copy of transactions, as lists of blocks, bar those
+    // spilled to the log. The RecordFile keeps the blocks it didn't
+    // spill in core anyway, so we might as well point to them and
+    // spare us reading them back.
+    private ArrayList txns = new ArrayList();
 
-    // In-core copy of transactions. We could read everything back from
-    // the log file, but the RecordFile needs to keep the dirty blocks in
-    // core anyway, so we might as well point to them and spare us a lot
-    // of hassle.
-    private ArrayList[] txns = new ArrayList[DEFAULT_TXNS_IN_LOG];
-    private int curTxn = -1;
+    // size, in bytes, of the current log segment
+    private long logSize;
+
+    // checkpoint state, guarded by this object's monitor: the
+    // transactions of the sealed segments, the copies of their blocks still
+    // to be written, whether, or how, the writing ended, and whether a
+    // failure was reported and the writing is to be tried again.
+    private ArrayList sealedTxns;
+    private ArrayList snapshots;
+    private boolean checkpointWritten;
+    private IOException checkpointFailure;
+    private boolean checkpointRetry;
+    private int checkpointCount;
+
+    // the background writer of checkpoints, once started
+    private Checkpointer checkpointer;
+
+    // blocks only found in the log, guarded by this object's monitor,
+    // by block id: those spilled by the transaction in progress, and
+    // the number of records written for them; those of committed
+    // transactions; and those of the checkpoint being written.
+    private HashMap pendingSpills = new HashMap();
+    private int pendingSpillCount;
+    private HashMap spills = new HashMap();
+    private HashMap sealedSpills;
+
+    /**
+     * Number of spilled blocks read back from the log at a time, to be
+     * written to the data file.
+     */
+    static final int SPILL_BATCH = 256;
 
     /**
      * Extension of a log file.
      */
     static final String extension = ".lg";
 
+    /**
+     * Extension of the manifest, which records the range of live log
+     * segments. Segments are named after the log file, followed by
+     * their number.
+     */
+    static final String manifestExtension = ".lgm";
+
+    /**
+     * Size of the manifest: a short magic, the first and last live
+     * segments, and a crc.
+     */
+    static final int MANIFEST_SIZE = Magic.SZ_SHORT + Magic.SZ_LONG
+        + Magic.SZ_LONG + Magic.SZ_INT;
+
+    /**
+     * Default size, in bytes, a log segment grows to before the next
+     * one is started.
+     */
+    static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // size, in bytes, of the log and distinct blocks logged since the
+    // last checkpoint
+    private long logBytes;
+    private final HashSet loggedBlocks = new HashSet();
+
+    // live log segments, guarded by this object's monitor: the first
+    // one not checkpointed, the one being written, and the last one
+    // sealed for the checkpoint in progress.
+    private long firstSegment = 1;
+    private long currentSegment = 0;
+    private long sealedSegment;
+
     /**
      * Instantiates a transaction manager instance. If recovery
      * needs to be performed, it is done.
@@ -105,6 +355,9 @@ public final class TransactionManager
     TransactionManager( RecordFile owner ) throws IOException
     {
         this.owner = owner;
+        logBuffer = ByteBuffer.allocateDirect( Math.max( LOG_BUFFER_SIZE,
+            owner.getBlockSize() + BLOCK_RECORD_SIZE ) );
+        blockData = new byte[ owner.getBlockSize() ];
         recover();
         open();
     }
@@ -127,7 +380,7 @@ public final class TransactionManager
     /**
      * Set the maximum number of transactions to record in
      * the log (and keep in memory) before the log is
-     * synchronized with the main database file.
+     * checkpointed to the main database file.
      * <p/>
      * This method must be called while there are no
      * pending transactions in the log.
@@ -140,18 +393,57 @@ public final class TransactionManager
             throw new IllegalArgumentException(
                 "Argument 'maxTxns' must be greater than 0." );
         }
-        if ( curTxn != -1 )
+        if ( !txns.isEmpty() )
         {
             throw new IllegalStateException(
                 "Cannot change setting while transactions are pending in the log" );
         }
         _maxTxns = maxTxns;
-        txns = new ArrayList[ maxTxns ];
     }
 
 
     /**
-     * Builds logfile name
+     * Sets the size, in bytes, the log grows to and the number of
+     * distinct blocks it holds before it is checkpointed.
+     */
+    void setCheckpointThresholds( long bytes, int blocks )
+    {
+        if ( bytes <= 0 || blocks <= 0 )
+        {
+            throw new IllegalArgumentException(
+                "Arguments must be greater than 0." );
+        }
+        checkpointSize = bytes;
+        checkpointBlocks = blocks;
+    }
+
+
+    /**
+     * Sets the size, in bytes, a log segment grows to before the next
+     * one is started.
+     */
+    void setSegmentSize( long bytes )
+    {
+        if ( bytes <= 0 )
+        {
+            throw new IllegalArgumentException(
+                "Argument 'bytes' must be greater than 0." );
+        }
+        segmentSize = bytes;
+    }
+
+
+    /**
+     * Returns the number of checkpoints written in the background.
+     */
+    synchronized int getCheckpointCount()
+    {
+        return checkpointCount;
+    }
+
+
+    /**
+     * Builds the name of the single logfile kept by earlier versions
      */
     private String makeLogName()
     {
@@ -159,24 +451,53 @@ public final class TransactionManager
     }
 
 
+    /**
+     * Builds the name of a log segment
+     */
+    private String makeSegmentName( long segment )
+    {
+        return owner.getFileName() + extension + "." + segment;
+    }
+
+
+    /**
+     * Builds the name of the manifest
+     */
+    private String makeManifestName()
+    {
+        return owner.getFileName() + manifestExtension;
+    }
+
+
+    /**
+     * Returns the name of the log segment being written.
+     */
+    synchronized String getSegmentName()
+    {
+        return makeSegmentName( currentSegment );
+    }
+
+
     /**
      * Synchs in-core transactions to data file and opens a fresh log
      */
     private void synchronizeLogFromMemory() throws IOException
     {
+        if ( hasSpills() )
+        {
+            throw new IllegalStateException(
+                "Cannot synchronize the log while a transaction spilled blocks to it" );
+        }
+        waitForCheckpoint();
         close();
 
         TreeSet blockList = new TreeSet( new BlockIoComparator() );
 
-        int numBlocks = 0;
-        int writtenBlocks = 0;
-        for ( int i = 0; i < _maxTxns; i++ )
+        for ( int i = 0; i < txns.size(); i++ )
         {
-            if ( txns[i] == null )
-                continue;
             // Add each block to the blockList, replacing the old copy of this
             // block if necessary, thus avoiding writing the same block twice
-            for ( Iterator k = txns[i].iterator(); k.hasNext(); )
+            for ( Iterator k = ( (ArrayList) txns.get( i ) ).iterator(); k.hasNext(); )
             {
                 BlockIo block = (BlockIo) k.next();
                 if ( blockList.contains( block ) )
@@ -185,221 +506,1239 @@ public final class TransactionManager
                 }
                 else
                 {
-                    writtenBlocks++;
-                    boolean result = blockList.add( block );
+                    blockList.add( block );
                 }
-                numBlocks++;
             }
-
-            txns[i] = null;
         }
-        // Write the blocks from the blockList to disk
-        synchronizeBlocks( blockList.iterator(), true );
+        txns.clear();
+        logBytes = 0;
+        loggedBlocks.clear();
+        // Write the blocks only found in the log, then the blocks from
+        // the blockList, which are more recent, to disk
+        HashMap spilled;
+        synchronized ( this )
+        {
+            spilled = spills;
+        }
+        writeSpilled( spilled );
+        synchronizeBlocks( blockList, true );
 
         owner.sync();
+        synchronized ( this )
+        {
+            spills = new HashMap();
+        }
+        truncate( currentSegment );
         open();
     }
 
 
     /**
-     * Opens the log file
+     * Opens the next log segment, and records it in the manifest
      */
     private void open() throws IOException
     {
-        fos = new FileOutputStream( makeLogName() );
-        oos = new ObjectOutputStream( fos );
-        oos.writeShort( Magic.LOGFILE_HEADER );
-        oos.flush();
-        curTxn = -1;
+        long segment = currentSegment + 1;
+        fos = new FileOutputStream( makeSegmentName( segment ) );
+        logSize = 0;
+        synchronized ( this )
+        {
+            channel = fos.getChannel();
+            currentSegment = segment;
+        }
+        logBuffer.clear();
+        logBuffer.putShort( Magic.LOGFILE_HEADER_V2 );
+        flushLog();
+        imaged.clear();
+        writeManifest();
     }
 
     /**
-     * Startup recovery on all files
+     * Closes the current log segment, and opens the next one.
      */
-    private void recover() throws IOException
+    private void rotate() throws IOException
     {
-        String logName = makeLogName();
-        File logFile = new File( logName );
-        if ( !logFile.exists() )
-            return;
-        if ( logFile.length() == 0 )
-        {
-            logFile.delete();
-            return;
-        }
-
-        FileInputStream fis = new FileInputStream( logFile );
-        ObjectInputStream ois = new ObjectInputStream( fis );
-
-        try
-        {
-            if ( ois.readShort() != Magic.LOGFILE_HEADER )
-                throw new Error( "Bad magic on log file" );
-        }
-        catch ( IOException e )
-        {
-            // corrupted/empty logfile
-            logFile.delete();
-            return;
-        }
+        close();
+        open();
+    }
 
-        while ( true )
+    /**
+     * Drops the log segments up to and including the indicated one,
+     * once their blocks are in the data file.
+     */
+    private void truncate( long upTo ) throws IOException
+    {
+        long from;
+        synchronized ( this )
         {
-            ArrayList blocks = null;
-            try
-            {
-                blocks = (ArrayList) ois.readObject();
-            }
-            catch ( ClassNotFoundException e )
-            {
-                throw new Error( "Unexcepted exception: " + e );
-            }
-            catch ( IOException e )
-            {
-                // corrupted logfile, ignore rest of transactions
-                break;
-            }
-            synchronizeBlocks( blocks.iterator(), false );
-
-            // ObjectInputStream must match exactly each
-            // ObjectOutputStream created during writes
+            from = firstSegment;
+            firstSegment = upTo + 1;
             try
             {
-                ois = new ObjectInputStream( fis );
+                writeManifest();
             }
-            catch ( IOException e )
+            catch ( IOException except )
             {
-                // corrupted logfile, ignore rest of transactions
-                break;
+                // the segments are still live
+                firstSegment = from;
+                throw except;
             }
         }
-        owner.sync();
-        logFile.delete();
+        for ( long i = from; i <= upTo; i++ )
+        {
+            new File( makeSegmentName( i ) ).delete();
+        }
     }
 
     /**
-     * Synchronizes the indicated blocks with the owner.
+     * Writes the range of live segments to the manifest. The manifest
+     * is written aside, and renamed over the previous one.
      */
-    private void synchronizeBlocks( Iterator blockIterator, boolean fromCore )
-        throws IOException
+    private synchronized void writeManifest() throws IOException
     {
-        // write block vector elements to the data file.
-        while ( blockIterator.hasNext() )
+        byte[] bytes = new byte[ MANIFEST_SIZE ];
+        ByteBuffer fields = ByteBuffer.wrap( bytes );
+        fields.putShort( Magic.LOGFILE_MANIFEST );
+        fields.putLong( firstSegment );
+        fields.putLong( currentSegment );
+        CRC32 check = new CRC32();
+        check.update( bytes, 0, fields.position() );
+        fields.putInt( (int) check.getValue() );
+
+        File manifest = new File( makeManifestName() );
+        File temp = new File( makeManifestName() + ".tmp" );
+        FileOutputStream out = new FileOutputStream( temp );
+        try
         {
-            BlockIo cur = (BlockIo) blockIterator.next();
-            owner.synch( cur );
-            if ( fromCore )
+            out.write( bytes );
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if ( !temp.renameTo( manifest ) )
+        {
+            // some platforms won't rename over an existing file; the
+            // segments found on disk cover for a missing manifest.
+            manifest.delete();
+            if ( !temp.renameTo( manifest ) )
             {
-                cur.decrementTransactionCount();
-                if ( !cur.isInTransaction() )
-                {
-                    owner.releaseFromTransaction( cur, true );
-                }
+                throw new IOException( "Could not rename " + temp + " to " + manifest );
             }
         }
     }
 
-
     /**
-     * Set clean flag on the blocks.
+     * Reads the range of live segments from the manifest. Returns null
+     * if there is no valid manifest.
      */
-    private void setClean( ArrayList blocks )
-        throws IOException
+    private long[] readManifest() throws IOException
     {
-        for ( Iterator k = blocks.iterator(); k.hasNext(); )
+        File manifest = new File( makeManifestName() );
+        if ( !manifest.exists() )
         {
-            BlockIo cur = (BlockIo) k.next();
-            cur.setClean();
+            return null;
+        }
+        byte[] bytes = new byte[ MANIFEST_SIZE ];
+        DataInputStream in = new DataInputStream( new FileInputStream( manifest ) );
+        try
+        {
+            in.readFully( bytes );
         }
+        catch ( EOFException e )
+        {
+            return null;
+        }
+        finally
+        {
+            in.close();
+        }
+        ByteBuffer fields = ByteBuffer.wrap( bytes );
+        CRC32 check = new CRC32();
+        check.update( bytes, 0, MANIFEST_SIZE - Magic.SZ_INT );
+        if ( fields.getShort( 0 ) != Magic.LOGFILE_MANIFEST
+             || fields.getInt( MANIFEST_SIZE - Magic.SZ_INT ) != (int) check.getValue() )
+        {
+            return null;
+        }
+        return new long[] { fields.getLong( Magic.SZ_SHORT ),
+                            fields.getLong( Magic.SZ_SHORT + Magic.SZ_LONG ) };
     }
 
     /**
-     * Discards the indicated blocks and notify the owner.
+     * Returns the numbers of the log segments on disk, sorted.
      */
-    private void discardBlocks( ArrayList blocks )
-        throws IOException
+    private long[] findSegments()
     {
-        for ( Iterator k = blocks.iterator(); k.hasNext(); )
+        File base = new File( owner.getFileName() + extension ).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        String[] names = base.getParentFile().list();
+        TreeSet found = new TreeSet();
+        for ( int i = 0; names != null && i < names.length; i++ )
         {
-            BlockIo cur = (BlockIo) k.next();
-            cur.decrementTransactionCount();
-            if ( !cur.isInTransaction() )
+            if ( !names[i].startsWith( prefix ) )
             {
-                owner.releaseFromTransaction( cur, false );
+                continue;
+            }
+            try
+            {
+                found.add( Long.valueOf( names[i].substring( prefix.length() ) ) );
+            }
+            catch ( NumberFormatException e )
+            {
+                // not a segment
             }
         }
-    }
-
-    /**
-     * Starts a transaction. This can block if all slots have been filled
-     * with full transactions, waiting for the synchronization thread to
-     * clean out slots.
-     */
-    void start() throws IOException
-    {
-        curTxn++;
-        if ( curTxn == _maxTxns )
+        long[] segments = new long[ found.size() ];
+        int n = 0;
+        for ( Iterator i = found.iterator(); i.hasNext(); )
         {
-            synchronizeLogFromMemory();
-            curTxn = 0;
+            segments[n++] = ( (Long) i.next() ).longValue();
         }
-        txns[curTxn] = new ArrayList();
+        return segments;
     }
 
     /**
-     * Indicates the block is part of the transaction.
+     * Startup recovery on all files. The live segments, as recorded in
+     * the manifest, are read in parallel; the latest image of each
+     * block wins, and is written to the data file. Without a valid
+     * manifest, all segments found on disk are live.
      */
-    void add( BlockIo block ) throws IOException
+    private void recover() throws IOException
     {
-        block.incrementTransactionCount();
-        txns[curTxn].add( block );
-    }
+        // a log left by earlier versions predates any segment
+        recover( new File( makeLogName() ) );
 
-    /**
-     * Commits the transaction to the log file.
-     */
-    void commit() throws IOException
-    {
-        oos.writeObject( txns[curTxn] );
-        sync();
+        long[] segments = findSegments();
+        long[] range = readManifest();
+        if ( range == null && segments.length > 0 )
+        {
+            range = new long[] { segments[0], segments[ segments.length - 1 ] };
+        }
+        if ( range != null && range[0] <= range[1] )
+        {
+            LogReplay[] replays = new LogReplay[ (int) ( range[1] - range[0] + 1 ) ];
+            for ( int i = 0; i < replays.length; i++ )
+            {
+                replays[i] = new LogReplay( new File( makeSegmentName( range[0] + i ) ) );
+            }
+            LogReplay.replay( replays );
 
-        // set clean flag to indicate blocks have been written to log
-        setClean( txns[curTxn] );
+            HashMap images = new HashMap();
+            for ( int i = 0; i < replays.length; i++ )
+            {
+                if ( replays[i].getFailure() != null )
+                {
+                    throw replays[i].getFailure();
+                }
+                // later segments win
+                images.putAll( replays[i].getImages() );
+                if ( !replays[i].isComplete() )
+                {
+                    // what follows a torn segment can't be trusted
+                    break;
+                }
+            }
+            synchronizeBlocks( toBlocks( images ), false );
+            owner.sync();
+        }
 
-        // open a new ObjectOutputStream in order to store
-        // newer states of BlockIo
-        oos = new ObjectOutputStream( fos );
+        // number new segments past any found, then drop them all
+        long last = range != null ? range[1] : 0;
+        if ( segments.length > 0 )
+        {
+            last = Math.max( last, segments[ segments.length - 1 ] );
+        }
+        synchronized ( this )
+        {
+            currentSegment = Math.max( currentSegment, last );
+            firstSegment = currentSegment + 1;
+        }
+        writeManifest();
+        for ( int i = 0; i < segments.length; i++ )
+        {
+            new File( makeSegmentName( segments[i] ) ).delete();
+        }
     }
 
     /**
-     * Flushes and syncs
+     * Wraps block images, keyed by block id, into blocks.
      */
-    private void sync() throws IOException
+    private static ArrayList toBlocks( Map images )
     {
-        oos.flush();
-        fos.flush();
-        fos.getFD().sync();
+        ArrayList blocks = new ArrayList( images.size() );
+        for ( Iterator i = images.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            blocks.add( new BlockIo( ( (Long) entry.getKey() ).longValue(),
+                                     (byte[]) entry.getValue() ) );
+        }
+        return blocks;
     }
 
     /**
-     * Shutdowns the transaction manager. Resynchronizes outstanding
-     * logs.
+     * Recovery of a log file written by earlier versions
      */
-    void shutdown() throws IOException
+    private void recover( File logFile ) throws IOException
     {
-        synchronizeLogFromMemory();
-        close();
-    }
-
+        if ( !logFile.exists() )
+            return;
+        if ( logFile.length() == 0 )
+        {
+            logFile.delete();
+            return;
+        }
+
+        short magic;
+        DataInputStream in = new DataInputStream( new FileInputStream( logFile ) );
+        try
+        {
+            magic = in.readShort();
+        }
+        catch ( IOException e )
+        {
+            // corrupted/empty logfile
+            in.close();
+            logFile.delete();
+            return;
+        }
+        in.close();
+
+        if ( magic == Magic.LOGFILE_HEADER_V2 )
+        {
+            LogReplay replay = new LogReplay( logFile );
+            replay.run();
+            if ( replay.getFailure() != null )
+            {
+                throw replay.getFailure();
+            }
+            synchronizeBlocks( toBlocks( replay.getImages() ), false );
+        }
+        else if ( magic == ObjectStreamConstants.STREAM_MAGIC )
+        {
+            recoverSerialized( logFile );
+        }
+        else
+        {
+            throw new Error( "Bad magic on log file" );
+        }
+        owner.sync();
+        logFile.delete();
+    }
+
+    /**
+     * Rolls forward a log written as a sequence of serialized block
+     * lists by earlier versions.
+     */
+    private void recoverSerialized( File logFile ) throws IOException
+    {
+        FileInputStream fis = new FileInputStream( logFile );
+        try
+        {
+            ObjectInputStream ois;
+            try
+            {
+                ois = new ObjectInputStream( fis );
+                if ( ois.readShort() != Magic.LOGFILE_HEADER )
+                    throw new Error( "Bad magic on log file" );
+            }
+            catch ( IOException e )
+            {
+                // corrupted/empty logfile
+                return;
+            }
+
+            while ( true )
+            {
+                ArrayList blocks = null;
+                try
+                {
+                    blocks = (ArrayList) ois.readObject();
+                }
+                catch ( ClassNotFoundException e )
+                {
+                    throw new Error( "Unexcepted exception: " + e );
+                }
+                catch ( IOException e )
+                {
+                    // corrupted logfile, ignore rest of transactions
+                    break;
+                }
+                synchronizeBlocks( blocks, false );
+
+                // ObjectInputStream must match exactly each
+                // ObjectOutputStream created during writes
+                try
+                {
+                    ois = new ObjectInputStream( fis );
+                }
+                catch ( IOException e )
+                {
+                    // corrupted logfile, ignore rest of transactions
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    /**
+     * Synchronizes the indicated blocks with the owner.
+     */
+    private void synchronizeBlocks( Collection blocks, boolean fromCore )
+        throws IOException
+    {
+        // write block vector elements to the data file, as one
+        // sorted batch.
+        owner.synch( blocks );
+        if ( !fromCore )
+        {
+            return;
+        }
+        for ( Iterator blockIterator = blocks.iterator(); blockIterator.hasNext(); )
+        {
+            BlockIo cur = (BlockIo) blockIterator.next();
+            cur.decrementTransactionCount();
+            if ( !cur.isInTransaction() )
+            {
+                owner.releaseFromTransaction( cur, true );
+            }
+        }
+    }
+
+
+    /**
+     * Set clean flag on the blocks.
+     */
+    private void setClean( ArrayList blocks )
+        throws IOException
+    {
+        for ( Iterator k = blocks.iterator(); k.hasNext(); )
+        {
+            BlockIo cur = (BlockIo) k.next();
+            cur.setClean();
+        }
+    }
+
+    /**
+     * Discards the indicated blocks and notify the owner.
+     */
+    private void discardBlocks( ArrayList blocks )
+        throws IOException
+    {
+        for ( Iterator k = blocks.iterator(); k.hasNext(); )
+        {
+            BlockIo cur = (BlockIo) k.next();
+            cur.decrementTransactionCount();
+            if ( !cur.isInTransaction() )
+            {
+                owner.releaseFromTransaction( cur, false );
+            }
+        }
+    }
+
+    /**
+     * Starts a transaction. Blocks of a checkpoint written since the
+     * last transaction are released first.
+     */
+    void start() throws IOException
+    {
+        reapCheckpoint();
+        txns.add( new ArrayList() );
+    }
+
+    /**
+     * Indicates the block is part of the transaction.
+     */
+    void add( BlockIo block ) throws IOException
+    {
+        block.incrementTransactionCount();
+        ( (ArrayList) txns.get( txns.size() - 1 ) ).add( block );
+    }
+
+    /**
+     * Writes the transaction to the log file, without syncing it.
+     * Returns the log sequence number of the transaction, to be handed
+     * to {@link #awaitDurable}.
+     */
+    long commit() throws IOException
+    {
+        long txnId = nextTxnId++;
+        ArrayList blocks = (ArrayList) txns.get( txns.size() - 1 );
+        long size = 0;
+        for ( int i = 0; i < blocks.size(); i++ )
+        {
+            BlockIo block = (BlockIo) blocks.get( i );
+            int[] ranges = block.getModifiedRanges();
+            if ( ranges != null && imaged.contains( new Long( block.getBlockId() ) )
+                 && deltaSize( ranges ) < BLOCK_RECORD_SIZE + block.getLength() )
+            {
+                size += writeDelta( txnId, block, ranges );
+            }
+            else
+            {
+                size += writeBlock( txnId, block );
+                imaged.add( new Long( block.getBlockId() ) );
+            }
+            loggedBlocks.add( new Long( block.getBlockId() ) );
+        }
+        int spilled;
+        synchronized ( this )
+        {
+            spilled = pendingSpillCount;
+            // blocks spilled, and not written again at commit, are now
+            // committed in the log only
+            spills.putAll( pendingSpills );
+            for ( int i = 0; i < blocks.size(); i++ )
+            {
+                spills.remove( new Long( ( (BlockIo) blocks.get( i ) ).getBlockId() ) );
+            }
+            pendingSpills.clear();
+            pendingSpillCount = 0;
+        }
+        size += writeCommit( txnId, blocks.size() + spilled );
+        flushLog();
+
+        // set clean flag to indicate blocks have been written to log
+        setClean( blocks );
+
+        boolean idle;
+        synchronized ( this )
+        {
+            appendedTxnId = txnId;
+            pendingBytes += size;
+            if ( groupBytes > 0 && pendingBytes >= groupBytes )
+            {
+                // cut the leader's window short
+                notifyAll();
+            }
+            idle = sealedTxns == null;
+        }
+
+        logBytes += size;
+        if ( idle && ( logBytes >= checkpointSize
+                       || loggedBlocks.size() >= checkpointBlocks
+                       || ( _maxTxns > 0 && txns.size() >= _maxTxns ) ) )
+        {
+            seal();
+        }
+        else if ( logSize >= segmentSize )
+        {
+            rotate();
+        }
+        return txnId;
+    }
+
+    /**
+     * Seals the log segments written since the last checkpoint, and
+     * opens a fresh one. The blocks of the sealed segments are copied,
+     * as they may change while the checkpoint is written.
+     */
+    private void seal() throws IOException
+    {
+        close();
+
+        TreeSet blocks = new TreeSet( new BlockIoComparator() );
+        for ( int i = 0; i < txns.size(); i++ )
+        {
+            blocks.addAll( (ArrayList) txns.get( i ) );
+        }
+        ArrayList copies = new ArrayList( blocks.size() );
+        for ( Iterator i = blocks.iterator(); i.hasNext(); )
+        {
+            BlockIo block = (BlockIo) i.next();
+            byte[] data = new byte[ block.getLength() ];
+            block.copyTo( data );
+            copies.add( new BlockIo( block.getBlockId(), data ) );
+        }
+
+        synchronized ( this )
+        {
+            sealedTxns = txns;
+            snapshots = copies;
+            sealedSpills = spills;
+            spills = new HashMap();
+            sealedSegment = currentSegment;
+            checkpointWritten = false;
+        }
+        txns = new ArrayList();
+        logBytes = 0;
+        loggedBlocks.clear();
+        open();
+
+        if ( checkpointer == null )
+        {
+            checkpointer = new Checkpointer( this );
+        }
+        checkpointer.wake();
+    }
+
+    /**
+     * Writes blocks of the transaction in progress to the log ahead of
+     * its commit marker, so that the owner can drop them from memory.
+     * A block may be spilled several times; the last image wins.
+     */
+    void spill( Collection blocks ) throws IOException
+    {
+        long txnId = nextTxnId;
+        String segment = makeSegmentName( currentSegment );
+        HashMap written = new HashMap();
+        for ( Iterator i = blocks.iterator(); i.hasNext(); )
+        {
+            BlockIo block = (BlockIo) i.next();
+            Long key = new Long( block.getBlockId() );
+            reserve( BLOCK_RECORD_SIZE + block.getLength() );
+            long offset = logSize + logBuffer.position()
+                + BLOCK_RECORD_SIZE - Magic.SZ_INT;
+            int size = writeBlock( txnId, block );
+            written.put( key, new Spill( segment, offset,
+                                         size - BLOCK_RECORD_SIZE ) );
+            imaged.add( key );
+            loggedBlocks.add( key );
+            logBytes += size;
+        }
+        // so that the images can be read back from the file
+        flushLog();
+        synchronized ( this )
+        {
+            pendingSpills.putAll( written );
+            pendingSpillCount += blocks.size();
+        }
+    }
+
+    /**
+     * Returns true if the transaction in progress spilled blocks.
+     */
+    synchronized boolean hasSpills()
+    {
+        return pendingSpillCount > 0;
+    }
+
+    /**
+     * Returns true if the indicated block was spilled by the
+     * transaction in progress.
+     */
+    synchronized boolean isSpilled( long blockid )
+    {
+        return pendingSpills.containsKey( new Long( blockid ) );
+    }
+
+    /**
+     * Forgets the blocks spilled by the transaction in progress, which
+     * is rolled back, and returns their ids. Its records stay in the
+     * log, without a commit marker, so the next transaction takes
+     * another id.
+     */
+    synchronized Collection discardSpills()
+    {
+        Collection discarded = pendingSpills.keySet();
+        if ( pendingSpillCount == 0 )
+        {
+            return discarded;
+        }
+        // deltas must not build on the discarded images
+        imaged.removeAll( discarded );
+        pendingSpills = new HashMap();
+        pendingSpillCount = 0;
+        nextTxnId++;
+        return discarded;
+    }
+
+    /**
+     * Reads the latest image of a block from the log, if it is only
+     * found there. Returns false if the block is to be read from the
+     * data file.
+     */
+    synchronized boolean readSpilled( BlockIo block ) throws IOException
+    {
+        Long key = new Long( block.getBlockId() );
+        Spill spill = (Spill) pendingSpills.get( key );
+        if ( spill == null )
+        {
+            spill = (Spill) spills.get( key );
+        }
+        if ( spill == null && sealedSpills != null )
+        {
+            spill = (Spill) sealedSpills.get( key );
+        }
+        if ( spill == null )
+        {
+            return false;
+        }
+        // the segment isn't dropped before the image is in the data
+        // file, and this monitor released
+        block.load( spill.read() );
+        return true;
+    }
+
+    /**
+     * Copies the indicated spilled blocks from the log to the data
+     * file, a batch at a time.
+     */
+    private void writeSpilled( Map spilled ) throws IOException
+    {
+        if ( spilled == null )
+        {
+            return;
+        }
+        ArrayList batch = new ArrayList( SPILL_BATCH );
+        for ( Iterator i = new TreeMap( spilled ).entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            long blockid = ( (Long) entry.getKey() ).longValue();
+            batch.add( new BlockIo( blockid, ( (Spill) entry.getValue() ).read() ) );
+            if ( batch.size() == SPILL_BATCH || !i.hasNext() )
+            {
+                owner.synch( batch );
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the blocks of the sealed segments to the data file, and
+     * drops the segments. Called by the checkpointer thread.
+     */
+    void writeCheckpoint() throws IOException
+    {
+        ArrayList blocks;
+        HashMap spilled;
+        long upTo;
+        synchronized ( this )
+        {
+            if ( snapshots == null )
+            {
+                return;
+            }
+            blocks = snapshots;
+            spilled = sealedSpills;
+            upTo = sealedSegment;
+        }
+
+        // the copies are more recent than the spilled blocks, if any
+        writeSpilled( spilled );
+        owner.synch( blocks );
+        owner.sync();
+        synchronized ( this )
+        {
+            // read from the data file from now on
+            sealedSpills = null;
+        }
+        truncate( upTo );
+
+        synchronized ( this )
+        {
+            snapshots = null;
+            checkpointWritten = true;
+            checkpointCount++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records the failure of the checkpointer thread. The sealed log is
+     * kept, and replayed on recovery; the checkpoint is written again
+     * once the failure was reported.
+     */
+    synchronized void checkpointFailed( IOException except )
+    {
+        checkpointFailure = except;
+        notifyAll();
+    }
+
+    /**
+     * Releases the blocks of a written checkpoint from the
+     * transaction, unless later transactions hold them. Rethrows the
+     * failure of the checkpointer thread, if any, once; the checkpoint
+     * is tried again the next time around.
+     */
+    private void reapCheckpoint() throws IOException
+    {
+        ArrayList done;
+        synchronized ( this )
+        {
+            if ( checkpointFailure != null )
+            {
+                IOException except = checkpointFailure;
+                checkpointFailure = null;
+                checkpointRetry = true;
+                throw except;
+            }
+            retryCheckpoint();
+            if ( sealedTxns == null || !checkpointWritten )
+            {
+                return;
+            }
+            done = sealedTxns;
+            sealedTxns = null;
+        }
+        for ( int i = 0; i < done.size(); i++ )
+        {
+            for ( Iterator k = ( (ArrayList) done.get( i ) ).iterator(); k.hasNext(); )
+            {
+                BlockIo cur = (BlockIo) k.next();
+                cur.decrementTransactionCount();
+                if ( !cur.isInTransaction() )
+                {
+                    owner.releaseFromTransaction( cur, true );
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks the checkpointer thread to write again the checkpoint whose
+     * failure was reported. The caller holds this object's monitor.
+     */
+    private void retryCheckpoint()
+    {
+        if ( checkpointRetry )
+        {
+            checkpointRetry = false;
+            checkpointer.wake();
+        }
+    }
+
+    /**
+     * Waits for a checkpoint in progress to be written.
+     */
+    private void waitForCheckpoint() throws IOException
+    {
+        boolean interrupted = false;
+        synchronized ( this )
+        {
+            if ( checkpointFailure == null )
+            {
+                retryCheckpoint();
+            }
+            while ( sealedTxns != null && !checkpointWritten
+                    && checkpointFailure == null )
+            {
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException except )
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+        reapCheckpoint();
+    }
+
+    /**
+     * Waits until the indicated transaction is durable, syncing the
+     * log if no other thread is about to.
+     */
+    void awaitDurable( long txnId ) throws IOException
+    {
+        synchronized ( this )
+        {
+            if ( syncFailure != null )
+            {
+                throw syncFailure;
+            }
+            if ( durability >= PERIODIC_DURABILITY )
+            {
+                return;
+            }
+        }
+        forceLog( txnId, true );
+    }
+
+    /**
+     * Syncs what was appended to the log since the last sync. Called
+     * by the syncer thread; does nothing while the log is closed.
+     */
+    void syncLog() throws IOException
+    {
+        long upTo;
+        synchronized ( this )
+        {
+            upTo = appendedTxnId;
+        }
+        forceLog( upTo, false );
+    }
+
+    /**
+     * Records the failure of the syncer thread, to be rethrown to the
+     * next committer.
+     */
+    synchronized void syncFailed( IOException except )
+    {
+        syncFailure = except;
+    }
+
+    /**
+     * Waits until the indicated transaction is durable, syncing the
+     * log if no other thread is about to.
+     *
+     * @param required true if the log being closed is an error
+     */
+    private void forceLog( long txnId, boolean required ) throws IOException
+    {
+        boolean interrupted = false;
+        FileChannel target;
+        long upTo;
+        synchronized ( this )
+        {
+            while ( durableTxnId < txnId && syncing )
+            {
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException except )
+                {
+                    interrupted = true;
+                }
+            }
+            if ( durableTxnId >= txnId )
+            {
+                if ( interrupted )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+
+            // become the leader, and give others a chance to join
+            syncing = true;
+            long deadline = System.currentTimeMillis() + groupWindow;
+            while ( groupBytes == 0 || pendingBytes < groupBytes )
+            {
+                long delay = deadline - System.currentTimeMillis();
+                if ( delay <= 0 )
+                {
+                    break;
+                }
+                try
+                {
+                    wait( delay );
+                }
+                catch ( InterruptedException except )
+                {
+                    interrupted = true;
+                }
+            }
+            upTo = appendedTxnId;
+            pendingBytes = 0;
+            target = channel;
+        }
+
+        boolean synced = false;
+        try
+        {
+            if ( target != null )
+            {
+                target.force( false );
+                synced = true;
+            }
+            else if ( required )
+            {
+                throw new IOException( "Transaction log is closed" );
+            }
+        }
+        finally
+        {
+            synchronized ( this )
+            {
+                syncing = false;
+                if ( synced )
+                {
+                    syncCount++;
+                    durableTxnId = Math.max( durableTxnId, upTo );
+                }
+                notifyAll();
+            }
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sets the group commit window, in milliseconds, and the amount of
+     * log, in bytes, that ends it early.
+     */
+    synchronized void setGroupCommit( long window, long bytes )
+    {
+        groupWindow = window;
+        groupBytes = bytes;
+    }
+
+    /**
+     * Sets the durability level, and the interval, in milliseconds,
+     * between syncs at the periodic level.
+     */
+    synchronized void setDurability( int level, long interval )
+    {
+        if ( level < SYNC_DURABILITY || level > OS_DURABILITY )
+        {
+            throw new IllegalArgumentException( "Unknown durability level: "
+                                                + level );
+        }
+        durability = level;
+        if ( level == GROUP_DURABILITY && groupWindow == 0 )
+        {
+            groupWindow = DEFAULT_GROUP_WINDOW;
+        }
+        if ( syncer != null )
+        {
+            syncer.close();
+            syncer = null;
+        }
+        if ( level == PERIODIC_DURABILITY )
+        {
+            syncer = new LogSyncer( this, interval );
+        }
+    }
+
+    /**
+     * Stops the background syncer, if any.
+     */
+    private synchronized void closeSyncer()
+    {
+        if ( syncer != null )
+        {
+            syncer.close();
+            syncer = null;
+        }
+    }
+
+    /**
+     * Returns the number of times the log was synced.
+     */
+    synchronized int getSyncCount()
+    {
+        return syncCount;
+    }
+
+    /**
+     * Appends the record of a block image to the log buffer, and
+     * returns its size.
+     */
+    private int writeBlock( long txnId, BlockIo block ) throws IOException
+    {
+        byte[] data;
+        if ( block.hasArray() )
+        {
+            data = block.getData();
+        }
+        else
+        {
+            block.copyTo( blockData );
+            data = blockData;
+        }
+        ByteBuffer fields = ByteBuffer.wrap( recordHeader );
+        fields.put( LOG_BLOCK );
+        fields.putLong( txnId );
+        fields.putLong( block.getBlockId() );
+        fields.putInt( data.length );
+
+        crc.reset();
+        crc.update( recordHeader, 0, fields.position() );
+        crc.update( data, 0, data.length );
+
+        reserve( BLOCK_RECORD_SIZE + data.length );
+        logBuffer.put( recordHeader, 0, fields.position() );
+        logBuffer.put( data );
+        logBuffer.putInt( (int) crc.getValue() );
+        return BLOCK_RECORD_SIZE + data.length;
+    }
+
+    /**
+     * Returns the size of a delta record for the indicated ranges.
+     */
+    private static int deltaSize( int[] ranges )
+    {
+        int size = BLOCK_RECORD_SIZE;
+        for ( int r = 0; r < ranges.length; r += 2 )
+        {
+            size += RANGE_HEADER_SIZE + ranges[ r + 1 ] - ranges[ r ];
+        }
+        return size;
+    }
+
+    /**
+     * Appends the record of the modified ranges of a block to the log
+     * buffer, and returns its size.
+     */
+    private int writeDelta( long txnId, BlockIo block, int[] ranges )
+        throws IOException
+    {
+        byte[] data = block.hasArray() ? block.getData() : blockData;
+        int size = deltaSize( ranges );
+        reserve( size );
+
+        ByteBuffer fields = ByteBuffer.wrap( recordHeader );
+        fields.put( LOG_DELTA );
+        fields.putLong( txnId );
+        fields.putLong( block.getBlockId() );
+        fields.putInt( ranges.length / 2 );
+        crc.reset();
+        crc.update( recordHeader, 0, fields.position() );
+        logBuffer.put( recordHeader, 0, fields.position() );
+
+        ByteBuffer range = ByteBuffer.wrap( rangeHeader );
+        for ( int r = 0; r < ranges.length; r += 2 )
+        {
+            int offset = ranges[ r ];
+            int length = ranges[ r + 1 ] - offset;
+            if ( !block.hasArray() )
+            {
+                block.readBytes( offset, data, offset, length );
+            }
+            range.clear();
+            range.putInt( offset );
+            range.putInt( length );
+            crc.update( rangeHeader, 0, RANGE_HEADER_SIZE );
+            crc.update( data, offset, length );
+            logBuffer.put( rangeHeader );
+            logBuffer.put( data, offset, length );
+        }
+        logBuffer.putInt( (int) crc.getValue() );
+        return size;
+    }
+
+    /**
+     * Appends the commit marker of a transaction to the log buffer,
+     * and returns its size.
+     */
+    private int writeCommit( long txnId, int count ) throws IOException
+    {
+        ByteBuffer fields = ByteBuffer.wrap( recordHeader );
+        fields.put( LOG_COMMIT );
+        fields.putLong( txnId );
+        fields.putInt( count );
+
+        crc.reset();
+        crc.update( recordHeader, 0, fields.position() );
+
+        reserve( COMMIT_RECORD_SIZE );
+        logBuffer.put( recordHeader, 0, fields.position() );
+        logBuffer.putInt( (int) crc.getValue() );
+        return COMMIT_RECORD_SIZE;
+    }
+
+    /**
+     * Makes room for a record of the indicated size in the log buffer.
+     */
+    private void reserve( int size ) throws IOException
+    {
+        if ( logBuffer.remaining() < size )
+        {
+            flushLog();
+        }
+    }
+
+    /**
+     * Writes the contents of the log buffer to the log file.
+     */
+    private void flushLog() throws IOException
+    {
+        logBuffer.flip();
+        logSize += logBuffer.remaining();
+        while ( logBuffer.hasRemaining() )
+        {
+            channel.write( logBuffer );
+        }
+        logBuffer.clear();
+    }
+
+    /**
+     * Flushes and syncs
+     */
+    private void sync() throws IOException
+    {
+        flushLog();
+        channel.force( false );
+    }
+
+    /**
+     * Waits for a sync in progress to finish, and keeps others from
+     * starting one, so that the log file can be closed.
+     */
+    private synchronized void beginClose()
+    {
+        boolean interrupted = false;
+        while ( syncing )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException except )
+            {
+                interrupted = true;
+            }
+        }
+        syncing = true;
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lets syncs start again once the log file is closed.
+     *
+     * @param synced true if everything appended to the log is durable
+     */
+    private synchronized void endClose( boolean synced )
+    {
+        syncing = false;
+        channel = null;
+        if ( synced )
+        {
+            durableTxnId = appendedTxnId;
+            pendingBytes = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Shutdowns the transaction manager. Resynchronizes outstanding
+     * logs.
+     */
+    void shutdown() throws IOException
+    {
+        closeSyncer();
+        synchronizeLogFromMemory();
+        close();
+        if ( checkpointer != null )
+        {
+            checkpointer.close();
+        }
+    }
+
     /**
      * Closes open files.
      */
     private void close() throws IOException
     {
-        sync();
-        oos.close();
-        fos.close();
-        oos = null;
+        boolean synced = false;
+        beginClose();
+        try
+        {
+            sync();
+            synced = true;
+            fos.close();
+        }
+        finally
+        {
+            endClose( synced );
+        }
         fos = null;
     }
 
@@ -409,9 +1748,22 @@ public final class TransactionManager
      */
     void forceClose() throws IOException
     {
-        oos.close();
-        fos.close();
-        oos = null;
+        closeSyncer();
+        if ( checkpointer != null )
+        {
+            // don't leave the thread writing to files being reopened
+            waitForCheckpoint();
+            checkpointer.close();
+        }
+        beginClose();
+        try
+        {
+            fos.close();
+        }
+        finally
+        {
+            endClose( false );
+        }
         fos = null;
     }
 
@@ -422,21 +1774,64 @@ public final class TransactionManager
      */
     void synchronizeLogFromDisk() throws IOException
     {
+        waitForCheckpoint();
         close();
 
-        for ( int i = 0; i < _maxTxns; i++ )
+        for ( int i = 0; i < txns.size(); i++ )
         {
-            if ( txns[i] == null )
-                continue;
-            discardBlocks( txns[i] );
-            txns[i] = null;
+            discardBlocks( (ArrayList) txns.get( i ) );
         }
+        txns.clear();
+        logBytes = 0;
+        loggedBlocks.clear();
 
         recover();
+        synchronized ( this )
+        {
+            // recovered to the data file
+            spills = new HashMap();
+        }
         open();
     }
 
 
+    /**
+     * Where the image of a spilled block is in the log.
+     */
+    private static final class Spill
+    {
+        final String segment;
+        final long offset;
+        final int length;
+
+        Spill( String segment, long offset, int length )
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Reads the block image back from its log segment.
+         */
+        byte[] read() throws IOException
+        {
+            byte[] data = new byte[ length ];
+            RandomAccessFile file = new RandomAccessFile( segment, "r" );
+            try
+            {
+                file.seek( offset );
+                file.readFully( data );
+            }
+            finally
+            {
+                file.close();
+            }
+            return data;
+        }
+    }
+
+
     /**
      * INNER CLASS.
      * Comparator class for use by the tree set used to store the blocks
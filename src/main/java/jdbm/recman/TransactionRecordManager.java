@@ -0,0 +1,475 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+
+package jdbm.recman;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jdbm.RecordManager;
+import jdbm.helper.DefaultSerializer;
+import jdbm.helper.Serializer;
+
+/**
+ * An explicit transaction on a {@link BaseRecordManager}, obtained from
+ * {@link BaseRecordManager#begin}. Any number of handles may be open at
+ * once, each used by one thread at a time.
+ * <p/>
+ * A handle reads the records as they were committed when its
+ * transaction started, through a snapshot of the record manager, along
+ * with its own changes. Changes are kept in the handle until commit,
+ * so that writers on different handles proceed in parallel, without
+ * taking the lock of the record manager; only inserts take it briefly,
+ * to reserve the new record id.
+ * <p/>
+ * Commits are checked for conflicts: the first transaction to commit
+ * a change to a record or root wins, and any other transaction that
+ * changed it and started before that commit fails to commit with a
+ * {@link TransactionConflictException}. Committing or rolling back
+ * starts the next transaction of the handle; closing it rolls back.
+ * <p/>
+ * Changes made directly through the record manager take part in the
+ * conflict checks as well, once committed. While they are uncommitted,
+ * handles fail to commit with a {@link TransactionConflictException},
+ * as the commit would commit them too. A rollback
+ * of the record manager takes back the ids of the records inserted in
+ * handles since its last commit; those handles fail to commit with a
+ * {@link TransactionConflictException} too. Handles bypass any cache
+ * kept above the record manager.
+ */
+public final class TransactionRecordManager
+    implements RecordManager
+{
+
+    /**
+     * Marks a record deleted in the transaction.
+     */
+    private static final byte[] DELETED = new byte[ 0 ];
+
+
+    /**
+     * The record manager the transaction runs on.
+     */
+    private BaseRecordManager _recman;
+
+
+    /**
+     * View of the records as of the start of the transaction. Set by
+     * the record manager.
+     */
+    SnapshotRecordManager _snapshot;
+
+
+    /**
+     * Version of the last commit before the transaction started. Set
+     * by the record manager.
+     */
+    long _startVersion;
+
+
+    /**
+     * Records written in the transaction, as serialized contents or
+     * {@link #DELETED}, by record id.
+     */
+    final LinkedHashMap _writes = new LinkedHashMap();
+
+
+    /**
+     * Roots set in the transaction, by root id.
+     */
+    final HashMap _roots = new HashMap();
+
+
+    /**
+     * Ids of the records inserted in the transaction, reserved until
+     * it ends.
+     */
+    final HashSet _reserved = new HashSet();
+
+
+    /**
+     * Ids of the records inserted in the transaction that were taken
+     * back by a rollback of the record manager. The transaction can't
+     * commit then.
+     */
+    final HashSet _lost = new HashSet();
+
+
+    /**
+     * Constructs a handle and starts its first transaction.
+     */
+    TransactionRecordManager( BaseRecordManager recman )
+        throws IOException
+    {
+        _recman = recman;
+        _recman.open( this );
+    }
+
+
+    /**
+     * Inserts a new record using standard java object serialization.
+     *
+     * @param obj the object for the new record.
+     * @throws IOException when one of the underlying I/O operations fails.
+     * @returns the rowid for the new record.
+     */
+    public long insert( Object obj )
+        throws IOException
+    {
+        return insert( obj, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * Inserts a new record using a custom serializer. The record id is
+     * reserved right away; the record is written at commit.
+     *
+     * @param obj        the object for the new record.
+     * @param serializer a custom serializer
+     * @throws IOException when one of the underlying I/O operations fails.
+     * @returns the rowid for the new record.
+     */
+    public synchronized long insert( Object obj, Serializer serializer )
+        throws IOException
+    {
+        checkIfClosed();
+
+        byte[] data = serializer.serialize( obj );
+        Long recid = new Long( _recman.reserve( this, data ) );
+        _writes.put( recid, data );
+        return recid.longValue();
+    }
+
+
+    /**
+     * Deletes a record.
+     *
+     * @param recid the rowid for the record that should be deleted.
+     * @throws IOException when one of the underlying I/O operations fails.
+     */
+    public synchronized void delete( long recid )
+        throws IOException
+    {
+        checkIfClosed();
+        checkRecid( recid );
+
+        _writes.put( new Long( recid ), DELETED );
+    }
+
+
+    /**
+     * Updates a record using standard java object serialization.
+     *
+     * @param recid the recid for the record that is to be updated.
+     * @param obj   the new object for the record.
+     * @throws IOException when one of the underlying I/O operations fails.
+     */
+    public void update( long recid, Object obj )
+        throws IOException
+    {
+        update( recid, obj, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * Updates a record using a custom serializer.
+     *
+     * @param recid      the recid for the record that is to be updated.
+     * @param obj        the new object for the record.
+     * @param serializer a custom serializer
+     * @throws IOException when one of the underlying I/O operations fails.
+     */
+    public synchronized void update( long recid, Object obj, Serializer serializer )
+        throws IOException
+    {
+        checkIfClosed();
+        checkRecid( recid );
+
+        _writes.put( new Long( recid ), serializer.serialize( obj ) );
+    }
+
+
+    /**
+     * Fetches a record using standard java object serialization.
+     *
+     * @param recid the recid for the record that must be fetched.
+     * @throws IOException when one of the underlying I/O operations fails.
+     * @returns the object contained in the record.
+     */
+    public Object fetch( long recid )
+        throws IOException
+    {
+        return fetch( recid, DefaultSerializer.INSTANCE );
+    }
+
+
+    /**
+     * Fetches a record using a custom serializer, as written in the
+     * transaction, or as committed when it started.
+     *
+     * @param recid      the recid for the record that must be fetched.
+     * @param serializer a custom serializer
+     * @throws IOException when one of the underlying I/O operations fails.
+     * @returns the object contained in the record.
+     */
+    public synchronized Object fetch( long recid, Serializer serializer )
+        throws IOException
+    {
+        checkIfClosed();
+        checkRecid( recid );
+
+        byte[] data = (byte[]) _writes.get( new Long( recid ) );
+        if ( data == DELETED )
+        {
+            throw new IOException( "Record " + recid + " was deleted" );
+        }
+        if ( data != null )
+        {
+            return serializer.deserialize( data );
+        }
+        return _snapshot.fetch( recid, serializer );
+    }
+
+
+    /**
+     * Rolls back the current transaction, and closes the handle.
+     */
+    public synchronized void close()
+        throws IOException
+    {
+        checkIfClosed();
+
+        _recman.close( this );
+        _recman = null;
+    }
+
+
+    /**
+     * Returns the number of slots available for "root" rowids.
+     */
+    public synchronized int getRootCount()
+    {
+        checkIfClosed();
+
+        return _snapshot.getRootCount();
+    }
+
+
+    /**
+     * Returns the indicated root rowid, as set in the transaction, or
+     * as committed when it started.
+     *
+     * @see #getRootCount
+     */
+    public synchronized long getRoot( int id )
+        throws IOException
+    {
+        checkIfClosed();
+
+        Long rowid = (Long) _roots.get( new Integer( id ) );
+        if ( rowid != null )
+        {
+            return rowid.longValue();
+        }
+        return _snapshot.getRoot( id );
+    }
+
+
+    /**
+     * Sets the indicated root rowid.
+     *
+     * @see #getRootCount
+     */
+    public synchronized void setRoot( int id, long rowid )
+        throws IOException
+    {
+        checkIfClosed();
+        if ( id < 0 || id >= getRootCount() )
+        {
+            throw new IllegalArgumentException( "Argument 'id' is invalid: "
+                + id );
+        }
+
+        _roots.put( new Integer( id ), new Long( rowid ) );
+    }
+
+
+    /**
+     * Commits the changes of the transaction, and starts the next one.
+     *
+     * @throws TransactionConflictException if another transaction
+     *         committed a change to a record or root changed in this
+     *         one since it started. The changes are kept.
+     */
+    public synchronized void commit()
+        throws IOException
+    {
+        checkIfClosed();
+
+        _recman.commit( this );
+    }
+
+
+    /**
+     * Discards the changes of the transaction, and starts the next
+     * one.
+     */
+    public synchronized void rollback()
+        throws IOException
+    {
+        checkIfClosed();
+
+        _recman.rollback( this );
+    }
+
+
+    /**
+     * Obtain the record id of a named object. Returns 0 if named object
+     * doesn't exist.
+     */
+    public synchronized long getNamedObject( String name )
+        throws IOException
+    {
+        long recid = getRoot( NAME_DIRECTORY_ROOT );
+        if ( recid == 0 )
+        {
+            return 0;
+        }
+        Long value = (Long) ( (Map) fetch( recid ) ).get( name );
+        return value == null ? 0 : value.longValue();
+    }
+
+
+    /**
+     * Set the record id of a named object.
+     */
+    public synchronized void setNamedObject( String name, long recid )
+        throws IOException
+    {
+        long dirRecid = getRoot( NAME_DIRECTORY_ROOT );
+        Map directory = dirRecid == 0 ? new HashMap() : (Map) fetch( dirRecid );
+        if ( recid == 0 )
+        {
+            directory.remove( name );
+        }
+        else
+        {
+            directory.put( name, new Long( recid ) );
+        }
+        if ( dirRecid == 0 )
+        {
+            setRoot( NAME_DIRECTORY_ROOT, insert( directory ) );
+        }
+        else
+        {
+            update( dirRecid, directory );
+        }
+    }
+
+
+    /**
+     * Not supported: take a snapshot of the record manager instead.
+     */
+    public RecordManager snapshot()
+        throws IOException
+    {
+        throw new UnsupportedOperationException( "Transactions have no snapshots" );
+    }
+
+
+    /**
+     * Returns true if the indicated record was deleted in the
+     * transaction.
+     */
+    static boolean isDeleted( byte[] data )
+    {
+        return data == DELETED;
+    }
+
+
+    /**
+     * Forgets the changes of the transaction.
+     */
+    void clear()
+    {
+        _writes.clear();
+        _roots.clear();
+        _reserved.clear();
+        _lost.clear();
+    }
+
+
+    /**
+     * Throws if the indicated record id is invalid.
+     */
+    private static void checkRecid( long recid )
+    {
+        if ( recid <= 0 )
+        {
+            throw new IllegalArgumentException( "Argument 'recid' is invalid: "
+                + recid );
+        }
+    }
+
+
+    /**
+     * Check if the handle has been closed.  If so, throw an
+     * IllegalStateException.
+     */
+    private void checkIfClosed()
+        throws IllegalStateException
+    {
+        if ( _recman == null )
+        {
+            throw new IllegalStateException( "Transaction has been closed" );
+        }
+    }
+}
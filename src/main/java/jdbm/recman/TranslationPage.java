@@ -57,11 +57,9 @@ final class TranslationPage extends PageHeader
 {
     // offsets
     static final short O_TRANS = PageHeader.SIZE; // short count
-    static final short ELEMS_PER_PAGE =
-        ( RecordFile.BLOCK_SIZE - O_TRANS ) / PhysicalRowId.SIZE;
 
     // slots we returned.
-    final PhysicalRowId[] slots = new PhysicalRowId[ELEMS_PER_PAGE];
+    final PhysicalRowId[] slots;
 
     /**
      * Constructs a data page view from the indicated block.
@@ -69,6 +67,16 @@ final class TranslationPage extends PageHeader
     TranslationPage( BlockIo block )
     {
         super( block );
+        slots = new PhysicalRowId[ elemsPerPage( block.getSize() ) ];
+    }
+
+    /**
+     * Returns the number of translations on a page of the indicated
+     * block size.
+     */
+    static int elemsPerPage( int blockSize )
+    {
+        return ( blockSize - O_TRANS ) / PhysicalRowId.SIZE;
     }
 
     /**
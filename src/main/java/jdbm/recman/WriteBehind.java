@@ -0,0 +1,172 @@
+/**
+ * JDBM LICENSE v1.00
+ *
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "JDBM" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Cees de Groot.  For written permission,
+ *    please contact cg@cdegroot.com.
+ *
+ * 4. Products derived from this Software may not be called "JDBM"
+ *    nor may "JDBM" appear in their names without prior written
+ *    permission of Cees de Groot.
+ *
+ * 5. Due credit should be given to the JDBM Project
+ *    (http://jdbm.sourceforge.net/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE JDBM PROJECT AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * CEES DE GROOT OR ANY CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2000 (C) Cees de Groot. All Rights Reserved.
+ * Contributions are Copyright (C) 2000 by their associated contributors.
+ *
+ * $Id$
+ */
+
+package jdbm.recman;
+
+import java.io.IOException;
+
+/**
+ * Background writer for the dirty blocks of a {@link RecordFile} that
+ * runs without transactions. Once woken up, it has the record file
+ * flush its oldest dirty blocks in batches, until the record file is
+ * back below its low-water mark.
+ * <p/>
+ * The thread is never interrupted, since an interrupt would close a
+ * channel based device. It is stopped by {@link #close}, without
+ * waiting: the record file ignores flush requests once closed.
+ */
+final class WriteBehind
+    implements Runnable
+{
+
+    /**
+     * The record file whose dirty blocks are written.
+     */
+    private final RecordFile _file;
+
+
+    /**
+     * The writer thread, or null if not started.
+     */
+    private Thread _thread;
+
+
+    /**
+     * True if the record file asked for a flush since the last one.
+     */
+    private boolean _requested;
+
+
+    /**
+     * True once closed.
+     */
+    private boolean _closed;
+
+
+    /**
+     * Constructs a writer for the indicated record file.
+     */
+    WriteBehind( RecordFile file )
+    {
+        _file = file;
+    }
+
+
+    /**
+     * Asks for dirty blocks to be flushed, starting the writer thread
+     * if needed.
+     */
+    synchronized void wake()
+    {
+        if ( _closed )
+        {
+            return;
+        }
+        _requested = true;
+        if ( _thread == null )
+        {
+            _thread = new Thread( this, "JDBM write-behind" );
+            _thread.setDaemon( true );
+            _thread.start();
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * Stops the writer thread once it is done with its current batch.
+     */
+    synchronized void close()
+    {
+        _closed = true;
+        notifyAll();
+    }
+
+
+    /**
+     * Flushes dirty blocks when asked to, until closed.
+     */
+    public void run()
+    {
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                while ( !_closed && !_requested )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException except )
+                    {
+                        // keep going until closed.
+                    }
+                }
+                if ( _closed )
+                {
+                    return;
+                }
+                _requested = false;
+            }
+
+            try
+            {
+                while ( _file.flushOldest() )
+                {
+                    // next batch
+                }
+            }
+            catch ( IOException except )
+            {
+                _file.writeBehindFailed( except );
+                return;
+            }
+        }
+    }
+
+}
@@ -36,6 +36,10 @@ public class Test extends TestCase
     {
         TestSuite retval = new TestSuite();
         retval.addTest( new TestSuite( TestBlockIo.class ) );
+        retval.addTest( new TestSuite( TestBlockCache.class ) );
+        retval.addTest( new TestSuite( TestBlockDevice.class ) );
+        retval.addTest( new TestSuite( TestBlockPrefetcher.class ) );
+        retval.addTest( new TestSuite( TestLatch.class ) );
         retval.addTest( new TestSuite( TestLocation.class ) );
         retval.addTest( new TestSuite( TestFileHeader.class ) );
         retval.addTest( new TestSuite( TestPhysicalRowId.class ) );
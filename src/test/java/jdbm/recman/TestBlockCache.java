@@ -0,0 +1,117 @@
+/*
+ *  $Id$
+ *
+ *  Unit tests for BlockCache class
+ *
+ *  Simple db toolkit
+ *  Copyright (C) 1999, 2000 Cees de Groot <cg@cdegroot.com>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public License 
+ *  along with this library; if not, write to the Free Software Foundation, 
+ *  Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+package jdbm.recman;
+
+import junit.framework.*;
+
+/**
+ * This class contains all Unit tests for {@link BlockCache}.
+ */
+public class TestBlockCache extends TestCase
+{
+
+    public TestBlockCache( String name )
+    {
+        super( name );
+    }
+
+
+    /**
+     * Test lookup and removal by block id
+     */
+    public void testLookup()
+    {
+        BlockCache cache = new BlockCache( 10 );
+        BlockIo block = new BlockIo( 5, new byte[RecordFile.BLOCK_SIZE] );
+
+        assertNull( "put", cache.put( block ) );
+        assertEquals( "size", 1, cache.size() );
+        assertNull( "missing", cache.remove( 6 ) );
+        assertSame( "found", block, cache.remove( 5 ) );
+        assertNull( "removed", cache.remove( 5 ) );
+        assertEquals( "empty", 0, cache.size() );
+    }
+
+
+    /**
+     * Test that the least recently used block is evicted first
+     */
+    public void testEviction()
+    {
+        BlockCache cache = new BlockCache( 3 );
+        BlockIo[] blocks = new BlockIo[4];
+        for ( int i = 0; i < blocks.length; i++ )
+        {
+            blocks[i] = new BlockIo( i, new byte[RecordFile.BLOCK_SIZE] );
+        }
+
+        cache.put( blocks[0] );
+        cache.put( blocks[1] );
+        cache.put( blocks[2] );
+        assertTrue( "full", cache.isFull() );
+
+        // touch block 0 so that block 1 becomes the eldest
+        cache.put( cache.remove( 0 ) );
+
+        assertSame( "evicted", blocks[1], cache.put( blocks[3] ) );
+        assertEquals( "size", 3, cache.size() );
+        assertNull( "gone", cache.remove( 1 ) );
+        assertSame( "eldest", blocks[2], cache.evict() );
+    }
+
+
+    /**
+     * Test shrinking the cache
+     */
+    public void testResize()
+    {
+        BlockCache cache = new BlockCache( 4 );
+        for ( int i = 0; i < 4; i++ )
+        {
+            cache.put( new BlockIo( i, new byte[RecordFile.BLOCK_SIZE] ) );
+        }
+        cache.setMaximumSize( 2 );
+        assertEquals( "size", 2, cache.size() );
+        assertNull( "evicted", cache.remove( 0 ) );
+        assertNotNull( "kept", cache.remove( 3 ) );
+
+        try
+        {
+            cache.setMaximumSize( 0 );
+            fail( "expected exception" );
+        }
+        catch ( IllegalArgumentException except )
+        {
+            // ignore
+        }
+    }
+
+
+    /**
+     * Runs all tests in this class
+     */
+    public static void main( String[] args )
+    {
+        junit.textui.TestRunner.run( new TestSuite( TestBlockCache.class ) );
+    }
+}
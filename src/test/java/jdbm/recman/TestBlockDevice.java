@@ -0,0 +1,283 @@
+/*
+ *  $Id$
+ *
+ *  Unit tests for BlockDevice implementations
+ *
+ *  Simple db toolkit
+ *  Copyright (C) 1999, 2000 Cees de Groot <cg@cdegroot.com>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public License 
+ *  along with this library; if not, write to the Free Software Foundation, 
+ *  Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+package jdbm.recman;
+
+import junit.framework.*;
+
+import java.io.File;
+
+import jdbm.RecordManagerOptions;
+
+/**
+ * This class contains all Unit tests for the {@link BlockDevice}
+ * implementations.
+ */
+public class TestBlockDevice extends TestCase
+{
+
+    static final String[] FILE_DEVICES = {
+        RecordManagerOptions.FILE_DEVICE,
+        RecordManagerOptions.CHANNEL_DEVICE,
+        RecordManagerOptions.MAPPED_DEVICE,
+        RandomAccessFileDevice.class.getName()
+    };
+
+    final static String deviceFileName = TestRecordFile.testFileName
+        + RecordFile.extension;
+
+    public TestBlockDevice( String name )
+    {
+        super( name );
+    }
+
+    public void setUp()
+    {
+        TestRecordFile.deleteTestFile();
+    }
+
+    public void tearDown()
+    {
+        TestRecordFile.deleteTestFile();
+    }
+
+
+    /**
+     * Test block reads and writes on all devices
+     */
+    public void testReadWrite()
+        throws Exception
+    {
+        checkReadWrite( new MemoryDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+        checkReadWrite( new RandomAccessFileDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+        TestRecordFile.deleteTestFile();
+        checkReadWrite( new FileChannelDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+        TestRecordFile.deleteTestFile();
+        checkReadWrite( new MappedDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+    }
+
+
+    /**
+     * Test batches mixing long runs of adjacent blocks, gaps and
+     * blocks out of order
+     */
+    public void testBatch()
+        throws Exception
+    {
+        checkBatch( new MemoryDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+        checkBatch( new RandomAccessFileDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+        TestRecordFile.deleteTestFile();
+        checkBatch( new FileChannelDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+        TestRecordFile.deleteTestFile();
+        checkBatch( new MappedDevice( deviceFileName, RecordFile.BLOCK_SIZE ) );
+    }
+
+
+    /**
+     * Test that data written through a record file survives reopening
+     * it, whatever file based device is used.
+     */
+    public void testRecordFile()
+        throws Exception
+    {
+        for ( int i = 0; i < FILE_DEVICES.length; i++ )
+        {
+            TestRecordFile.deleteTestFile();
+
+            RecordFile file = new RecordFile( TestRecordFile.testFileName, FILE_DEVICES[i] );
+            for ( int block = 0; block < 5; block++ )
+            {
+                file.get( block ).writeInt( 100, block );
+                file.release( block, true );
+            }
+            file.commit();
+            file.close();
+
+            assertEquals( FILE_DEVICES[i] + " length", 5 * RecordFile.BLOCK_SIZE,
+                          new File( deviceFileName ).length() );
+
+            file = new RecordFile( TestRecordFile.testFileName, FILE_DEVICES[i] );
+            for ( int block = 0; block < 5; block++ )
+            {
+                assertEquals( FILE_DEVICES[i], block, file.get( block ).readInt( 100 ) );
+                file.release( block, false );
+            }
+            file.close();
+        }
+    }
+
+
+    /**
+     * Test that a mapped file that wasn't closed loses the padding of
+     * its last segment when opened again.
+     */
+    public void testMappedPadding()
+        throws Exception
+    {
+        MappedDevice device = new MappedDevice( deviceFileName, RecordFile.BLOCK_SIZE );
+        byte[] buffer = new byte[RecordFile.BLOCK_SIZE];
+        buffer[0] = 1;
+        device.write( 0, buffer );
+        device.write( 2, buffer );
+        device.sync();
+        assertEquals( "padded", MappedDevice.SEGMENT_SIZE, new File( deviceFileName ).length() );
+
+        // as after a crash
+        device = new MappedDevice( deviceFileName, RecordFile.BLOCK_SIZE );
+        assertEquals( "trimmed", 3 * RecordFile.BLOCK_SIZE, device.length() );
+        assertTrue( "read 2", device.read( 2, buffer ) );
+        assertEquals( "block 2", 1, buffer[0] );
+        assertFalse( "beyond end", device.read( 3, buffer ) );
+        device.close();
+        assertEquals( "truncated", 3 * RecordFile.BLOCK_SIZE, new File( deviceFileName ).length() );
+    }
+
+
+    /**
+     * Test a record file kept in memory
+     */
+    public void testMemoryRecordFile()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( TestRecordFile.testFileName,
+                                          RecordManagerOptions.MEMORY_DEVICE );
+        assertNull( "no log", file.txnMgr );
+
+        file.get( 1 ).writeInt( 0, 42 );
+        file.release( 1, true );
+        file.commit();
+
+        file.get( 1 ).writeInt( 0, 43 );
+        file.release( 1, true );
+        file.rollback();
+
+        assertEquals( "committed", 42, file.get( 1 ).readInt( 0 ) );
+        file.release( 1, false );
+        file.close();
+
+        assertFalse( "no data file", new File( deviceFileName ).exists() );
+        assertFalse( "no log file", new File( TestRecordFile.testFileName
+            + TransactionManager.manifestExtension ).exists() );
+    }
+
+
+    /**
+     * Test an invalid device type
+     */
+    public void testInvalidDevice()
+        throws Exception
+    {
+        try
+        {
+            new RecordFile( TestRecordFile.testFileName, "no.such.Device" );
+            fail( "expected exception" );
+        }
+        catch ( IllegalArgumentException except )
+        {
+            // ignore
+        }
+    }
+
+
+    private void checkBatch( BlockDevice device )
+        throws Exception
+    {
+        String name = device.getClass().getName();
+
+        // 200 adjacent blocks, a gap, then two blocks in reverse order
+        int count = 202;
+        long[] blockids = new long[count];
+        byte[][] buffers = new byte[count][RecordFile.BLOCK_SIZE];
+        for ( int i = 0; i < 200; i++ )
+        {
+            blockids[i] = i;
+        }
+        blockids[200] = 211;
+        blockids[201] = 210;
+        for ( int i = 0; i < count; i++ )
+        {
+            buffers[i][0] = (byte) blockids[i];
+            buffers[i][RecordFile.BLOCK_SIZE - 1] = (byte) blockids[i];
+        }
+        device.write( blockids, buffers, count );
+
+        byte[] buffer = new byte[RecordFile.BLOCK_SIZE];
+        for ( int i = 0; i < count; i++ )
+        {
+            assertTrue( name + " read " + blockids[i], device.read( blockids[i], buffer ) );
+            assertEquals( name + " first " + blockids[i], (byte) blockids[i], buffer[0] );
+            assertEquals( name + " last " + blockids[i], (byte) blockids[i],
+                          buffer[RecordFile.BLOCK_SIZE - 1] );
+        }
+        buffer = new byte[RecordFile.BLOCK_SIZE];
+        device.read( 205, buffer );
+        assertEquals( name + " gap", 0, buffer[0] );
+        assertEquals( name + " length", 212L * RecordFile.BLOCK_SIZE, device.length() );
+
+        device.close();
+    }
+
+
+    private void checkReadWrite( BlockDevice device )
+        throws Exception
+    {
+        String name = device.getClass().getName();
+        byte[] buffer = new byte[RecordFile.BLOCK_SIZE];
+
+        assertEquals( name + " empty", 0, device.length() );
+        assertFalse( name + " read empty", device.read( 3, buffer ) );
+
+        buffer[0] = 1;
+        device.write( 0, buffer );
+        byte[][] batch = new byte[2][RecordFile.BLOCK_SIZE];
+        batch[0][0] = 2;
+        batch[1][0] = 3;
+        device.write( new long[] { 2, 1 }, batch, 2 );
+        device.sync();
+        assertEquals( name + " length", 3 * RecordFile.BLOCK_SIZE, device.length() );
+
+        assertTrue( name + " read 0", device.read( 0, buffer ) );
+        assertEquals( name + " block 0", 1, buffer[0] );
+        assertTrue( name + " read 1", device.read( 1, buffer ) );
+        assertEquals( name + " block 1", 3, buffer[0] );
+        assertTrue( name + " read 2", device.read( 2, buffer ) );
+        assertEquals( name + " block 2", 2, buffer[0] );
+        assertFalse( name + " beyond end", device.read( 10, buffer ) );
+
+        device.truncate( 2 );
+        assertEquals( name + " truncated", 2 * RecordFile.BLOCK_SIZE, device.length() );
+        assertFalse( name + " read truncated", device.read( 2, buffer ) );
+        device.truncate( 5 );
+        assertEquals( name + " not extended", 2 * RecordFile.BLOCK_SIZE, device.length() );
+
+        device.close();
+    }
+
+
+    /**
+     * Runs all tests in this class
+     */
+    public static void main( String[] args )
+    {
+        junit.textui.TestRunner.run( new TestSuite( TestBlockDevice.class ) );
+    }
+}
@@ -78,6 +78,95 @@ public class TestBlockIo extends TestCase
         assertEquals( "int", INT_VALUE, test.readInt( 10 ) );
     }
 
+    /**
+     * Test a block kept off the heap, in a slice of a direct buffer
+     */
+    public void testOffHeap() throws Exception
+    {
+        BlockArena arena = new BlockArena( 1024 );
+        BlockIo test = new BlockIo( 0, arena.allocate() );
+        assertFalse( "off heap", test.hasArray() );
+        assertEquals( "size", 1024, test.getSize() );
+
+        test.writeShort( 0, SHORT_VALUE );
+        test.writeLong( 2, LONG_VALUE );
+        test.writeInt( 10, INT_VALUE );
+        test.writeBytes( 1020, new byte[] { 1, 2, 3, 4 }, 0, 4 );
+
+        byte[] data = new byte[1024];
+        test.copyTo( data );
+        DataInputStream is =
+            new DataInputStream( new ByteArrayInputStream( data ) );
+        assertEquals( "short", SHORT_VALUE, is.readShort() );
+        assertEquals( "long", LONG_VALUE, is.readLong() );
+        assertEquals( "int", INT_VALUE, is.readInt() );
+        assertEquals( "bytes", 4, data[1023] );
+
+        byte[] tail = new byte[2];
+        test.readBytes( 1022, tail, 0, 2 );
+        assertEquals( "tail", 3, tail[0] );
+
+        // a neighbouring block of the same chunk is unaffected
+        BlockIo next = new BlockIo( 1, arena.allocate() );
+        assertEquals( "neighbour", 0, next.readLong( 0 ) );
+
+        test.clearData();
+        assertEquals( "cleared", 0, test.readLong( 2 ) );
+
+        next.load( data );
+        assertEquals( "loaded", LONG_VALUE, next.readLong( 2 ) );
+
+        // released buffers are reused, zeroed
+        arena.release( next.getBuffer() );
+        assertEquals( "free", 1, arena.getFreeCount() );
+        assertEquals( "reused", 0, new BlockIo( 2, arena.allocate() ).readLong( 2 ) );
+        assertEquals( "free", 0, arena.getFreeCount() );
+        assertEquals( "one chunk", BlockArena.CHUNK_SIZE, arena.getAllocatedSize() );
+    }
+
+    /**
+     * Test tracking of modified ranges
+     */
+    public void testModifiedRanges() throws Exception
+    {
+        BlockIo test = new BlockIo( 0, new byte[1024] );
+        assertEquals( "clean", 0, test.getModifiedRanges().length );
+
+        test.writeInt( 100, INT_VALUE );
+        test.writeShort( 10, SHORT_VALUE );
+        // close enough to the first range to be merged into it
+        test.writeLong( 106, LONG_VALUE );
+        assertTrue( "dirty", test.isDirty() );
+        int[] ranges = test.getModifiedRanges();
+        assertEquals( "count", 4, ranges.length );
+        assertEquals( "start 1", 10, ranges[0] );
+        assertEquals( "end 1", 12, ranges[1] );
+        assertEquals( "start 2", 100, ranges[2] );
+        assertEquals( "end 2", 114, ranges[3] );
+
+        // too many ranges collapse into one
+        for ( int i = 0; i < BlockIo.MAX_RANGES - 1; i++ )
+        {
+            test.writeByte( 200 + 100 * i, (byte) 1 );
+        }
+        ranges = test.getModifiedRanges();
+        assertEquals( "collapsed", 2, ranges.length );
+        assertEquals( "collapsed start", 10, ranges[0] );
+        assertEquals( "collapsed end", 200 + 100 * ( BlockIo.MAX_RANGES - 2 ) + 1,
+                      ranges[1] );
+
+        test.setClean();
+        assertEquals( "reset", 0, test.getModifiedRanges().length );
+
+        // changes made without the write methods cover the whole block
+        test.clearData();
+        assertNull( "cleared", test.getModifiedRanges() );
+        test.load( new byte[1024] );
+        assertEquals( "loaded", 0, test.getModifiedRanges().length );
+        test.setDirty();
+        assertNull( "set dirty", test.getModifiedRanges() );
+    }
+
     /**
      * Runs all tests in this class
      */
@@ -0,0 +1,154 @@
+/*
+ *  $Id$
+ *
+ *  Unit tests for BlockPrefetcher class
+ *
+ *  Simple db toolkit
+ *  Copyright (C) 1999, 2000 Cees de Groot <cg@cdegroot.com>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public License 
+ *  along with this library; if not, write to the Free Software Foundation, 
+ *  Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+package jdbm.recman;
+
+import junit.framework.*;
+
+/**
+ * This class contains all Unit tests for {@link BlockPrefetcher}.
+ */
+public class TestBlockPrefetcher extends TestCase
+{
+
+    final static int SIZE = RecordFile.BLOCK_SIZE;
+
+    public TestBlockPrefetcher( String name )
+    {
+        super( name );
+    }
+
+
+    /**
+     * Waits until the prefetcher has staged the indicated number of
+     * blocks.
+     */
+    private static void waitFor( BlockPrefetcher prefetcher, int staged )
+        throws InterruptedException
+    {
+        for ( int i = 0; i < 500 && prefetcher.size() < staged; i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( "staged", staged, prefetcher.size() );
+    }
+
+
+    /**
+     * Returns a device holding blocks 0 to count - 1, each filled with
+     * its block id.
+     */
+    private static BlockDevice makeDevice( int count )
+        throws Exception
+    {
+        BlockDevice device = new MemoryDevice( "test", SIZE );
+        for ( int i = 0; i < count; i++ )
+        {
+            byte[] data = new byte[ SIZE ];
+            java.util.Arrays.fill( data, (byte) i );
+            device.write( i, data );
+        }
+        return device;
+    }
+
+
+    /**
+     * Test that hinted blocks are read and can be taken once
+     */
+    public void testHintAndTake()
+        throws Exception
+    {
+        BlockPrefetcher prefetcher = new BlockPrefetcher( makeDevice( 4 ), SIZE, 8 );
+        prefetcher.hint( 1 );
+        prefetcher.hint( 3 );
+        waitFor( prefetcher, 2 );
+
+        byte[] data = prefetcher.take( 3 );
+        assertNotNull( "staged", data );
+        assertEquals( "contents", 3, data[SIZE - 1] );
+        assertNull( "taken", prefetcher.take( 3 ) );
+        assertNull( "never hinted", prefetcher.take( 2 ) );
+        assertEquals( "left", 1, prefetcher.size() );
+
+        // blocks beyond the end of the device are not staged
+        prefetcher.hint( 10 );
+        prefetcher.hint( 0 );
+        waitFor( prefetcher, 2 );
+        assertNull( "beyond end", prefetcher.take( 10 ) );
+        prefetcher.close();
+    }
+
+
+    /**
+     * Test that written blocks are no longer served
+     */
+    public void testInvalidate()
+        throws Exception
+    {
+        BlockDevice device = makeDevice( 4 );
+        BlockPrefetcher prefetcher = new BlockPrefetcher( device, SIZE, 8 );
+        prefetcher.hint( 2 );
+        waitFor( prefetcher, 1 );
+
+        device.write( 2, new byte[ SIZE ] );
+        prefetcher.invalidate( 2 );
+        assertNull( "invalidated", prefetcher.take( 2 ) );
+        prefetcher.close();
+    }
+
+
+    /**
+     * Test that the number of staged blocks is bounded
+     */
+    public void testBound()
+        throws Exception
+    {
+        BlockPrefetcher prefetcher = new BlockPrefetcher( makeDevice( 8 ), SIZE, 2 );
+        prefetcher.hint( 0 );
+        prefetcher.hint( 1 );
+        waitFor( prefetcher, 2 );
+
+        // the oldest staged block makes room for a new hint
+        prefetcher.hint( 2 );
+        waitFor( prefetcher, 2 );
+        assertNull( "dropped", prefetcher.take( 0 ) );
+        assertNotNull( "kept", prefetcher.take( 1 ) );
+        assertNotNull( "read", prefetcher.take( 2 ) );
+
+        prefetcher.setMaximumSize( 1 );
+        assertEquals( "maximum", 1, prefetcher.getMaximumSize() );
+        prefetcher.close();
+
+        // hints after close are ignored
+        prefetcher.hint( 5 );
+        assertNull( "closed", prefetcher.take( 5 ) );
+    }
+
+
+    /**
+     * Runs all tests in this class
+     */
+    public static void main( String[] args )
+    {
+        junit.textui.TestRunner.run( new TestSuite( TestBlockPrefetcher.class ) );
+    }
+}
@@ -63,18 +63,75 @@ public class TestFileHeader extends TestCase
     {
         BlockIo b = new BlockIo( 0, new byte[RecordFile.BLOCK_SIZE] );
         FileHeader f = new FileHeader( b, true );
-        for ( int i = 0; i < FileHeader.NROOTS; i++ )
+        assertEquals( "roots", 1012, f.getRootCount() );
+        for ( int i = 0; i < f.getRootCount(); i++ )
         {
             f.setRoot( i, 100 * i );
         }
 
         f = new FileHeader( b, false );
-        for ( int i = 0; i < FileHeader.NROOTS; i++ )
+        for ( int i = 0; i < f.getRootCount(); i++ )
         {
             assertEquals( "root " + i, i * 100, f.getRoot( i ) );
         }
     }
 
+    /**
+     * Test the block size recorded in the header, and headers of files
+     * created before it was recorded
+     */
+    public void testBlockSize() throws Exception
+    {
+        BlockIo b = new BlockIo( 0, new byte[4096] );
+        FileHeader f = new FileHeader( b, true );
+        assertEquals( "new", 4096, FileHeader.getBlockSize( b ) );
+        assertEquals( "roots", ( 4096 - 90 ) / 8, f.getRootCount() );
+        assertEquals( "flags", 0, f.getFlags() );
+        f.setRoot( 0, 42 );
+        assertEquals( "root", 42, new FileHeader( b, false ).getRoot( 0 ) );
+
+        // old style header, always of the default block size
+        b = new BlockIo( 0, new byte[RecordFile.BLOCK_SIZE] );
+        b.writeShort( 0, Magic.FILE_HEADER );
+        b.writeLong( 2, 1234 );
+        f = new FileHeader( b, false );
+        assertEquals( "old", RecordFile.BLOCK_SIZE, FileHeader.getBlockSize( b ) );
+        assertEquals( "old list", 1234, f.getFirstOf( 0 ) );
+        assertEquals( "old roots", ( RecordFile.BLOCK_SIZE - 82 ) / 8, f.getRootCount() );
+        assertEquals( "old flags", 0, FileHeader.getFlags( b ) );
+
+        // header not matching the block it's read from
+        b = new BlockIo( 0, new byte[2048] );
+        new FileHeader( b, true );
+        byte[] larger = new byte[4096];
+        System.arraycopy( b.getData(), 0, larger, 0, 2048 );
+        try
+        {
+            new FileHeader( new BlockIo( 0, larger ), false );
+            fail( "expected error" );
+        }
+        catch ( Error except )
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test the flags of a header whose block reserves a trailer
+     */
+    public void testFlags() throws Exception
+    {
+        BlockIo b = new BlockIo( 0, new byte[4096] );
+        b.reserveTrailer( RecordFile.CHECKSUM_SIZE );
+        FileHeader f = new FileHeader( b, true, FileHeader.FLAG_CHECKSUMS );
+        assertEquals( "size", 4096, FileHeader.getBlockSize( b ) );
+        assertEquals( "flags", FileHeader.FLAG_CHECKSUMS, FileHeader.getFlags( b ) );
+        assertEquals( "roots", ( 4092 - 90 ) / 8, f.getRootCount() );
+
+        f = new FileHeader( b, false, 0 );
+        assertEquals( "existing", FileHeader.FLAG_CHECKSUMS, f.getFlags() );
+    }
+
     /**
      * Runs all tests in this class
      */
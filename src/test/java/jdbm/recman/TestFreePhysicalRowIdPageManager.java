@@ -78,6 +78,108 @@ public class TestFreePhysicalRowIdPageManager extends TestCase
     }
 
 
+    /**
+     * Test that rowids are taken from the best fit of their size
+     * class, or else from a larger class.
+     */
+    public void testSizeClasses() throws Exception
+    {
+        assertEquals( "smallest", 0, FreePhysicalRowIdPageManager.sizeClass( 1 ) );
+        assertEquals( "below second", 0, FreePhysicalRowIdPageManager.sizeClass( 127 ) );
+        assertEquals( "second", 1, FreePhysicalRowIdPageManager.sizeClass( 128 ) );
+        assertEquals( "largest", Magic.NSIZE_CLASSES - 1,
+                      FreePhysicalRowIdPageManager.sizeClass( Integer.MAX_VALUE ) );
+
+        RecordFile f = new RecordFile( TestRecordFile.testFileName );
+        PageManager pm = new PageManager( f );
+        assertTrue( "size classes", pm.getFileHeader().hasSizeClasses() );
+        FreePhysicalRowIdPageManager freeMgr =
+            new FreePhysicalRowIdPageManager( f, pm );
+
+        freeMgr.put( new Location( 1, (short) 10 ), 1000 );
+        freeMgr.put( new Location( 2, (short) 20 ), 600 );
+        freeMgr.put( new Location( 3, (short) 30 ), 700 );
+        freeMgr.put( new Location( 4, (short) 40 ), 100 );
+
+        assertEquals( "best fit", 3, freeMgr.get( 650 ).getBlock() );
+        assertEquals( "larger class", 2, freeMgr.get( 200 ).getBlock() );
+        assertEquals( "same class", 1, freeMgr.get( 550 ).getBlock() );
+        assertNull( "too large", freeMgr.get( 150 ) );
+        assertEquals( "smallest class", 4, freeMgr.get( 50 ).getBlock() );
+        assertEquals( "list emptied", 0,
+                      pm.getFirst( (short) ( Magic.FREEPHYSIDS_CLASS_PAGE
+                                             + FreePhysicalRowIdPageManager.sizeClass( 100 ) ) ) );
+
+        pm.close();
+        f.close();
+    }
+
+    /**
+     * Test the single list of files without size classes.
+     */
+    public void testSingleList() throws Exception
+    {
+        RecordFile f = new RecordFile( TestRecordFile.testFileName );
+        BlockIo block = f.get( 0 );
+        new FileHeader( block, true, 0 );
+        f.release( block );
+        PageManager pm = new PageManager( f );
+        assertFalse( "size classes", pm.getFileHeader().hasSizeClasses() );
+        FreePhysicalRowIdPageManager freeMgr =
+            new FreePhysicalRowIdPageManager( f, pm );
+
+        freeMgr.put( new Location( 1, (short) 10 ), 1000 );
+        freeMgr.put( new Location( 2, (short) 20 ), 600 );
+        assertTrue( "single list", pm.getFirst( Magic.FREEPHYSIDS_PAGE ) != 0 );
+        assertEquals( "best fit", 2, freeMgr.get( 500 ).getBlock() );
+        assertEquals( "remaining", 1, freeMgr.get( 500 ).getBlock() );
+        assertNull( "empty", freeMgr.get( 500 ) );
+
+        pm.close();
+        f.close();
+    }
+
+    /**
+     * Test that free rowids kept in memory are written to the lists
+     * when flushed, and read back from them once discarded.
+     */
+    public void testInMemory() throws Exception
+    {
+        RecordFile f = new RecordFile( TestRecordFile.testFileName );
+        PageManager pm = new PageManager( f );
+        FreePhysicalRowIdPageManager freeMgr =
+            new FreePhysicalRowIdPageManager( f, pm );
+        freeMgr.put( new Location( 1, (short) 10 ), 1000 );
+        freeMgr.put( new Location( 2, (short) 20 ), 600 );
+        freeMgr.put( new Location( 3, (short) 30 ), 100 );
+
+        FreePhysicalRowIdPageManager memMgr =
+            new FreePhysicalRowIdPageManager( f, pm );
+        memMgr.setInMemory( true );
+        assertEquals( "best fit", 2, memMgr.get( 500 ).getBlock() );
+        memMgr.put( new Location( 4, (short) 40 ), 550 );
+        memMgr.put( new Location( 5, (short) 50 ), 200 );
+        assertEquals( "put in memory", 5, memMgr.get( 150 ).getBlock() );
+
+        // the lists don't change until flushed
+        assertEquals( "not flushed", 2, freeMgr.get( 500 ).getBlock() );
+        freeMgr.put( new Location( 2, (short) 20 ), 600 );
+        memMgr.flush();
+        assertEquals( "flushed", 4, freeMgr.get( 500 ).getBlock() );
+        assertEquals( "remaining", 1, freeMgr.get( 500 ).getBlock() );
+        assertNull( "taken", freeMgr.get( 150 ) );
+
+        // read again from the lists
+        memMgr.discard();
+        assertEquals( "discarded", 3, memMgr.get( 50 ).getBlock() );
+        assertNull( "reloaded", memMgr.get( 50 ) );
+        memMgr.setInMemory( false );
+        assertNull( "written back", freeMgr.get( 50 ) );
+
+        pm.close();
+        f.close();
+    }
+
     /**
      * Runs all tests in this class
      */
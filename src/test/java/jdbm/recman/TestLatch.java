@@ -0,0 +1,165 @@
+/*
+ *  $Id$
+ *
+ *  Unit tests for Latch class
+ *
+ *  Simple db toolkit
+ *  Copyright (C) 1999, 2000 Cees de Groot <cg@cdegroot.com>
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public License 
+ *  along with this library; if not, write to the Free Software Foundation, 
+ *  Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ */
+package jdbm.recman;
+
+import junit.framework.*;
+
+/**
+ * This class contains all Unit tests for {@link Latch}.
+ */
+public class TestLatch extends TestCase
+{
+
+    public TestLatch( String name )
+    {
+        super( name );
+    }
+
+
+    /**
+     * Thread taking a latch in the indicated mode, then letting go.
+     */
+    static class Taker extends Thread
+    {
+        final Latch latch;
+        final boolean shared;
+        volatile boolean acquired;
+
+        Taker( Latch latch, boolean shared )
+        {
+            this.latch = latch;
+            this.shared = shared;
+            setDaemon( true );
+        }
+
+        public void run()
+        {
+            if ( shared )
+                latch.lockShared();
+            else
+                latch.lockExclusive();
+            acquired = true;
+            latch.unlock();
+        }
+    }
+
+
+    /**
+     * Test that shared holders don't exclude each other, but exclude
+     * an exclusive holder
+     */
+    public void testShared()
+        throws Exception
+    {
+        Latch latch = new Latch();
+        latch.lockShared();
+
+        Taker reader = new Taker( latch, true );
+        reader.start();
+        reader.join( 5000 );
+        assertTrue( "reader", reader.acquired );
+
+        Taker writer = new Taker( latch, false );
+        writer.start();
+        writer.join( 200 );
+        assertFalse( "writer waits", writer.acquired );
+
+        latch.unlock();
+        writer.join( 5000 );
+        assertTrue( "writer", writer.acquired );
+        assertFalse( "free", latch.isLocked() );
+    }
+
+
+    /**
+     * Test reentrancy of the exclusive holder, and downgrading
+     */
+    public void testExclusive()
+        throws Exception
+    {
+        Latch latch = new Latch();
+        latch.lockExclusive();
+        latch.lockExclusive();
+        latch.lockShared();
+        assertTrue( "held", latch.isHeldExclusively() );
+
+        Taker reader = new Taker( latch, true );
+        reader.start();
+        latch.unlock();
+        latch.unlock();
+        reader.join( 200 );
+        assertFalse( "reader waits", reader.acquired );
+
+        latch.downgrade();
+        assertFalse( "downgraded", latch.isHeldExclusively() );
+        reader.join( 5000 );
+        assertTrue( "reader", reader.acquired );
+
+        latch.unlock();
+        assertFalse( "free", latch.isLocked() );
+        try
+        {
+            latch.unlock();
+            fail( "expected IllegalStateException" );
+        }
+        catch ( IllegalStateException except )
+        {
+            // expected
+        }
+    }
+
+
+    /**
+     * Test that a waiting writer holds off new readers, if preferred
+     */
+    public void testPreferWriters()
+        throws Exception
+    {
+        Latch latch = new Latch( true );
+        latch.lockShared();
+
+        Taker writer = new Taker( latch, false );
+        writer.start();
+        Thread.sleep( 100 );
+
+        Taker reader = new Taker( latch, true );
+        reader.start();
+        reader.join( 200 );
+        assertFalse( "reader waits", reader.acquired );
+
+        latch.unlock();
+        writer.join( 5000 );
+        reader.join( 5000 );
+        assertTrue( "writer", writer.acquired );
+        assertTrue( "reader", reader.acquired );
+    }
+
+
+    /**
+     * Runs all tests in this class
+     */
+    public static void main( String[] args )
+    {
+        junit.textui.TestRunner.run( new TestSuite( TestLatch.class ) );
+    }
+}
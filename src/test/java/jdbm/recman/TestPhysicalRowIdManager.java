@@ -44,6 +44,8 @@
 
 package jdbm.recman;
 
+import jdbm.RecordManagerOptions;
+
 import junit.framework.*;
 
 
@@ -164,6 +166,198 @@ public class TestPhysicalRowIdManager extends TestCase
     }
 
 
+    /**
+     * Test that adjacent free rowids are coalesced, and that free space
+     * at the end goes back to the end.
+     */
+
+    public void testCoalesce() throws Exception
+    {
+
+        RecordFile f = new RecordFile( TestRecordFile.testFileName );
+
+        PageManager pm = new PageManager( f );
+
+        PhysicalRowIdManager physMgr = new PhysicalRowIdManager( f, pm );
+
+        byte[] data = TestUtil.makeRecord( 1000, (byte) 1 );
+
+        Location loc1 = physMgr.insert( data, 0, data.length );
+
+        Location loc2 = physMgr.insert( data, 0, data.length );
+
+        Location loc3 = physMgr.insert( data, 0, data.length );
+
+        data = TestUtil.makeRecord( 20, (byte) 2 );
+
+        Location loc4 = physMgr.insert( data, 0, data.length );
+
+        // free the three first records, the middle one last
+
+        physMgr.delete( loc1 );
+
+        physMgr.delete( loc3 );
+
+        physMgr.delete( loc2 );
+
+        // they make room for one three times as large
+
+        data = TestUtil.makeRecord( 3000, (byte) 3 );
+
+        Location loc5 = physMgr.insert( data, 0, data.length );
+
+        assertEquals( "coalesced", loc1, loc5 );
+
+        assertTrue( "check data5",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc5 ), 3000, (byte) 3 ) );
+
+        assertTrue( "check data4",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc4 ), 20, (byte) 2 ) );
+
+        // the last record goes back to the end, and is taken again
+
+        physMgr.delete( loc4 );
+
+        data = TestUtil.makeRecord( 30, (byte) 4 );
+
+        Location loc6 = physMgr.insert( data, 0, data.length );
+
+        assertEquals( "back to the end", loc4, loc6 );
+
+        assertTrue( "check data6",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc6 ), 30, (byte) 4 ) );
+
+        // a small record splits a large free one
+
+        physMgr.delete( loc5 );
+
+        data = TestUtil.makeRecord( 10, (byte) 5 );
+
+        Location loc7 = physMgr.insert( data, 0, data.length );
+
+        assertEquals( "split", loc1, loc7 );
+
+        data = TestUtil.makeRecord( 2000, (byte) 6 );
+
+        Location loc8 = physMgr.insert( data, 0, data.length );
+
+        assertEquals( "rest of split", loc1.getBlock(), loc8.getBlock() );
+
+        assertTrue( "check data7",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc7 ), 10, (byte) 5 ) );
+
+        assertTrue( "check data8",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc8 ), 2000, (byte) 6 ) );
+
+        assertTrue( "check data6",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc6 ), 30, (byte) 4 ) );
+
+
+        f.forceClose();
+
+    }
+
+
+    /**
+     * Test splitting a free rowid right at the end of a page, with small
+     * blocks.
+     */
+
+    public void testSplitAtPageEnd() throws Exception
+    {
+
+        int blockSize = 1024;
+
+        RecordFile f = new RecordFile( TestRecordFile.testFileName,
+
+                                       RecordManagerOptions.FILE_DEVICE, blockSize );
+
+        PageManager pm = new PageManager( f );
+
+        PhysicalRowIdManager physMgr = new PhysicalRowIdManager( f, pm );
+
+        // a record on the first page, one running over to the second page,
+
+        // and a small one after that
+
+        byte[] data = TestUtil.makeRecord( 500, (byte) 1 );
+
+        Location loc1 = physMgr.insert( data, 0, data.length );
+
+        data = TestUtil.makeRecord( 1000, (byte) 2 );
+
+        Location loc2 = physMgr.insert( data, 0, data.length );
+
+        data = TestUtil.makeRecord( 20, (byte) 3 );
+
+        Location loc3 = physMgr.insert( data, 0, data.length );
+
+        long page2 = pm.getNext( loc1.getBlock() );
+
+        assertEquals( "third record on the second page", page2, loc3.getBlock() );
+
+        // free the first two, and take them again with a record ending
+
+        // just short of the end of the first page
+
+        physMgr.delete( loc1 );
+
+        physMgr.delete( loc2 );
+
+        int size = blockSize - loc1.getOffset() - RecordHeader.SIZE - 20;
+
+        data = TestUtil.makeRecord( size, (byte) 4 );
+
+        Location loc4 = physMgr.insert( data, 0, data.length );
+
+        assertEquals( "reused", loc1, loc4 );
+
+        // the rest starts the second page
+
+        DataPage dp = DataPage.getDataPageView( f.get( page2 ) );
+
+        assertEquals( "first rowid of the second page", DataPage.O_DATA, dp.getFirst() );
+
+        f.release( page2, false );
+
+        data = TestUtil.makeRecord( 400, (byte) 5 );
+
+        Location loc5 = physMgr.insert( data, 0, data.length );
+
+        assertEquals( "rest of split", new Location( page2, DataPage.O_DATA ), loc5 );
+
+        // freeing the records around the rest walks the second page
+
+        physMgr.delete( loc3 );
+
+        physMgr.delete( loc4 );
+
+        assertTrue( "check data5",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc5 ), 400, (byte) 5 ) );
+
+        physMgr.delete( loc5 );
+
+        data = TestUtil.makeRecord( 2000, (byte) 6 );
+
+        Location loc6 = physMgr.insert( data, 0, data.length );
+
+        assertTrue( "check data6",
+
+                    TestUtil.checkRecord( physMgr.fetch( loc6 ), 2000, (byte) 6 ) );
+
+
+        f.forceClose();
+
+    }
+
+
     /**
      * Runs all tests in this class
      */
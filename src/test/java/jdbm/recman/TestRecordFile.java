@@ -26,6 +26,9 @@ import junit.framework.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import jdbm.RecordManagerOptions;
 
 /**
  * This class contains all Unit tests for {@link RecordFile}.
@@ -72,6 +75,17 @@ public class TestRecordFile
         deleteFile( testFileName + RecordFile.extension );
 
         deleteFile( testFileName + TransactionManager.extension );
+        deleteFile( testFileName + TransactionManager.manifestExtension );
+
+        // log segments
+        String[] names = new File( "." ).list();
+        for ( int i = 0; i < names.length; i++ )
+        {
+            if ( names[i].startsWith( testFileName + TransactionManager.extension + "." ) )
+            {
+                deleteFile( names[i] );
+            }
+        }
     }
 
     public void setUp()
@@ -157,6 +171,392 @@ public class TestRecordFile
     }
 
 
+    /**
+     * Test that blocks survive eviction from a small cache.
+     */
+    public void testSmallCache()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( testFileName );
+        file.disableTransactions();
+        file.setCacheSize( 2 * RecordFile.BLOCK_SIZE );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            byte[] data = file.get( i ).getData();
+            data[i] = (byte) i;
+            file.release( i, true );
+        }
+        file.commit();
+
+        for ( int i = 9; i >= 0; i-- )
+        {
+            byte[] data = file.get( i ).getData();
+            assertEquals( "block " + i, (byte) i, data[i] );
+            file.release( i, false );
+        }
+        file.close();
+    }
+
+
+    /**
+     * Test that a block may be held shared more than once, and stays
+     * in use until every hold is released.
+     */
+    public void testShared()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( testFileName );
+        BlockIo block = file.get( 2 );
+        block.writeInt( 0, 42 );
+        file.release( block );
+        file.commit();
+
+        BlockIo first = file.getShared( 2 );
+        BlockIo second = file.getShared( 2 );
+        assertSame( "same block", first, second );
+        assertEquals( "contents", 42, second.readInt( 0 ) );
+        file.release( first );
+        assertTrue( "still latched", second.getLatch().isLocked() );
+        file.release( second );
+        assertFalse( "released", second.getLatch().isLocked() );
+
+        // released clean, so it's cached and found again
+        assertSame( "cached", first, file.get( 2 ) );
+        file.release( 2, false );
+        file.close();
+    }
+
+
+    /**
+     * Test that dirty blocks are written behind within their budget.
+     */
+    public void testWriteBehind()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( testFileName );
+        file.disableTransactions();
+        file.setDirtyLimit( 8 * RecordFile.BLOCK_SIZE );
+        assertEquals( "limit", 8 * RecordFile.BLOCK_SIZE, file.getDirtyLimit() );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            BlockIo block = file.get( i );
+            block.writeInt( 0, i );
+            file.release( block );
+            assertTrue( "dirty count " + file.getDirtyCount(),
+                        file.getDirtyCount() <= 8 );
+
+            // update some blocks again, while they may be written
+            if ( i % 10 == 9 )
+            {
+                block = file.get( i - 5 );
+                block.writeInt( 4, i );
+                file.release( block );
+            }
+        }
+        file.commit();
+        assertEquals( "all written", 0, file.getDirtyCount() );
+        file.close();
+
+        file = new RecordFile( testFileName );
+        for ( int i = 0; i < 200; i++ )
+        {
+            BlockIo block = file.get( i );
+            assertEquals( "block " + i, i, block.readInt( 0 ) );
+            if ( i % 10 == 4 )
+            {
+                assertEquals( "updated " + i, i + 5, block.readInt( 4 ) );
+            }
+            file.release( block );
+        }
+        file.close();
+    }
+
+
+    /**
+     * Test that checksums are verified on read, and catch corruption.
+     */
+    public void testChecksums()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( testFileName,
+            RecordManagerOptions.FILE_DEVICE, RecordFile.BLOCK_SIZE, true );
+        assertEquals( "usable", RecordFile.BLOCK_SIZE - RecordFile.CHECKSUM_SIZE,
+                      file.getUsableSize() );
+        for ( int i = 0; i < 4; i++ )
+        {
+            BlockIo block = file.get( i );
+            assertEquals( "view size", file.getUsableSize(), block.getSize() );
+            block.writeInt( block.getSize() - 4, i );
+            file.release( block );
+        }
+        file.commit();
+        file.close();
+
+        // flip a bit in block 2
+        RandomAccessFile raf = new RandomAccessFile( testFileName + RecordFile.extension, "rw" );
+        raf.seek( 2 * RecordFile.BLOCK_SIZE + 100 );
+        raf.write( 1 );
+        raf.close();
+
+        // block 0 has no file header, so ask for checksums again
+        file = new RecordFile( testFileName,
+            RecordManagerOptions.FILE_DEVICE, RecordFile.BLOCK_SIZE, true );
+        file.setPrefetchSize( 0 );
+        BlockIo block = file.get( 3 );
+        assertEquals( "contents", 3, block.readInt( block.getSize() - 4 ) );
+        file.release( block );
+        try
+        {
+            file.get( 2 );
+            fail( "expected IOException" );
+        }
+        catch ( IOException except )
+        {
+            // expected
+        }
+        assertEquals( "verified", 1, file.getVerifiedCount() );
+        assertEquals( "failed", 1, file.getFailedCount() );
+
+        // blocks beyond the end of the file aren't checked
+        file.release( file.get( 10 ) );
+        file.close();
+    }
+
+
+    /**
+     * Test that blocks read ahead never hide later writes.
+     */
+    public void testPrefetch()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( testFileName );
+        file.disableTransactions();
+        file.setCacheSize( RecordFile.BLOCK_SIZE );
+        assertEquals( "default", RecordFile.DEFAULT_PREFETCH_SIZE, file.getPrefetchSize() );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            byte[] data = file.get( i ).getData();
+            data[0] = (byte) i;
+            file.release( i, true );
+        }
+        file.commit();
+
+        file.prefetch( 0, 10 );
+        byte[] data = file.get( 5 ).getData();
+        data[0] = (byte) 55;
+        file.release( 5, true );
+        file.commit();
+
+        // push block 5 out of the cache, then read everything back
+        file.get( 9 );
+        file.release( 9, false );
+        file.prefetch( 0, 10 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            data = file.get( i ).getData();
+            assertEquals( "block " + i, (byte) ( i == 5 ? 55 : i ), data[0] );
+            file.release( i, false );
+        }
+
+        file.setPrefetchSize( 0 );
+        assertEquals( "disabled", 0, file.getPrefetchSize() );
+        file.prefetch( 0, 10 );
+        file.close();
+    }
+
+
+    /**
+     * Test reading and writing through memory mappings.
+     */
+    public void testMemoryMapped()
+        throws Exception
+    {
+        RecordFile file = new RecordFile( testFileName, RecordManagerOptions.MAPPED_DEVICE );
+        byte[] data = file.get( 3 ).getData();
+        data[3] = (byte) 'm';
+        file.release( 3, true );
+        file.close();
+
+        // the mapping must not leave the file extended
+        File dbFile = new File( testFileName + RecordFile.extension );
+        assertEquals( "length", 4 * RecordFile.BLOCK_SIZE, dbFile.length() );
+
+        // read back with plain I/O, then with mappings again
+        file = new RecordFile( testFileName );
+        data = file.get( 3 ).getData();
+        assertEquals( "plain", (byte) 'm', data[3] );
+        file.release( 3, false );
+        file.close();
+
+        file = new RecordFile( testFileName, RecordManagerOptions.MAPPED_DEVICE );
+        data = file.get( 3 ).getData();
+        assertEquals( "mapped", (byte) 'm', data[3] );
+        file.release( 3, false );
+        data = file.get( 7 ).getData();
+        assertEquals( "beyond end", 0, data[7] );
+        file.release( 7, false );
+        file.close();
+    }
+
+
+    /**
+     * Test that a block that fails to be read fails every thread that
+     * waits for it, and isn't kept.
+     */
+    public void testFailedRead()
+        throws Exception
+    {
+        final RecordFile file = new RecordFile( testFileName );
+        BlockIo block = file.get( 5 );
+        block.writeInt( 0, 42 );
+        file.release( block );
+        file.commit();
+        file.close();
+
+        final RecordFile failing = new RecordFile( testFileName,
+                                                   FailingDevice.class.getName() );
+        failing.setPrefetchSize( 0 );
+        FailingDevice.failing = true;
+        FailingDevice.reading = false;
+        final IOException[] failures = new IOException[ 2 ];
+        Thread[] threads = new Thread[ 2 ];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        failing.release( failing.get( 5 ) );
+                    }
+                    catch ( IOException except )
+                    {
+                        failures[n] = except;
+                    }
+                }
+            };
+        }
+        threads[0].start();
+        synchronized ( FailingDevice.class )
+        {
+            while ( !FailingDevice.reading )
+            {
+                FailingDevice.class.wait();
+            }
+        }
+        // waits for the block being read
+        threads[1].start();
+        threads[0].join();
+        threads[1].join();
+        assertNotNull( "reader failed", failures[0] );
+        assertSame( "waiter failed", failures[0], failures[1] );
+
+        // read again
+        block = failing.get( 5 );
+        assertEquals( "contents", 42, block.readInt( 0 ) );
+        failing.release( block );
+        failing.close();
+    }
+
+
+    /**
+     * A device that fails the first read of block 5, after a while,
+     * or the next write, once asked to.
+     */
+    public static class FailingDevice
+        implements BlockDevice
+    {
+        static boolean failing;
+        static boolean reading;
+        static boolean failingWrite;
+
+        private final BlockDevice device;
+
+        public FailingDevice( String fileName, int blockSize )
+            throws IOException
+        {
+            device = new RandomAccessFileDevice( fileName, blockSize );
+        }
+
+        public boolean read( long blockid, byte[] buffer )
+            throws IOException
+        {
+            synchronized ( FailingDevice.class )
+            {
+                if ( blockid != 5 || !failing )
+                {
+                    return device.read( blockid, buffer );
+                }
+                failing = false;
+                reading = true;
+                FailingDevice.class.notifyAll();
+            }
+            try
+            {
+                Thread.sleep( 500 );
+            }
+            catch ( InterruptedException except )
+            {
+                // fail anyway
+            }
+            throw new IOException( "boom" );
+        }
+
+        public void write( long blockid, byte[] buffer )
+            throws IOException
+        {
+            checkWrite();
+            device.write( blockid, buffer );
+        }
+
+        public void write( long[] blockids, byte[][] buffers, int count )
+            throws IOException
+        {
+            checkWrite();
+            device.write( blockids, buffers, count );
+        }
+
+        private static synchronized void checkWrite()
+            throws IOException
+        {
+            if ( failingWrite )
+            {
+                failingWrite = false;
+                throw new IOException( "boom" );
+            }
+        }
+
+        public void sync()
+            throws IOException
+        {
+            device.sync();
+        }
+
+        public long length()
+            throws IOException
+        {
+            return device.length();
+        }
+
+        public void truncate( long blocks )
+            throws IOException
+        {
+            device.truncate( blocks );
+        }
+
+        public void close()
+            throws IOException
+        {
+            device.close();
+        }
+    }
+
+
     /**
      * Test wrong release
      */
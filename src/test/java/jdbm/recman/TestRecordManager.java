@@ -49,6 +49,17 @@ import jdbm.RecordManager;
 
 import jdbm.RecordManagerFactory;
 
+import jdbm.RecordManagerOptions;
+
+import jdbm.helper.Serializer;
+
+
+import java.io.File;
+
+import java.io.IOException;
+
+import java.util.Properties;
+
 
 import junit.framework.*;
 
@@ -325,6 +336,1304 @@ public class TestRecordManager extends TestCase
     }
 
 
+    /**
+     * Test that small records tacked on in the middle of a page go to
+     * the same place again after a rollback, and that records added
+     * later don't overwrite them.
+     */
+
+    public void testTailAfterRollback()
+
+        throws Exception
+
+    {
+
+        RecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        recman.insert( "one" );
+
+        recman.commit();
+
+        long rowid2 = recman.insert( "two" );
+
+        recman.rollback();
+
+        long rowid3 = recman.insert( "three" );
+
+        assertEquals( "old and new rowid", rowid2, rowid3 );
+
+        recman.commit();
+
+        recman.close();
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long rowid4 = recman.insert( TestUtil.makeRecord( 1000, (byte) 4 ) );
+
+        assertEquals( "check data3", "three", recman.fetch( rowid3 ) );
+
+        assertTrue( "check data4", TestUtil.checkRecord( (byte[]) recman.fetch( rowid4 ),
+
+                                                         1000, (byte) 4 ) );
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test rolling back part of a transaction to a savepoint.
+     */
+
+    public void testSavepoints()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long rowid1 = recman.insert( "one" );
+
+        int savepoint = recman.setSavepoint();
+
+        recman.update( rowid1, "one updated" );
+
+        long rowid2 = recman.insert( TestUtil.makeRecord( 150000, (byte) 2 ) );
+
+        recman.setNamedObject( "two", rowid2 );
+
+        recman.rollbackToSavepoint( savepoint );
+
+        assertEquals( "rolled back", "one", recman.fetch( rowid1 ) );
+
+        // the space of the rolled back insert is free again
+
+        assertEquals( "same rowid", rowid2,
+
+                      recman.insert( TestUtil.makeRecord( 150000, (byte) 3 ) ) );
+
+        assertEquals( "name rolled back", 0, recman.getNamedObject( "two" ) );
+
+        assertTrue( "reinserted", TestUtil.checkRecord( (byte[]) recman.fetch( rowid2 ),
+
+                                                        150000, (byte) 3 ) );
+
+        recman.commit();
+
+        recman.close();
+
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        assertEquals( "committed", "one", recman.fetch( rowid1 ) );
+
+        assertTrue( "committed insert", TestUtil.checkRecord( (byte[]) recman.fetch( rowid2 ),
+
+                                                              150000, (byte) 3 ) );
+
+        // a savepoint can be rolled back to more than once
+
+        savepoint = recman.setSavepoint();
+
+        long rowid3 = recman.insert( TestUtil.makeRecord( 20000, (byte) 4 ) );
+
+        recman.rollbackToSavepoint( savepoint );
+
+        assertEquals( "same rowid again", rowid3,
+
+                      recman.insert( TestUtil.makeRecord( 20000, (byte) 5 ) ) );
+
+        recman.rollbackToSavepoint( savepoint );
+
+        assertEquals( "same rowid once more", rowid3,
+
+                      recman.insert( TestUtil.makeRecord( 20000, (byte) 6 ) ) );
+
+        assertTrue( "reinserted again", TestUtil.checkRecord( (byte[]) recman.fetch( rowid3 ),
+
+                                                              20000, (byte) 6 ) );
+
+        recman.commit();
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that space freed with the free space kept in memory is
+     * reused, committed, and rolled back like the rest of the file.
+     */
+
+    public void testFreeSpaceInMemory()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        recman.setFreeSpaceInMemory( true );
+
+        long[] rowids = new long[ 50 ];
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            rowids[i] = recman.insert( TestUtil.makeRecord( 1000 + 10 * i, (byte) i ) );
+
+        }
+
+        recman.commit();
+
+        for ( int i = 0; i < rowids.length; i += 2 ) {
+
+            recman.delete( rowids[i] );
+
+        }
+
+        recman.commit();
+
+        // takes freed space, and gives it back on rollback
+
+        recman.insert( TestUtil.makeRecord( 1100, (byte) 100 ) );
+
+        recman.rollback();
+
+        for ( int i = 0; i < rowids.length; i += 2 ) {
+
+            rowids[i] = recman.insert( TestUtil.makeRecord( 900 + 10 * i, (byte) i ) );
+
+        }
+
+        recman.close();
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            int length = ( i % 2 == 0 ? 900 : 1000 ) + 10 * i;
+
+            assertTrue( "record " + i, TestUtil.checkRecord( (byte[]) recman.fetch( rowids[i] ),
+
+                                                             length, (byte) i ) );
+
+        }
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test compaction: the last records move to the space freed before
+     * them, and the file shrinks.
+     */
+    public void testCompact()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long[] rowids = new long[ 300 ];
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            rowids[i] = recman.insert( TestUtil.makeRecord( 500, (byte) i ) );
+
+        }
+
+        recman.commit();
+
+        for ( int i = 0; i < 200; i++ ) {
+
+            recman.delete( rowids[i] );
+
+        }
+
+        recman.commit();
+
+        recman.getTransactionManager().synchronizeLog();
+
+        File file = new File( TestRecordFile.testFileName + RecordFile.extension );
+
+        long length = file.length();
+
+        // compaction commits, so there must be nothing to commit along
+
+        recman.insert( TestUtil.makeRecord( 500, (byte) 0 ) );
+
+        try {
+
+            recman.compact();
+
+            fail( "compacted with uncommitted changes" );
+
+        } catch ( IllegalStateException except ) {
+
+            // expected
+
+        }
+
+        recman.rollback();
+
+        recman.compact( 10 );
+
+        assertTrue( "file shrunk", file.length() < length / 2 );
+
+        for ( int i = 200; i < rowids.length; i++ ) {
+
+            assertTrue( "record " + i, TestUtil.checkRecord( (byte[]) recman.fetch( rowids[i] ),
+
+                                                             500, (byte) i ) );
+
+        }
+
+        recman.close();
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        for ( int i = 0; i < 200; i++ ) {
+
+            rowids[i] = recman.insert( TestUtil.makeRecord( 600, (byte) i ) );
+
+        }
+
+        recman.commit();
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            assertTrue( "record " + i, TestUtil.checkRecord( (byte[]) recman.fetch( rowids[i] ),
+
+                                                             i < 200 ? 600 : 500, (byte) i ) );
+
+        }
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test a non-default block size. The size given at creation time is
+     * <p/>
+     * kept for the life of the file, whatever is asked for on reopen.
+     */
+
+    public void testBlockSize()
+
+        throws Exception
+
+    {
+
+        RecordManager recman;
+
+        Properties options = new Properties();
+
+        options.setProperty( RecordManagerOptions.BLOCK_SIZE, "2048" );
+
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName, options );
+
+        // records spanning several 2 KB pages
+
+        long rowid1 = recman.insert( TestUtil.makeRecord( 15000, (byte) 1 ) );
+
+        long rowid2 = recman.insert( TestUtil.makeRecord( 100, (byte) 2 ) );
+
+        recman.commit();
+
+        recman.close();
+
+        // reopen asking for the largest size; the stored size wins
+
+        options.setProperty( RecordManagerOptions.BLOCK_SIZE, "32768" );
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName, options );
+
+        assertTrue( "check data1",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid1 ), 15000, (byte) 1 ) );
+
+        assertTrue( "check data2",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid2 ), 100, (byte) 2 ) );
+
+        assertEquals( "block size", 2048,
+
+                      ( (BaseRecordManager) recman ).getBlockSize() );
+
+        recman.close();
+
+        // sizes that are not a power of two are rejected
+
+        TestRecordFile.deleteTestFile();
+
+        options.setProperty( RecordManagerOptions.BLOCK_SIZE, "3000" );
+
+        try {
+
+            recman = new BaseRecordManager( TestRecordFile.testFileName, options );
+
+            recman.close();
+
+            fail( "expected IllegalArgumentException" );
+
+        } catch ( IllegalArgumentException except ) {
+
+            // expected
+
+        }
+
+    }
+
+
+    /**
+     * Test records stored in a file with checksums.
+     */
+
+    public void testChecksums()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman;
+
+        Properties options = new Properties();
+
+        options.setProperty( RecordManagerOptions.CHECKSUMS, "true" );
+
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName, options );
+
+        long rowid1 = recman.insert( TestUtil.makeRecord( 30000, (byte) 1 ) );
+
+        long rowid2 = recman.insert( TestUtil.makeRecord( 100, (byte) 2 ) );
+
+        recman.commit();
+
+        recman.close();
+
+        // the setting sticks to the file
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        assertTrue( "check data1",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid1 ), 30000, (byte) 1 ) );
+
+        assertTrue( "check data2",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid2 ), 100, (byte) 2 ) );
+
+        assertTrue( "verified", recman.getVerifiedPageCount() > 0 );
+
+        assertEquals( "failed", 0, recman.getFailedPageCount() );
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test records stored through blocks cached off the heap.
+     */
+
+    public void testOffHeap()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman;
+
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        recman.setPageCacheOffHeap( true );
+
+        recman.setPageCacheSize( 4 * RecordFile.BLOCK_SIZE );
+
+        long rowid1 = recman.insert( TestUtil.makeRecord( 50000, (byte) 1 ) );
+
+        long rowid2 = recman.insert( TestUtil.makeRecord( 10, (byte) 2 ) );
+
+        recman.commit();
+
+        recman.update( rowid2, TestUtil.makeRecord( 20, (byte) 3 ) );
+
+        recman.rollback();
+
+        assertTrue( "check data1",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid1 ), 50000, (byte) 1 ) );
+
+        assertTrue( "check data2",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid2 ), 10, (byte) 2 ) );
+
+        recman.close();
+
+        // read back from the heap
+
+        recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        assertTrue( "reopened",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid1 ), 50000, (byte) 1 ) );
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test fetches from several threads, running alongside updates.
+     */
+
+    public void testConcurrentFetch()
+
+        throws Exception
+
+    {
+
+        final BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        final long[] rowids = new long[ 20 ];
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            rowids[i] = recman.insert( TestUtil.makeRecord( 1000 * i, (byte) i ) );
+
+        }
+
+        recman.commit();
+
+        recman.setPageCacheSize( 4 * RecordFile.BLOCK_SIZE );
+
+
+        final Throwable[] failure = new Throwable[ 1 ];
+
+        Thread[] readers = new Thread[ 4 ];
+
+        for ( int t = 0; t < readers.length; t++ ) {
+
+            readers[t] = new Thread() {
+
+                public void run() {
+
+                    try {
+
+                        for ( int n = 0; n < 50; n++ ) {
+
+                            for ( int i = 0; i < rowids.length; i++ ) {
+
+                                byte[] data = (byte[]) recman.fetch( rowids[i] );
+
+                                if ( !TestUtil.checkRecord( data, 1000 * i, (byte) i ) ) {
+
+                                    throw new Error( "bad record " + i );
+
+                                }
+
+                            }
+
+                        }
+
+                    } catch ( Throwable except ) {
+
+                        failure[0] = except;
+
+                    }
+
+                }
+
+            };
+
+            readers[t].start();
+
+        }
+
+        // updates rewrite the same contents meanwhile
+
+        for ( int n = 0; n < 20; n++ ) {
+
+            int i = n % rowids.length;
+
+            recman.update( rowids[i], TestUtil.makeRecord( 1000 * i, (byte) i ) );
+
+            recman.commit();
+
+        }
+
+        for ( int t = 0; t < readers.length; t++ ) {
+
+            readers[t].join();
+
+        }
+
+        if ( failure[0] != null ) {
+
+            throw new Exception( "reader failed: " + failure[0] );
+
+        }
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test a serializer fetching another record while an update waits.
+     */
+
+    public void testNestedFetch()
+
+        throws Exception
+
+    {
+
+        final BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        final long rowid1 = recman.insert( "one" );
+
+        final long rowid2 = recman.insert( "two" );
+
+        recman.commit();
+
+
+        final Thread writer = new Thread() {
+
+            public void run() {
+
+                try {
+
+                    recman.update( rowid1, "one again" );
+
+                } catch ( IOException except ) {
+
+                    throw new Error( except.toString() );
+
+                }
+
+            }
+
+        };
+
+        final Serializer serializer = new Serializer() {
+
+            public byte[] serialize( Object obj ) {
+
+                throw new UnsupportedOperationException();
+
+            }
+
+            public Object deserialize( byte[] data ) throws IOException {
+
+                // fetch the other record once the writer waits
+
+                writer.start();
+
+                try {
+
+                    Thread.sleep( 200 );
+
+                } catch ( InterruptedException except ) {
+
+                    throw new Error( except.toString() );
+
+                }
+
+                return recman.fetch( rowid2 );
+
+            }
+
+        };
+
+        final Object[] result = new Object[ 1 ];
+
+        Thread reader = new Thread() {
+
+            public void run() {
+
+                try {
+
+                    result[0] = recman.fetch( rowid1, serializer );
+
+                } catch ( IOException except ) {
+
+                    throw new Error( except.toString() );
+
+                }
+
+            }
+
+        };
+
+        reader.start();
+
+        reader.join( 5000 );
+
+        assertFalse( "deadlock", reader.isAlive() );
+
+        assertEquals( "nested fetch", "two", result[0] );
+
+        writer.join();
+
+        assertEquals( "updated", "one again", recman.fetch( rowid1 ) );
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that a snapshot keeps reading the records, roots and names
+     * as they were committed when it was taken.
+     */
+
+    public void testSnapshot()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long rowid1 = recman.insert( TestUtil.makeRecord( 150000, (byte) 1 ) );
+
+        long rowid2 = recman.insert( TestUtil.makeRecord( 1000, (byte) 2 ) );
+
+        recman.setNamedObject( "first", rowid1 );
+
+        recman.setRoot( 1, rowid2 );
+
+        recman.commit();
+
+
+        RecordManager snapshot = recman.snapshot();
+
+        // change everything, uncommitted then committed
+
+        recman.update( rowid1, TestUtil.makeRecord( 150000, (byte) 3 ) );
+
+        recman.delete( rowid2 );
+
+        recman.setNamedObject( "first", 0 );
+
+        recman.setRoot( 1, 0 );
+
+        RecordManager snapshot2 = recman.snapshot();
+
+        recman.commit();
+
+        for ( int i = 0; i < 100; i++ ) {
+
+            recman.insert( TestUtil.makeRecord( 1000, (byte) i ) );
+
+        }
+
+        recman.commit();
+
+
+        RecordManager[] views = new RecordManager[] { snapshot, snapshot2 };
+
+        for ( int i = 0; i < views.length; i++ ) {
+
+            assertTrue( "check data1",
+
+                        TestUtil.checkRecord( (byte[]) views[i].fetch( rowid1 ), 150000, (byte) 1 ) );
+
+            assertTrue( "check data2",
+
+                        TestUtil.checkRecord( (byte[]) views[i].fetch( rowid2 ), 1000, (byte) 2 ) );
+
+            assertEquals( "name", rowid1, views[i].getNamedObject( "first" ) );
+
+            assertEquals( "root", rowid2, views[i].getRoot( 1 ) );
+
+        }
+
+        try {
+
+            snapshot.update( rowid1, TestUtil.makeRecord( 10, (byte) 4 ) );
+
+            fail( "snapshot updated" );
+
+        } catch ( UnsupportedOperationException except ) {
+
+            // expected
+
+        }
+
+        snapshot.close();
+
+        snapshot2.close();
+
+        try {
+
+            snapshot.fetch( rowid1 );
+
+            fail( "closed snapshot read" );
+
+        } catch ( IllegalStateException except ) {
+
+            // expected
+
+        }
+
+        assertEquals( "name now", 0, recman.getNamedObject( "first" ) );
+
+        assertTrue( "check data1 now",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid1 ), 150000, (byte) 3 ) );
+
+
+        // the committed images of uncommitted changes are kept
+
+        recman.update( rowid1, TestUtil.makeRecord( 10, (byte) 5 ) );
+
+        snapshot = recman.snapshot();
+
+        assertTrue( "check data1 committed",
+
+                    TestUtil.checkRecord( (byte[]) snapshot.fetch( rowid1 ), 150000, (byte) 3 ) );
+
+        snapshot.close();
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that a snapshot is read consistently in one thread while
+     * another updates and commits.
+     */
+
+    public void testSnapshotConcurrentWrites()
+
+        throws Exception
+
+    {
+
+        final BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        final long[] rowids = new long[ 20 ];
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            rowids[i] = recman.insert( TestUtil.makeRecord( 1000 * i, (byte) i ) );
+
+        }
+
+        recman.commit();
+
+        recman.setPageCacheSize( 4 * RecordFile.BLOCK_SIZE );
+
+
+        final RecordManager snapshot = recman.snapshot();
+
+        final Throwable[] failure = new Throwable[ 1 ];
+
+        Thread reader = new Thread() {
+
+            public void run() {
+
+                try {
+
+                    for ( int n = 0; n < 50; n++ ) {
+
+                        for ( int i = 0; i < rowids.length; i++ ) {
+
+                            byte[] data = (byte[]) snapshot.fetch( rowids[i] );
+
+                            if ( !TestUtil.checkRecord( data, 1000 * i, (byte) i ) ) {
+
+                                throw new Error( "bad record " + i );
+
+                            }
+
+                        }
+
+                    }
+
+                } catch ( Throwable except ) {
+
+                    failure[0] = except;
+
+                }
+
+            }
+
+        };
+
+        reader.start();
+
+        // updates change sizes and contents meanwhile
+
+        for ( int n = 0; n < 100; n++ ) {
+
+            int i = n % rowids.length;
+
+            recman.update( rowids[i], TestUtil.makeRecord( 500 * n, (byte) n ) );
+
+            recman.insert( TestUtil.makeRecord( 100, (byte) n ) );
+
+            recman.commit();
+
+        }
+
+        reader.join();
+
+        if ( failure[0] != null ) {
+
+            throw new Exception( "reader failed: " + failure[0] );
+
+        }
+
+        snapshot.close();
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that transaction handles are isolated from each other, and
+     * that the first of two conflicting commits wins.
+     */
+
+    public void testTransactions()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long rowid1 = recman.insert( "one" );
+
+        long rowid2 = recman.insert( "two" );
+
+        recman.commit();
+
+
+        RecordManager txn1 = recman.begin();
+
+        RecordManager txn2 = recman.begin();
+
+        txn1.update( rowid1, "one by 1" );
+
+        txn2.update( rowid2, "two by 2" );
+
+        long rowid3 = txn1.insert( "three" );
+
+        txn1.setNamedObject( "three", rowid3 );
+
+        assertEquals( "own update", "one by 1", txn1.fetch( rowid1 ) );
+
+        assertEquals( "own insert", "three", txn1.fetch( rowid3 ) );
+
+        assertEquals( "own name", rowid3, txn1.getNamedObject( "three" ) );
+
+        assertEquals( "other's update", "two", txn1.fetch( rowid2 ) );
+
+        assertEquals( "uncommitted", "one", recman.fetch( rowid1 ) );
+
+
+        // independent changes both commit
+
+        txn1.commit();
+
+        assertEquals( "committed", "one by 1", recman.fetch( rowid1 ) );
+
+        assertEquals( "committed name", rowid3, recman.getNamedObject( "three" ) );
+
+        assertEquals( "started before", "one", txn2.fetch( rowid1 ) );
+
+        txn2.commit();
+
+        assertEquals( "committed 2", "two by 2", recman.fetch( rowid2 ) );
+
+        assertEquals( "next transaction", "one by 1", txn2.fetch( rowid1 ) );
+
+
+        // the first committer wins, once both started after the above
+
+        txn1.rollback();
+
+        txn1.update( rowid2, "two by 1" );
+
+        txn2.update( rowid2, "two by 2 again" );
+
+        txn1.commit();
+
+        try {
+
+            txn2.commit();
+
+            fail( "conflict not detected" );
+
+        } catch ( TransactionConflictException except ) {
+
+            // expected
+
+        }
+
+        assertEquals( "winner", "two by 1", recman.fetch( rowid2 ) );
+
+        txn2.rollback();
+
+        txn2.update( rowid2, "two by 2 again" );
+
+        txn2.commit();
+
+        assertEquals( "retried", "two by 2 again", recman.fetch( rowid2 ) );
+
+
+        // direct changes count as well
+
+        txn1.update( rowid1, "one by 1 again" );
+
+        recman.update( rowid1, "one directly" );
+
+        recman.commit();
+
+        try {
+
+            txn1.commit();
+
+            fail( "conflict with direct change not detected" );
+
+        } catch ( TransactionConflictException except ) {
+
+            // expected
+
+        }
+
+        txn1.close();
+
+        txn2.close();
+
+        assertEquals( "direct", "one directly", recman.fetch( rowid1 ) );
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that handles and rollbacks of the record manager keep out of
+     * each other's way.
+     */
+
+    public void testTransactionsAndRollback()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        recman.insert( "one" );
+
+        recman.commit();
+
+        RecordManager txn = recman.begin();
+
+
+        // a rollback takes back the ids inserted in handles
+
+        long rowid2 = txn.insert( "two by handle" );
+
+        recman.rollback();
+
+        long rowid3 = recman.insert( "three directly" );
+
+        assertEquals( "id taken back", rowid2, rowid3 );
+
+        try {
+
+            txn.commit();
+
+            fail( "lost id not detected" );
+
+        } catch ( TransactionConflictException except ) {
+
+            // expected
+
+        }
+
+        txn.rollback();
+
+        assertEquals( "not overwritten", "three directly", recman.fetch( rowid3 ) );
+
+        recman.commit();
+
+
+        // dropping the inserts of a handle doesn't commit direct changes
+
+        long rowid4 = recman.insert( "four directly" );
+
+        txn.insert( "five by handle" );
+
+        txn.rollback();
+
+        recman.rollback();
+
+        assertEquals( "not committed", rowid4, recman.insert( "four again" ) );
+
+        recman.commit();
+
+
+        // dropped inserts stay dropped when the record manager rolls back
+
+        long rowid6 = txn.insert( "six by handle" );
+
+        recman.commit();
+
+        txn.rollback();
+
+        recman.rollback();
+
+        assertEquals( "dropped again", rowid6, recman.insert( "seven directly" ) );
+
+        txn.close();
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that handles don't commit changes made directly through the
+     * record manager.
+     */
+
+    public void testTransactionsAndDirectChanges()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long rowid1 = recman.insert( "one" );
+
+        long rowid2 = recman.insert( "two" );
+
+        recman.commit();
+
+        RecordManager txn = recman.begin();
+
+
+        // a direct update waits for its own commit or rollback
+
+        txn.update( rowid1, "one by handle" );
+
+        recman.update( rowid2, "two directly" );
+
+        try {
+
+            txn.commit();
+
+            fail( "uncommitted direct change not detected" );
+
+        } catch ( TransactionConflictException except ) {
+
+            // expected
+
+        }
+
+        recman.rollback();
+
+        assertEquals( "rolled back", "two", recman.fetch( rowid2 ) );
+
+        txn.commit();
+
+        assertEquals( "committed", "one by handle", recman.fetch( rowid1 ) );
+
+
+        // so does a direct delete of a record the handle updated
+
+        txn.update( rowid2, "two by handle" );
+
+        recman.delete( rowid2 );
+
+        long rowid3 = recman.insert( "three directly" );
+
+        try {
+
+            txn.commit();
+
+            fail( "uncommitted direct delete not detected" );
+
+        } catch ( TransactionConflictException except ) {
+
+            // expected
+
+        }
+
+        assertEquals( "not overwritten", "three directly", recman.fetch( rowid3 ) );
+
+        recman.rollback();
+
+        assertEquals( "delete rolled back", "two", recman.fetch( rowid2 ) );
+
+        txn.commit();
+
+        assertEquals( "committed 2", "two by handle", recman.fetch( rowid2 ) );
+
+        txn.close();
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test rolling back a handle while the record manager holds more
+     * changed blocks than it keeps committed images of.
+     */
+
+    public void testTransactionRollbackWithManyChanges()
+
+        throws Exception
+
+    {
+
+        BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        long rowid1 = recman.insert( "one" );
+
+        recman.commit();
+
+        RecordManager txn = recman.begin();
+
+        txn.update( rowid1, "one by handle" );
+
+        byte[] data = TestUtil.makeRecord( ( RecordFile.MAX_PRE_IMAGES + 100 ) * RecordFile.BLOCK_SIZE,
+                                           (byte) 1 );
+
+        long rowid2 = recman.insert( data );
+
+        txn.rollback();
+
+        assertEquals( "rolled back", "one", txn.fetch( rowid1 ) );
+
+        recman.commit();
+
+        txn.update( rowid1, "one again" );
+
+        txn.commit();
+
+        assertEquals( "committed", "one again", recman.fetch( rowid1 ) );
+
+        assertTrue( "check data",
+
+                    TestUtil.checkRecord( (byte[]) recman.fetch( rowid2 ),
+
+                                          data.length, (byte) 1 ) );
+
+        txn.close();
+
+        recman.close();
+
+    }
+
+
+    /**
+     * Test that writers on separate handles run in parallel.
+     */
+
+    public void testConcurrentTransactions()
+
+        throws Exception
+
+    {
+
+        final BaseRecordManager recman = new BaseRecordManager( TestRecordFile.testFileName );
+
+        final long[] rowids = new long[ 4 ];
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            rowids[i] = recman.insert( new Integer( 0 ) );
+
+        }
+
+        recman.commit();
+
+
+        final Throwable[] failure = new Throwable[ 1 ];
+
+        Thread[] writers = new Thread[ rowids.length ];
+
+        for ( int t = 0; t < writers.length; t++ ) {
+
+            final int i = t;
+
+            writers[t] = new Thread() {
+
+                public void run() {
+
+                    try {
+
+                        RecordManager txn = recman.begin();
+
+                        for ( int n = 1; n <= 50; n++ ) {
+
+                            txn.update( rowids[i], new Integer( n ) );
+
+                            txn.insert( TestUtil.makeRecord( 100, (byte) n ) );
+
+                            txn.commit();
+
+                        }
+
+                        txn.close();
+
+                    } catch ( Throwable except ) {
+
+                        failure[0] = except;
+
+                    }
+
+                }
+
+            };
+
+            writers[t].start();
+
+        }
+
+        for ( int t = 0; t < writers.length; t++ ) {
+
+            writers[t].join();
+
+        }
+
+        if ( failure[0] != null ) {
+
+            throw new Exception( "writer failed: " + failure[0] );
+
+        }
+
+        for ( int i = 0; i < rowids.length; i++ ) {
+
+            assertEquals( "record " + i, new Integer( 50 ), recman.fetch( rowids[i] ) );
+
+        }
+
+        recman.close();
+
+    }
+
+
     /**
      * Runs all tests in this class
      */
@@ -149,22 +149,26 @@ public class TestStress extends TestCase
 
     }
 
+    // number of root slots exercised, fewer than any file provides
+
+    static final int NROOTS = 1000;
+
     // holder for root records
 
-    long[] roots = new long[FileHeader.NROOTS];
+    long[] roots = new long[NROOTS];
 
 
     private int getRandomAllocatedRoot()
     {
 
-        int slot = rnd.nextInt( FileHeader.NROOTS );
+        int slot = rnd.nextInt( NROOTS );
 
         while ( roots[slot] == 0 )
         {
 
             slot++;
 
-            if ( slot == FileHeader.NROOTS )
+            if ( slot == NROOTS )
 
                 slot = 0; // wrap
 
@@ -348,7 +352,7 @@ public class TestStress extends TestCase
 
                     // SET ROOT
 
-                    int root = rnd.nextInt( FileHeader.NROOTS );
+                    int root = rnd.nextInt( NROOTS );
 
                     roots[root] = rnd.nextLong();
 
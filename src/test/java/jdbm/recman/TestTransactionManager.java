@@ -26,6 +26,8 @@ import junit.framework.*;
 
 import java.io.*;
 
+import jdbm.RecordManagerOptions;
+
 /**
  * This class contains all Unit tests for {@link TransactionManager}.
  */
@@ -73,7 +75,7 @@ public class TestTransactionManager extends TestCase
             file1.commit();
         }
         assertDataSizeEquals( "len1", 0 );
-        assertLogSizeNotZero( "len1" );
+        assertLogSizeNotZero( "len1", file1 );
 
         file1.forceClose();
 
@@ -82,7 +84,7 @@ public class TestTransactionManager extends TestCase
         RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
 
         assertDataSizeEquals( "len2", 3 * RecordFile.BLOCK_SIZE );
-        assertLogSizeEquals( "len2", 8 );
+        assertLogSizeEquals( "len2", file2, 8 );
 
         file2.forceClose();
 
@@ -98,9 +100,11 @@ public class TestTransactionManager extends TestCase
     public void XtestSynching() throws Exception
     {
         RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        int maxTxns = 10;
+        file1.txnMgr.setMaximumTransactionsInLog( maxTxns );
 
         // Do enough transactions to fill the first slot
-        int txnCount = TransactionManager.DEFAULT_TXNS_IN_LOG + 5;
+        int txnCount = maxTxns + 5;
         for ( int i = 0; i < txnCount; i++ )
         {
             BlockIo node = file1.get( i );
@@ -111,22 +115,553 @@ public class TestTransactionManager extends TestCase
         file1.forceClose();
 
         // The data file now has the first slotfull
-        assertDataSizeEquals( "len1", TransactionManager.DEFAULT_TXNS_IN_LOG *
+        assertDataSizeEquals( "len1", maxTxns *
             RecordFile.BLOCK_SIZE );
-        assertLogSizeNotZero( "len1" );
+        assertLogSizeNotZero( "len1", file1 );
 
         // Leave the old record file in flux, and open it again.
         // The second instance should start recovery.
         RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
 
         assertDataSizeEquals( "len2", txnCount * RecordFile.BLOCK_SIZE );
-        assertLogSizeEquals( "len2", 8 );
+        assertLogSizeEquals( "len2", file2, 8 );
 
         file2.forceClose();
     }
 
+    /**
+     * Test that committed transactions are rolled forward from the
+     * binary log, and that a torn transaction at its end is ignored.
+     */
+    public void testBinaryLog() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        for ( int i = 1; i <= 3; i++ )
+        {
+            BlockIo node = file1.get( i );
+            node.writeInt( 100, i );
+            file1.release( node );
+            file1.commit();
+        }
+        String segment = file1.txnMgr.getSegmentName();
+        file1.forceClose();
+
+        // tear the last transaction
+        RandomAccessFile log = new RandomAccessFile( segment, "rw" );
+        log.setLength( log.length() - 10 );
+        log.close();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        assertLogSizeEquals( "after recovery", file2, 2 );
+        for ( int i = 1; i <= 3; i++ )
+        {
+            BlockIo node = file2.get( i );
+            assertEquals( "block " + i, i == 3 ? 0 : i, node.readInt( 100 ) );
+            file2.release( node );
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that a log written as serialized block lists is still
+     * recovered.
+     */
+    public void testSerializedLog() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        file1.close();
+
+        byte[] data = new byte[ RecordFile.BLOCK_SIZE ];
+        data[ 100 ] = 42;
+        java.util.ArrayList blocks = new java.util.ArrayList();
+        blocks.add( new BlockIo( 1, data ) );
+        ObjectOutputStream oos = new ObjectOutputStream( new FileOutputStream(
+            TestRecordFile.testFileName + TransactionManager.extension ) );
+        oos.writeShort( Magic.LOGFILE_HEADER );
+        oos.writeObject( blocks );
+        oos.close();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        BlockIo node = file2.get( 1 );
+        assertEquals( "recovered", 42, node.readByte( 100 ) );
+        file2.release( node );
+        file2.close();
+    }
+
+    /**
+     * Test that concurrent committers share log syncs, and that each
+     * of their transactions is durable.
+     */
+    public void testGroupCommit() throws Exception
+    {
+        final RecordFile file = new RecordFile( TestRecordFile.testFileName );
+        file.setGroupCommit( 500, 0 );
+        final Object lock = new Object();
+        final Exception[] failure = new Exception[ 1 ];
+
+        Thread[] threads = new Thread[ 8 ];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int blockid = i + 1;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        long lsn;
+                        synchronized ( lock )
+                        {
+                            BlockIo node = file.get( blockid );
+                            node.writeInt( 100, blockid );
+                            file.release( node );
+                            lsn = file.commitToLog();
+                        }
+                        file.waitForLog( lsn );
+                    }
+                    catch ( Exception except )
+                    {
+                        failure[0] = except;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+        if ( failure[0] != null )
+        {
+            throw failure[0];
+        }
+        assertTrue( "syncs shared",
+                    file.txnMgr.getSyncCount() < threads.length );
+        file.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        for ( int i = 1; i <= threads.length; i++ )
+        {
+            BlockIo node = file2.get( i );
+            assertEquals( "block " + i, i, node.readInt( 100 ) );
+            file2.release( node );
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that commits don't wait for syncs below the sync durability
+     * level, and that the periodic level syncs in the background.
+     */
+    public void testDurability() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        file1.setDurability( RecordManagerOptions.OS_DURABILITY, 1 );
+        for ( int i = 1; i <= 4; i++ )
+        {
+            BlockIo node = file1.get( i );
+            node.writeInt( 100, i );
+            file1.release( node );
+            file1.commit();
+        }
+        assertEquals( "os syncs", 0, file1.txnMgr.getSyncCount() );
+
+        file1.setDurability( RecordManagerOptions.PERIODIC_DURABILITY, 20 );
+        BlockIo node = file1.get( 5 );
+        node.writeInt( 100, 5 );
+        file1.release( node );
+        file1.commit();
+        for ( int i = 0; i < 100 && file1.txnMgr.getSyncCount() == 0; i++ )
+        {
+            Thread.sleep( 20 );
+        }
+        assertEquals( "periodic syncs", 1, file1.txnMgr.getSyncCount() );
+        file1.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        for ( int i = 1; i <= 5; i++ )
+        {
+            node = file2.get( i );
+            assertEquals( "block " + i, i, node.readInt( 100 ) );
+            file2.release( node );
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that small updates to blocks already in the log are logged
+     * as deltas, and rolled forward on recovery.
+     */
+    public void testDeltaLog() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        BlockIo node = file1.get( 1 );
+        node.writeInt( 100, 1 );
+        file1.release( node );
+        file1.commit();
+        long imageSize = logSize( file1 );
+        assertTrue( "image", imageSize > RecordFile.BLOCK_SIZE );
+
+        for ( int i = 2; i <= 5; i++ )
+        {
+            node = file1.get( 1 );
+            node.writeInt( 100, i );
+            node.writeInt( 4 * i, i );
+            file1.release( node );
+            file1.commit();
+        }
+        assertTrue( "deltas", logSize( file1 ) - imageSize < 4 * 100 );
+        file1.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        node = file2.get( 1 );
+        assertEquals( "last", 5, node.readInt( 100 ) );
+        for ( int i = 2; i <= 5; i++ )
+        {
+            assertEquals( "delta " + i, i, node.readInt( 4 * i ) );
+        }
+        file2.release( node );
+        file2.close();
+    }
+
+    /**
+     * Test that the log is checkpointed in the background once it
+     * holds enough blocks, while commits go on in a fresh log.
+     */
+    public void testCheckpoint() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        file1.setCheckpointThresholds( TransactionManager.DEFAULT_CHECKPOINT_SIZE, 4 );
+        for ( int i = 1; i <= 4; i++ )
+        {
+            BlockIo node = file1.get( i );
+            node.writeInt( 100, i );
+            file1.release( node );
+            file1.commit();
+        }
+        // the fourth block sealed the log
+        assertEquals( "fresh log", 2, logSize( file1 ) );
+
+        // commits go on while the checkpoint is written
+        BlockIo node = file1.get( 1 );
+        node.writeInt( 100, 10 );
+        file1.release( node );
+        file1.commit();
+        node = file1.get( 5 );
+        node.writeInt( 100, 5 );
+        file1.release( node );
+        file1.commit();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( file1.txnMgr.getCheckpointCount() == 0
+                && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( "checkpoints", 1, file1.txnMgr.getCheckpointCount() );
+        assertFalse( "sealed segment dropped", segmentFile( 1 ).exists() );
+        assertTrue( "live segment", segmentFile( 2 ).exists() );
+        assertDataSizeEquals( "checkpointed", 5 * RecordFile.BLOCK_SIZE );
+        file1.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        for ( int i = 1; i <= 5; i++ )
+        {
+            node = file2.get( i );
+            assertEquals( "block " + i, i == 1 ? 10 : i, node.readInt( 100 ) );
+            file2.release( node );
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that a failed checkpoint is reported once, and written
+     * again afterwards.
+     */
+    public void testFailedCheckpoint() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName,
+                                           TestRecordFile.FailingDevice.class.getName() );
+        file1.setCheckpointThresholds( TransactionManager.DEFAULT_CHECKPOINT_SIZE, 4 );
+        TestRecordFile.FailingDevice.failingWrite = true;
+        for ( int i = 1; i <= 4; i++ )
+        {
+            BlockIo node = file1.get( i );
+            node.writeInt( 100, i );
+            file1.release( node );
+            file1.commit();
+        }
+
+        // the commit after the failure reports it
+        boolean failed = false;
+        long deadline = System.currentTimeMillis() + 10000;
+        for ( int i = 10; !failed && System.currentTimeMillis() < deadline; i++ )
+        {
+            BlockIo node = file1.get( 1 );
+            node.writeInt( 100, i );
+            file1.release( node );
+            try
+            {
+                file1.commit();
+            }
+            catch ( IOException except )
+            {
+                failed = true;
+            }
+        }
+        assertTrue( "failure reported", failed );
+        assertFalse( "write failed", TestRecordFile.FailingDevice.failingWrite );
+        assertEquals( "no checkpoint", 0, file1.txnMgr.getCheckpointCount() );
+
+        // the next one has the checkpoint written again
+        BlockIo node = file1.get( 5 );
+        node.writeInt( 100, 5 );
+        file1.release( node );
+        file1.commit();
+        deadline = System.currentTimeMillis() + 10000;
+        while ( file1.txnMgr.getCheckpointCount() == 0
+                && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( "checkpoints", 1, file1.txnMgr.getCheckpointCount() );
+        assertFalse( "sealed segment dropped", segmentFile( 1 ).exists() );
+        node = file1.get( 1 );
+        node.writeInt( 100, 1 );
+        file1.release( node );
+        file1.commit();
+        file1.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        for ( int i = 1; i <= 5; i++ )
+        {
+            node = file2.get( i );
+            assertEquals( "block " + i, i, node.readInt( 100 ) );
+            file2.release( node );
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that the log rotates through segments, and that recovery
+     * replays them all, the latest image of each block winning.
+     */
+    public void testSegments() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        file1.setLogSegmentSize( 2 * RecordFile.BLOCK_SIZE );
+        for ( int i = 1; i <= 12; i++ )
+        {
+            BlockIo node = file1.get( i % 4 + 1 );
+            node.writeInt( 100, i );
+            file1.release( node );
+            file1.commit();
+        }
+        int segments = 0;
+        for ( int i = 1; segmentFile( i ).exists(); i++ )
+        {
+            segments++;
+        }
+        assertTrue( "segments", segments > 2 );
+        assertTrue( "manifest", new File( TestRecordFile.testFileName
+            + TransactionManager.manifestExtension ).exists() );
+        file1.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        assertFalse( "replayed segments dropped", segmentFile( 1 ).exists() );
+        for ( int i = 1; i <= 4; i++ )
+        {
+            BlockIo node = file2.get( i );
+            // last written by transactions 8 to 12
+            assertEquals( "block " + i, i == 1 ? 12 : 7 + i, node.readInt( 100 ) );
+            file2.release( node );
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that a rollback puts back the committed blocks kept in
+     * memory, and goes to the log only once there are too many.
+     */
+    public void testRollbackInMemory() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        BlockIo node = file1.get( 1 );
+        node.writeInt( 100, 1 );
+        file1.release( node );
+        file1.commit();
+        long size = logSize( file1 );
+
+        for ( int i = 1; i <= 3; i++ )
+        {
+            node = file1.get( i );
+            node.writeInt( 100, 10 + i );
+            file1.release( node );
+        }
+        file1.rollback();
+        assertEquals( "log kept", size, logSize( file1 ) );
+        for ( int i = 1; i <= 3; i++ )
+        {
+            node = file1.get( i );
+            assertEquals( "block " + i, i == 1 ? 1 : 0, node.readInt( 100 ) );
+            file1.release( node );
+        }
+
+        for ( int i = 1; i <= RecordFile.MAX_PRE_IMAGES + 1; i++ )
+        {
+            node = file1.get( i );
+            node.writeInt( 100, 10 + i );
+            file1.release( node );
+        }
+        file1.rollback();
+        assertEquals( "log replayed", 2, logSize( file1 ) );
+        node = file1.get( 1 );
+        assertEquals( "block 1", 1, node.readInt( 100 ) );
+        file1.release( node );
+        node = file1.get( 2 );
+        assertEquals( "block 2", 0, node.readInt( 100 ) );
+        file1.release( node );
+        file1.close();
+    }
+
+    /**
+     * Test rolling back to savepoints, innermost first.
+     */
+    public void testSavepoints() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        BlockIo node = file1.get( 1 );
+        node.writeInt( 100, 1 );
+        file1.release( node );
+        int outer = file1.setSavepoint();
+
+        node = file1.get( 1 );
+        node.writeInt( 100, 2 );
+        file1.release( node );
+        node = file1.get( 2 );
+        node.writeInt( 100, 2 );
+        file1.release( node );
+        int inner = file1.setSavepoint();
+
+        node = file1.get( 1 );
+        node.writeInt( 100, 3 );
+        file1.release( node );
+        file1.rollback( inner );
+        node = file1.get( 1 );
+        assertEquals( "inner", 2, node.readInt( 100 ) );
+        node.writeInt( 100, 4 );
+        file1.release( node );
+
+        file1.rollback( outer );
+        node = file1.get( 1 );
+        assertEquals( "outer", 1, node.readInt( 100 ) );
+        file1.release( node );
+        node = file1.get( 2 );
+        assertEquals( "outer, block 2", 0, node.readInt( 100 ) );
+        file1.release( node );
+        try
+        {
+            file1.rollback( inner );
+            fail( "inner savepoint kept" );
+        }
+        catch ( IllegalArgumentException except )
+        {
+            // expected
+        }
+
+        file1.commit();
+        file1.close();
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        node = file2.get( 1 );
+        assertEquals( "committed", 1, node.readInt( 100 ) );
+        file2.release( node );
+        file2.close();
+    }
+
+    /**
+     * Test that a transaction larger than the dirty budget spills
+     * blocks to the log, reads them back from there until they are
+     * checkpointed, and that recovery only replays them once
+     * committed.
+     */
+    public void testSpill() throws Exception
+    {
+        RecordFile file1 = new RecordFile( TestRecordFile.testFileName );
+        file1.setDirtyLimit( 8 * RecordFile.BLOCK_SIZE );
+        writeBlocks( file1, 100, 1 );
+        assertTrue( "dirty blocks held", file1.getDirtyCount() <= 8 );
+        assertBlocks( "spilled", file1, 100, 1 );
+        file1.commit();
+        assertDataSizeEquals( "not checkpointed", 0 );
+        assertBlocks( "committed", file1, 100, 1 );
+
+        // a rolled back transaction leaves the committed images
+        writeBlocks( file1, 50, 2 );
+        file1.rollback();
+        assertBlocks( "rolled back", file1, 100, 1 );
+        writeBlocks( file1, 50, 3 );
+        file1.forceClose();
+
+        RecordFile file2 = new RecordFile( TestRecordFile.testFileName );
+        assertBlocks( "recovered", file2, 100, 1 );
+
+        // written by a checkpoint
+        file2.setDirtyLimit( 8 * RecordFile.BLOCK_SIZE );
+        file2.setCheckpointThresholds( TransactionManager.DEFAULT_CHECKPOINT_SIZE, 16 );
+        writeBlocks( file2, 40, 4 );
+        file2.commit();
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( file2.txnMgr.getCheckpointCount() == 0
+                && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( "checkpoints", 1, file2.txnMgr.getCheckpointCount() );
+        assertBlocks( "checkpointed", file2, 40, 4 );
+
+        // rolled back to a savepoint, spilled blocks included
+        int savepoint = file2.setSavepoint();
+        writeBlocks( file2, 50, 6 );
+        file2.rollback( savepoint );
+        assertBlocks( "savepoint", file2, 40, 4 );
+
+        // written on close
+        writeBlocks( file2, 20, 5 );
+        file2.close();
+        RecordFile file3 = new RecordFile( TestRecordFile.testFileName );
+        assertBlocks( "closed", file3, 20, 5 );
+        BlockIo node = file3.get( 50 );
+        assertEquals( "block 50", 1, node.readInt( 100 ) );
+        file3.release( node );
+        file3.close();
+    }
+
     //  Helpers
 
+    void writeBlocks( RecordFile file, int count, int value )
+        throws IOException
+    {
+        for ( int i = 1; i <= count; i++ )
+        {
+            BlockIo node = file.get( i );
+            node.writeInt( 100, value );
+            node.writeInt( 104, i );
+            file.release( node );
+        }
+    }
+
+    void assertBlocks( String msg, RecordFile file, int count, int value )
+        throws IOException
+    {
+        for ( int i = 1; i <= count; i++ )
+        {
+            BlockIo node = file.get( i );
+            assertEquals( msg + " block " + i, value, node.readInt( 100 ) );
+            assertEquals( msg + " block " + i, i, node.readInt( 104 ) );
+            file.release( node );
+        }
+    }
+
     void assertDataSizeEquals( String msg, long size )
     {
         assertEquals( msg + " data size", size,
@@ -134,18 +669,25 @@ public class TestTransactionManager extends TestCase
                           + RecordFile.extension ).length() );
     }
 
-    void assertLogSizeEquals( String msg, long size )
+    void assertLogSizeEquals( String msg, RecordFile file, long size )
     {
-        assertEquals( msg + " log size", size,
-                      new File( TestRecordFile.testFileName
-                          + TransactionManager.extension ).length() );
+        assertEquals( msg + " log size", size, logSize( file ) );
+    }
+
+    void assertLogSizeNotZero( String msg, RecordFile file )
+    {
+        assertTrue( msg + " log size", logSize( file ) != 0 );
+    }
+
+    long logSize( RecordFile file )
+    {
+        return new File( file.txnMgr.getSegmentName() ).length();
     }
 
-    void assertLogSizeNotZero( String msg )
+    File segmentFile( long segment )
     {
-        assertTrue( msg + " log size",
-                    new File( TestRecordFile.testFileName
-                        + TransactionManager.extension ).length() != 0 );
+        return new File( TestRecordFile.testFileName
+            + TransactionManager.extension + "." + segment );
     }
 
     /**